@@ -0,0 +1,332 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads a file written by BinaryLinkWriter through a memory-mapped window
+ * that is moved along the file as it is read.
+ * <p>
+ * Titles referred to by id are read back from where they were first
+ * written, through a second set of mappings, so the reader keeps one file
+ * offset per title rather than the titles themselves. With a
+ * LinkTitleResolver, it also keeps what each link title resolved to, so
+ * that most links are passed on without reading their title at all.
+ */
+public class BinaryLinkReader {
+
+    private static final long WINDOW_SIZE = 1L << 30;
+    private static final int CHUNK_SHIFT = 30;
+    // a title the writer numbers always fits in the overlap
+    private static final int CHUNK_OVERLAP = 1 << 17;
+    private static final long UNRESOLVED = Long.MIN_VALUE + 1;
+
+    private final String fileName;
+
+    private FileChannel channel;
+    private long fileLength;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long pageOffset;
+    private byte[] titleBuffer = new byte[256];
+
+    private boolean titleTable;
+    private long[] titleOffsets;
+    private int titleCount;
+    private MappedByteBuffer[] titleChunks;
+
+    private LinkTitleResolver resolver;
+    private long[] resolvedTitles;
+
+    public BinaryLinkReader(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * Resolves each link title once, in files that number their titles;
+     * links are then passed to the resolver rather than to the handler,
+     * unless their title resolved to TITLE_NEEDED.
+     */
+    public void setLinkTitleResolver(LinkTitleResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    public static boolean isBinaryLinkFile(String fileName) throws IOException {
+        File file = new File(fileName);
+        if (!file.isFile()) {
+            return false;
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] header = new byte[BinaryLinkWriter.MAGIC.length];
+            int length = in.read(header);
+            return BinaryLinkWriter.isBinaryLinkFile(header, length);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads every page, and its links too unless readLinks is false, in
+     * which case the link titles are skipped without being decoded.
+     */
+    public void read(LinkHandler handler, boolean readLinks) throws IOException {
+        read(handler, readLinks, 0);
+    }
+
+    /**
+     * Reads the pages from the given offset on, which must be one returned
+     * by getPageOffset, or 0 for the first page.
+     */
+    public void read(LinkHandler handler, boolean readLinks, long startOffset) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        try {
+            channel = file.getChannel();
+            fileLength = channel.size();
+            map(0);
+            readHeader();
+            titleOffsets = new long[1 << 16];
+            titleCount = 0;
+            titleChunks = new MappedByteBuffer[(int) (fileLength >>> CHUNK_SHIFT) + 1];
+            if (resolver != null && titleTable) {
+                resolvedTitles = new long[titleOffsets.length];
+                Arrays.fill(resolvedTitles, UNRESOLVED);
+            }
+            if (startOffset > 0) {
+                if (titleTable) {
+                    // the pages before the offset number the titles after it
+                    while (position() < startOffset) {
+                        readPage(null, false);
+                    }
+                } else {
+                    map(startOffset);
+                }
+            }
+            while (position() < fileLength) {
+                pageOffset = position();
+                readPage(handler, readLinks);
+            }
+        } finally {
+            window = null;
+            titleOffsets = null;
+            titleChunks = null;
+            resolvedTitles = null;
+            file.close();
+        }
+    }
+
+    // a null handler only skips the page
+    private void readPage(LinkHandler handler, boolean readLinks) throws IOException {
+        if (handler != null) {
+            handler.handlePage(readTitle());
+        } else {
+            skipTitle();
+        }
+        int linkCount = readVarint();
+        for (int i = 0; i < linkCount; i++) {
+            char type = (char) readByte();
+            int distance = readVarint();
+            if (!readLinks) {
+                skipTitle();
+            } else if (resolvedTitles != null) {
+                readResolvedLink(handler, type, distance);
+            } else {
+                handler.handleLink(type, distance, readTitle());
+            }
+        }
+    }
+
+    /**
+     * Returns the offset in the file of the page last passed to the handler.
+     */
+    public long getPageOffset() {
+        return pageOffset;
+    }
+
+    private void readHeader() throws IOException {
+        for (byte magicByte : BinaryLinkWriter.MAGIC) {
+            if (readByte() != magicByte) {
+                throw new IOException(fileName + " is not a binary link file");
+            }
+        }
+        int version = readByte();
+        if (version != BinaryLinkWriter.VERSION && version != BinaryLinkWriter.INLINE_TITLES_VERSION) {
+            throw new IOException("unsupported binary link file version " + version);
+        }
+        titleTable = version == BinaryLinkWriter.VERSION;
+    }
+
+    // a title is resolved where it is first linked to, and read again only
+    // if the resolver needs it
+    private void readResolvedLink(LinkHandler handler, char type, int distance) throws IOException {
+        int reference = readVarint();
+        int titleId;
+        String title = null;
+        if (reference == 0) {
+            titleId = titleCount;
+            addTitle(position());
+            title = readInlineTitle();
+        } else {
+            titleId = checkTitleId(reference - 1);
+        }
+        long resolved = resolvedTitles[titleId];
+        if (resolved == UNRESOLVED) {
+            if (title == null) {
+                title = lookupTitle(titleId);
+            }
+            resolved = resolver.resolve(title);
+            resolvedTitles[titleId] = resolved;
+        }
+        if (resolved != LinkTitleResolver.TITLE_NEEDED) {
+            resolver.handleLink(type, distance, resolved);
+        } else {
+            handler.handleLink(type, distance, title != null ? title : lookupTitle(titleId));
+        }
+    }
+
+    private String readTitle() throws IOException {
+        if (titleTable) {
+            int reference = readVarint();
+            if (reference != 0) {
+                return lookupTitle(checkTitleId(reference - 1));
+            }
+            addTitle(position());
+        }
+        return readInlineTitle();
+    }
+
+    private String readInlineTitle() throws IOException {
+        int length = readVarint();
+        if (length > titleBuffer.length) {
+            titleBuffer = new byte[length];
+        }
+        ensure(length);
+        window.get(titleBuffer, 0, length);
+        return Utf8.decode(titleBuffer, 0, length);
+    }
+
+    private void skipTitle() throws IOException {
+        if (titleTable) {
+            if (readVarint() != 0) {
+                return;
+            }
+            addTitle(position());
+        }
+        skip(readVarint());
+    }
+
+    private void addTitle(long offset) {
+        if (titleCount == titleOffsets.length) {
+            titleOffsets = Arrays.copyOf(titleOffsets, titleCount * 2);
+            if (resolvedTitles != null) {
+                resolvedTitles = Arrays.copyOf(resolvedTitles, titleCount * 2);
+                Arrays.fill(resolvedTitles, titleCount, resolvedTitles.length, UNRESOLVED);
+            }
+        }
+        titleOffsets[titleCount++] = offset;
+    }
+
+    private int checkTitleId(int titleId) throws IOException {
+        if (titleId >= titleCount) {
+            throw new IOException("title " + titleId + " used before it is defined in " + fileName);
+        }
+        return titleId;
+    }
+
+    private String lookupTitle(int titleId) throws IOException {
+        long offset = titleOffsets[titleId];
+        int chunk = (int) (offset >>> CHUNK_SHIFT);
+        long chunkStart = (long) chunk << CHUNK_SHIFT;
+        MappedByteBuffer buffer = titleChunks[chunk];
+        if (buffer == null) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart,
+                    Math.min((1L << CHUNK_SHIFT) + CHUNK_OVERLAP, fileLength - chunkStart));
+            titleChunks[chunk] = buffer;
+        }
+        int position = (int) (offset - chunkStart);
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = buffer.get(position++);
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length > titleBuffer.length) {
+            titleBuffer = new byte[length];
+        }
+        for (int i = 0; i < length; i++) {
+            titleBuffer[i] = buffer.get(position + i);
+        }
+        return Utf8.decode(titleBuffer, 0, length);
+    }
+
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private byte readByte() throws IOException {
+        ensure(1);
+        return window.get();
+    }
+
+    private void skip(int length) throws IOException {
+        ensure(length);
+        window.position(window.position() + length);
+    }
+
+    private long position() {
+        return windowStart + window.position();
+    }
+
+    private void ensure(int length) throws IOException {
+        if (window.remaining() < length) {
+            long position = position();
+            if (position + length > fileLength) {
+                throw new EOFException("truncated binary link file " + fileName);
+            }
+            map(position);
+        }
+    }
+
+    private void map(long position) throws IOException {
+        windowStart = position;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, fileLength - position));
+    }
+
+}
@@ -0,0 +1,136 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the compact binary link format read by BinaryLinkReader.
+ * <p>
+ * After a 4 byte magic number and a version byte, each page is its title,
+ * the number of links, and for each link its type as one byte, its header
+ * distance and its title. All numbers are unsigned varints.
+ * <p>
+ * In version 2 the titles form a table that is written as it grows: a title
+ * is written as 0 followed by its length and UTF-8 bytes the first time it
+ * occurs, which gives it the next title id, and as its id plus 1 after
+ * that. Version 1, still written for short-lived files, repeats the length
+ * and bytes every time.
+ */
+public class BinaryLinkWriter implements LinkWriter {
+
+    static final byte[] MAGIC = { 'G', 'P', 'L', 'K' };
+    static final int VERSION = 2;
+    static final int INLINE_TITLES_VERSION = 1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int EXPECTED_TITLES = 1 << 20;
+
+    private final OutputStream out;
+    private final TitleDictionary titleIds;
+    private int titleCount = 0;
+    private byte[] buffer = new byte[256];
+
+    public BinaryLinkWriter(OutputStream out) throws IOException {
+        this(out, true);
+    }
+
+    /**
+     * @param titleTable whether to number the titles, which keeps a
+     *            dictionary of every title written until close
+     */
+    public BinaryLinkWriter(OutputStream out, boolean titleTable) throws IOException {
+        this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+        this.titleIds = titleTable ? new TitleDictionary(EXPECTED_TITLES) : null;
+        this.out.write(MAGIC);
+        this.out.write(titleTable ? VERSION : INLINE_TITLES_VERSION);
+    }
+
+    public static boolean isBinaryLinkFile(byte[] header, int length) {
+        if (length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void writePage(String title, PageLinks links) throws IOException {
+        ensureBuffer(title.length());
+        writeTitle(Utf8.encode(title, 0, title.length(), buffer, 0));
+        writeVarint(links.size());
+        for (int i = 0; i < links.size(); i++) {
+            out.write(links.getType(i));
+            writeVarint(links.getDistance(i));
+            int start = links.getTitleStart(i);
+            int end = start + links.getTitleLength(i);
+            ensureBuffer(end - start);
+            writeTitle(Utf8.encode(links.getTitleChars(), start, end, buffer, 0));
+        }
+    }
+
+    public void close() throws IOException {
+        out.close();
+        if (titleIds != null) {
+            titleIds.close();
+        }
+    }
+
+    // writes the title encoded in buffer
+    private void writeTitle(int length) throws IOException {
+        if (titleIds != null) {
+            long id = titleIds.get(buffer, 0, length);
+            if (id != TitleDictionary.NOT_FOUND) {
+                writeVarint((int) id + 1);
+                return;
+            }
+            if (length <= TitleDictionary.MAX_TITLE_BYTES) {
+                titleIds.put(buffer, length, titleCount);
+            }
+            // a title too long for the dictionary is numbered but never referred to
+            titleCount++;
+            out.write(0);
+        }
+        writeVarint(length);
+        out.write(buffer, 0, length);
+    }
+
+    private void ensureBuffer(int chars) {
+        if (chars * Utf8.MAX_BYTES_PER_CHAR > buffer.length) {
+            buffer = new byte[chars * Utf8.MAX_BYTES_PER_CHAR];
+        }
+    }
+
+    private void writeVarint(int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+}
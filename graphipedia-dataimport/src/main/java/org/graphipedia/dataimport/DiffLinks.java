@@ -0,0 +1,437 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Lists the links added and removed between two links files, for instance
+ * those extracted from two successive dumps.
+ * <p>
+ * Each file is first split by a hash of the normalised page title into
+ * partition files, in which every page's links are normalised, made
+ * distinct and sorted. The partitions are then compared on several threads:
+ * the pages of a partition are sorted by title, and the two sides are
+ * merge-joined page by page and link by link. Memory use depends on the size
+ * of one partition, not of the whole file. Links are compared by type and
+ * normalised target, so a link that only moved to another section is not
+ * reported.
+ * <p>
+ * Each line of the output is "+" or "-", the relationship type, the page
+ * title and the link title, separated by tabs, in partition order, then
+ * page title order.
+ */
+public class DiffLinks {
+
+    private static final int DEFAULT_PARTITIONS = 64;
+
+    // WikiRelationshipType names, by type rank
+    private static final String[] TYPE_NAMES = { "Redirect", "Link", "Related" };
+    private static final char[] TYPES = { 'r', 'l', 'h' };
+
+    private static final Comparator<Page> BY_TITLE = new Comparator<Page>() {
+        public int compare(Page page, Page other) {
+            return page.title.compareTo(other.title);
+        }
+    };
+
+    private int partitions = DEFAULT_PARTITIONS;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private final long[] addedCounts = new long[TYPES.length];
+    private final long[] removedCounts = new long[TYPES.length];
+
+    public static void main(String[] args) throws Exception {
+        DiffLinks self = new DiffLinks();
+        List<String> files = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--partitions".equals(args[i]) && i + 1 < args.length) {
+                self.partitions = Integer.parseInt(args[++i]);
+            } else if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                self.threads = Integer.parseInt(args[++i]);
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.size() < 3 || self.partitions < 1 || self.threads < 1) {
+            System.out.println("USAGE: DiffLinks [--partitions <n>] [--threads <n>] <old-links-file> "
+                    + "<new-links-file> <output-file>");
+            System.exit(255);
+        }
+        self.diff(files.get(0), files.get(1), files.get(2));
+    }
+
+    public void diff(String oldFile, String newFile, String outputFile) throws Exception {
+        File workDir = new File(outputFile + ".parts");
+        if (!workDir.isDirectory() && !workDir.mkdirs()) {
+            throw new IOException("cannot create " + workDir);
+        }
+        long startTime = System.currentTimeMillis();
+        System.out.println("Splitting " + oldFile + "...");
+        split(oldFile, workDir, "old");
+        System.out.println("\nSplitting " + newFile + "...");
+        split(newFile, workDir, "new");
+        long splitSeconds = (System.currentTimeMillis() - startTime) / 1000;
+        System.out.printf("\n%d partitions written in %d seconds\n", partitions, splitSeconds);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        OutputStream out = new FileOutputStream(outputFile);
+        try {
+            List<Future<long[][]>> results = new ArrayList<Future<long[][]>>();
+            for (int partition = 0; partition < partitions; partition++) {
+                results.add(executor.submit(new PartitionDiff(workDir, partition)));
+            }
+            byte[] buffer = new byte[1 << 16];
+            for (int partition = 0; partition < partitions; partition++) {
+                long[][] counts = results.get(partition).get();
+                for (int type = 0; type < TYPES.length; type++) {
+                    addedCounts[type] += counts[0][type];
+                    removedCounts[type] += counts[1][type];
+                }
+                File partFile = partFile(workDir, "diff", partition);
+                InputStream in = new FileInputStream(partFile);
+                try {
+                    for (int length; (length = in.read(buffer)) > 0;) {
+                        out.write(buffer, 0, length);
+                    }
+                } finally {
+                    in.close();
+                }
+                partFile.delete();
+            }
+        } finally {
+            out.close();
+            executor.shutdown();
+        }
+        workDir.delete();
+        long elapsedSeconds = (System.currentTimeMillis() - startTime) / 1000;
+        System.out.printf("links compared in %d seconds\n", elapsedSeconds);
+        for (int type = 0; type < TYPES.length; type++) {
+            System.out.printf("%-8s %10d added, %10d removed\n", TYPE_NAMES[type], addedCounts[type],
+                    removedCounts[type]);
+        }
+    }
+
+    public long getAddedCount(char type) {
+        return addedCounts[typeRank(type)];
+    }
+
+    public long getRemovedCount(char type) {
+        return removedCounts[typeRank(type)];
+    }
+
+    private void split(String fileName, File workDir, String side) throws Exception {
+        Splitter splitter = new Splitter(workDir, side);
+        try {
+            if (BinaryLinkReader.isBinaryLinkFile(fileName)) {
+                new BinaryLinkReader(fileName).read(splitter, true);
+            } else {
+                new XmlLinkReader(splitter).parse(fileName);
+            }
+            splitter.flush();
+        } finally {
+            splitter.close();
+        }
+    }
+
+    private static File partFile(File workDir, String side, int partition) {
+        return new File(workDir, side + "." + partition);
+    }
+
+    private int partition(String title) {
+        int hash = title.hashCode() * 0x9e3779b9;
+        return ((hash ^ (hash >>> 16)) & 0x7fffffff) % partitions;
+    }
+
+    private static int typeRank(char type) {
+        switch (type) {
+        case 'r':
+            return 0;
+        case 'l':
+            return 1;
+        default:
+            return 2;
+        }
+    }
+
+    /**
+     * Writes each page to the partition of its title, with its links
+     * normalised, distinct and sorted.
+     */
+    private class Splitter implements LinkHandler {
+
+        private final BinaryLinkWriter[] writers = new BinaryLinkWriter[partitions];
+        private final ProgressCounter pageCounter = new ProgressCounter();
+        private final PageLinks links = new PageLinks();
+        private String title;
+
+        Splitter(File workDir, String side) throws IOException {
+            // one title dictionary per partition would cost more than it saves
+            for (int partition = 0; partition < partitions; partition++) {
+                writers[partition] = new BinaryLinkWriter(new FileOutputStream(partFile(workDir, side, partition)),
+                        false);
+            }
+        }
+
+        public void handlePage(String title) {
+            flush();
+            this.title = TitleNormalizer.normalize(title);
+            pageCounter.increment();
+        }
+
+        public void handleLink(char type, int distance, String title) {
+            String target = TitleNormalizer.normalize(title);
+            if (target.length() > 0) {
+                links.add(type, 0, target, 0, target.length());
+            }
+        }
+
+        void flush() {
+            if (title == null) {
+                return;
+            }
+            links.sort();
+            try {
+                writers[partition(title)].writePage(title, links);
+            } catch (IOException ioException) {
+                throw new RuntimeException(ioException);
+            }
+            links.clear();
+            title = null;
+        }
+
+        void close() throws IOException {
+            for (BinaryLinkWriter writer : writers) {
+                if (writer != null) {
+                    writer.close();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * A page of a partition, with its links in PageLinks order.
+     */
+    private static class Page {
+
+        final String title;
+        char[] types;
+        String[] targets;
+
+        Page(String title, char[] types, String[] targets) {
+            this.title = title;
+            this.types = types;
+            this.targets = targets;
+        }
+
+    }
+
+    /**
+     * Reads a partition file into a list of pages.
+     */
+    private static class PageLoader implements LinkHandler {
+
+        final List<Page> pages = new ArrayList<Page>();
+        private String title;
+        private char[] types = new char[16];
+        private String[] targets = new String[16];
+        private int size = 0;
+
+        public void handlePage(String title) {
+            flush();
+            this.title = title;
+        }
+
+        public void handleLink(char type, int distance, String title) {
+            if (size == types.length) {
+                types = Arrays.copyOf(types, 2 * size);
+                targets = Arrays.copyOf(targets, 2 * size);
+            }
+            types[size] = type;
+            targets[size++] = title;
+        }
+
+        void flush() {
+            if (title != null) {
+                pages.add(new Page(title, Arrays.copyOf(types, size), Arrays.copyOf(targets, size)));
+            }
+            size = 0;
+            title = null;
+        }
+
+    }
+
+    /**
+     * Compares one partition of the two files and writes the differences to
+     * its own file. Returns the added and removed counts by type rank.
+     */
+    private static class PartitionDiff implements Callable<long[][]> {
+
+        private final File workDir;
+        private final int partition;
+        private final long[][] counts = new long[2][TYPES.length];
+        private Writer out;
+
+        PartitionDiff(File workDir, int partition) {
+            this.workDir = workDir;
+            this.partition = partition;
+        }
+
+        public long[][] call() throws IOException {
+            List<Page> oldPages = load(partFile(workDir, "old", partition));
+            List<Page> newPages = load(partFile(workDir, "new", partition));
+            out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(partFile(workDir, "diff", partition)), Utf8.CHARSET), 1 << 16);
+            try {
+                int oldIndex = 0;
+                int newIndex = 0;
+                while (oldIndex < oldPages.size() || newIndex < newPages.size()) {
+                    Page oldPage = oldIndex < oldPages.size() ? oldPages.get(oldIndex) : null;
+                    Page newPage = newIndex < newPages.size() ? newPages.get(newIndex) : null;
+                    int order = oldPage == null ? 1 : newPage == null ? -1 : oldPage.title.compareTo(newPage.title);
+                    if (order < 0) {
+                        diffPage(oldPage.title, oldPage, null);
+                        oldIndex++;
+                    } else if (order > 0) {
+                        diffPage(newPage.title, null, newPage);
+                        newIndex++;
+                    } else {
+                        diffPage(oldPage.title, oldPage, newPage);
+                        oldIndex++;
+                        newIndex++;
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            return counts;
+        }
+
+        private List<Page> load(File file) throws IOException {
+            PageLoader loader = new PageLoader();
+            new BinaryLinkReader(file.getPath()).read(loader, true);
+            loader.flush();
+            file.delete();
+            List<Page> pages = loader.pages;
+            Collections.sort(pages, BY_TITLE);
+            // a title read twice keeps the links of both pages, as in the graph
+            List<Page> distinct = new ArrayList<Page>(pages.size());
+            for (Page page : pages) {
+                Page last = distinct.isEmpty() ? null : distinct.get(distinct.size() - 1);
+                if (last != null && last.title.equals(page.title)) {
+                    merge(last, page);
+                } else {
+                    distinct.add(page);
+                }
+            }
+            return distinct;
+        }
+
+        private static void merge(Page page, Page other) {
+            char[] types = new char[page.types.length + other.types.length];
+            String[] targets = new String[types.length];
+            int size = 0;
+            int i = 0;
+            int j = 0;
+            while (i < page.types.length || j < other.types.length) {
+                int order = compareLinks(page, i, other, j);
+                if (order <= 0) {
+                    types[size] = page.types[i];
+                    targets[size++] = page.targets[i++];
+                    if (order == 0) {
+                        j++;
+                    }
+                } else {
+                    types[size] = other.types[j];
+                    targets[size++] = other.targets[j++];
+                }
+            }
+            page.types = Arrays.copyOf(types, size);
+            page.targets = Arrays.copyOf(targets, size);
+        }
+
+        // either page may be null or past its last link
+        private void diffPage(String title, Page oldPage, Page newPage) throws IOException {
+            int oldSize = oldPage != null ? oldPage.types.length : 0;
+            int newSize = newPage != null ? newPage.types.length : 0;
+            int i = 0;
+            int j = 0;
+            while (i < oldSize || j < newSize) {
+                int order = i >= oldSize ? 1 : j >= newSize ? -1 : compareLinks(oldPage, i, newPage, j);
+                if (order < 0) {
+                    write('-', title, oldPage.types[i], oldPage.targets[i]);
+                    i++;
+                } else if (order > 0) {
+                    write('+', title, newPage.types[j], newPage.targets[j]);
+                    j++;
+                } else {
+                    i++;
+                    j++;
+                }
+            }
+        }
+
+        private static int compareLinks(Page page, int link, Page other, int otherLink) {
+            if (link >= page.types.length) {
+                return 1;
+            }
+            if (otherLink >= other.types.length) {
+                return -1;
+            }
+            int order = typeRank(page.types[link]) - typeRank(other.types[otherLink]);
+            return order != 0 ? order : page.targets[link].compareTo(other.targets[otherLink]);
+        }
+
+        private void write(char change, String title, char type, String target) throws IOException {
+            int rank = typeRank(type);
+            counts[change == '+' ? 0 : 1][rank]++;
+            out.write(change);
+            out.write('\t');
+            out.write(TYPE_NAMES[rank]);
+            out.write('\t');
+            out.write(title);
+            out.write('\t');
+            out.write(target);
+            out.write('\n');
+        }
+
+    }
+
+}
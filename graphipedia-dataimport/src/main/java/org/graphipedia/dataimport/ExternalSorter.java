@@ -0,0 +1,354 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts records of a byte key and a byte value by key, in unsigned byte
+ * order, within a fixed amount of memory. Records are collected in one
+ * buffer; each time it is full they are sorted and written to a run file,
+ * and sorted() merges the runs. Every file is written and read
+ * sequentially. Records with equal keys come out in no particular order.
+ * <p>
+ * The buffer is allocated by the first add() and released by sorted(), so
+ * sorters used one after the other hold one buffer at a time. A merge reads
+ * at most MAX_FAN_IN runs, each through a BUFFER_SIZE buffer: sorted()
+ * first merges runs beyond that into longer ones.
+ * <p>
+ * UTF-8 keys sort in code point order, and big-endian non-negative
+ * numbers in numeric order.
+ */
+public class ExternalSorter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_FAN_IN = 64;
+
+    private final File workDir;
+    private final String name;
+    private final int memory;
+    private byte[] buffer;
+    private int[] records;
+    private int[] scratch;
+    private int recordCount = 0;
+    private int bufferEnd = 0;
+    private boolean sorted = false;
+
+    private final List<File> runs = new ArrayList<File>();
+    private int spilledRuns = 0;
+    private int runNumber = 0;
+    private long size = 0;
+
+    /**
+     * @param memory the bytes of records, and their offsets, to hold in
+     *        memory before a run is written
+     */
+    public ExternalSorter(File workDir, String name, int memory) {
+        this.workDir = workDir;
+        this.name = name;
+        this.memory = memory;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of runs the records were spilled to, before any
+     * merge.
+     */
+    public int getRunCount() {
+        return spilledRuns;
+    }
+
+    public void add(byte[] key, int keyLength, byte[] value, int valueLength) throws IOException {
+        if (buffer == null) {
+            if (sorted) {
+                throw new IllegalStateException("records added to " + name + " after it was sorted");
+            }
+            // three quarters for the records, a quarter for their offsets and
+            // the merge sort's copy of them
+            buffer = new byte[Math.max(memory / 4 * 3, 1024)];
+            records = new int[Math.max(memory / 32, 64)];
+            scratch = new int[records.length];
+        }
+        int length = 4 + keyLength + valueLength;
+        if (length > buffer.length) {
+            throw new IllegalArgumentException("record of " + length + " bytes does not fit in memory");
+        }
+        if (bufferEnd + length > buffer.length || recordCount == records.length) {
+            writeRun();
+        }
+        int offset = bufferEnd;
+        writeShort(offset, keyLength);
+        writeShort(offset + 2, valueLength);
+        System.arraycopy(key, 0, buffer, offset + 4, keyLength);
+        System.arraycopy(value, 0, buffer, offset + 4 + keyLength, valueLength);
+        bufferEnd += length;
+        records[recordCount++] = offset;
+        size++;
+    }
+
+    /**
+     * Returns the records in key order. No record may be added after.
+     */
+    public Reader sorted() throws IOException {
+        if (recordCount > 0 || runs.isEmpty()) {
+            writeRun();
+        }
+        sorted = true;
+        buffer = null;
+        records = null;
+        scratch = null;
+        while (runs.size() > MAX_FAN_IN) {
+            mergeRuns();
+        }
+        return new MergeReader(runs);
+    }
+
+    /**
+     * Deletes the run files.
+     */
+    public void delete() {
+        for (File run : runs) {
+            run.delete();
+        }
+    }
+
+    private void writeRun() throws IOException {
+        mergeSort(records, scratch, 0, recordCount);
+        File run = new File(workDir, name + "." + runNumber++);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+        try {
+            for (int i = 0; i < recordCount; i++) {
+                int offset = records[i];
+                out.write(buffer, offset, 4 + readShort(offset) + readShort(offset + 2));
+            }
+        } finally {
+            out.close();
+        }
+        runs.add(run);
+        spilledRuns++;
+        recordCount = 0;
+        bufferEnd = 0;
+    }
+
+    // merges the oldest runs into one at the end, so that each pass over
+    // the records merges runs of about the same length
+    private void mergeRuns() throws IOException {
+        List<File> merged = runs.subList(0, MAX_FAN_IN);
+        File run = new File(workDir, name + "." + runNumber++);
+        MergeReader reader = new MergeReader(merged);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+        try {
+            while (reader.next()) {
+                out.writeShort(reader.getKeyLength());
+                out.writeShort(reader.getValueLength());
+                out.write(reader.getKey(), 0, reader.getKeyLength());
+                out.write(reader.getValue(), 0, reader.getValueLength());
+            }
+        } finally {
+            out.close();
+            reader.close();
+        }
+        for (File file : merged) {
+            file.delete();
+        }
+        merged.clear();
+        runs.add(run);
+    }
+
+    private void mergeSort(int[] order, int[] scratch, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(order, scratch, from, middle);
+        mergeSort(order, scratch, middle, to);
+        if (compareRecords(order[middle - 1], order[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(order, from, scratch, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || left < middle && compareRecords(scratch[left], scratch[right]) <= 0) {
+                order[i] = scratch[left++];
+            } else {
+                order[i] = scratch[right++];
+            }
+        }
+    }
+
+    private int compareRecords(int record, int other) {
+        return compare(buffer, record + 4, readShort(record), buffer, other + 4, readShort(other));
+    }
+
+    /**
+     * Compares two keys as unsigned bytes, as records are sorted.
+     */
+    public static int compare(byte[] key, int offset, int length, byte[] other, int otherOffset, int otherLength) {
+        int common = Math.min(length, otherLength);
+        for (int i = 0; i < common; i++) {
+            int difference = (key[offset + i] & 0xff) - (other[otherOffset + i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - otherLength;
+    }
+
+    private int readShort(int offset) {
+        return ((buffer[offset] & 0xff) << 8) | (buffer[offset + 1] & 0xff);
+    }
+
+    private void writeShort(int offset, int value) {
+        buffer[offset] = (byte) (value >>> 8);
+        buffer[offset + 1] = (byte) value;
+    }
+
+    /**
+     * Steps through sorted records. The key and value arrays are reused from
+     * one record to the next.
+     */
+    public interface Reader {
+
+        boolean next() throws IOException;
+
+        byte[] getKey();
+
+        int getKeyLength();
+
+        byte[] getValue();
+
+        int getValueLength();
+
+        void close() throws IOException;
+
+    }
+
+    private static class RunReader {
+
+        private final DataInputStream in;
+        byte[] key = new byte[256];
+        int keyLength;
+        byte[] value = new byte[64];
+        int valueLength;
+
+        RunReader(File run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), BUFFER_SIZE));
+        }
+
+        boolean next() throws IOException {
+            try {
+                keyLength = in.readUnsignedShort();
+            } catch (EOFException endOfRun) {
+                return false;
+            }
+            valueLength = in.readUnsignedShort();
+            if (keyLength > key.length) {
+                key = new byte[Math.max(keyLength, 2 * key.length)];
+            }
+            if (valueLength > value.length) {
+                value = new byte[Math.max(valueLength, 2 * value.length)];
+            }
+            in.readFully(key, 0, keyLength);
+            in.readFully(value, 0, valueLength);
+            return true;
+        }
+
+        int compareTo(RunReader other) {
+            return compare(key, 0, keyLength, other.key, 0, other.keyLength);
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+
+    }
+
+    private static class MergeReader implements Reader {
+
+        private final List<RunReader> runs = new ArrayList<RunReader>();
+        private final PriorityQueue<RunReader> queue;
+        private RunReader current;
+
+        MergeReader(List<File> files) throws IOException {
+            queue = new PriorityQueue<RunReader>(Math.max(files.size(), 1), new Comparator<RunReader>() {
+                public int compare(RunReader run, RunReader other) {
+                    return run.compareTo(other);
+                }
+            });
+            for (File file : files) {
+                RunReader run = new RunReader(file);
+                runs.add(run);
+                if (run.next()) {
+                    queue.add(run);
+                }
+            }
+        }
+
+        public boolean next() throws IOException {
+            if (current != null && current.next()) {
+                queue.add(current);
+            }
+            current = queue.poll();
+            return current != null;
+        }
+
+        public byte[] getKey() {
+            return current.key;
+        }
+
+        public int getKeyLength() {
+            return current.keyLength;
+        }
+
+        public byte[] getValue() {
+            return current.value;
+        }
+
+        public int getValueLength() {
+            return current.valueLength;
+        }
+
+        public void close() throws IOException {
+            for (RunReader run : runs) {
+                run.close();
+            }
+        }
+
+    }
+
+}
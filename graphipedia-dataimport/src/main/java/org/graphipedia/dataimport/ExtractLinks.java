@@ -21,45 +21,91 @@
 //
 package org.graphipedia.dataimport;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
-import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamWriter;
-
-import org.codehaus.stax2.XMLOutputFactory2;
 
 public class ExtractLinks {
 
+    private static final int DEFAULT_QUEUE_DEPTH = 1000;
+
+    private int threads = 1;
+    private int queueDepth = DEFAULT_QUEUE_DEPTH;
+    private int bzip2Threads = Runtime.getRuntime().availableProcessors();
+    private String bzip2Index;
+    private boolean regexParser = false;
+    private boolean binaryOutput = false;
+    private boolean titleTable = true;
+
     public static void main(String[] args) throws Exception {
-        if (args.length < 2) {
-            System.out.println("USAGE: ExtractLinks <input-file> <output-file>");
+        ExtractLinks self = new ExtractLinks();
+        List<String> files = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                self.threads = Integer.parseInt(args[++i]);
+            } else if ("--queue".equals(args[i]) && i + 1 < args.length) {
+                self.queueDepth = Integer.parseInt(args[++i]);
+            } else if ("--binary".equals(args[i])) {
+                self.binaryOutput = true;
+            } else if ("--no-title-table".equals(args[i])) {
+                self.titleTable = false;
+            } else if ("--regex".equals(args[i])) {
+                self.regexParser = true;
+            } else if ("--bzip2-threads".equals(args[i]) && i + 1 < args.length) {
+                self.bzip2Threads = Integer.parseInt(args[++i]);
+            } else if ("--bzip2-index".equals(args[i]) && i + 1 < args.length) {
+                self.bzip2Index = args[++i];
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.size() < 2) {
+            System.out.println("USAGE: ExtractLinks [--binary] [--no-title-table] [--threads <n>] [--queue <n>] [--regex] "
+                    + "[--bzip2-threads <n>] [--bzip2-index <index-file>] <input-file> <output-file>");
             System.exit(255);
         }
-        ExtractLinks self = new ExtractLinks();
-        self.extract(args[0], args[1]);
+        self.extract(files.get(0), files.get(1));
     }
 
     private void extract(String inputFile, String outputFile) throws IOException, XMLStreamException {
         System.out.println("Parsing pages and extracting links...");
         
         long startTime = System.currentTimeMillis();
-        XMLOutputFactory outputFactory = XMLOutputFactory2.newInstance();
+        FileOutputStream out = new FileOutputStream(outputFile);
+        LinkWriter writer = binaryOutput ? new BinaryLinkWriter(out) : new XmlLinkWriter(out);
         
-        XMLStreamWriter writer = outputFactory.createXMLStreamWriter(new FileOutputStream(outputFile), "UTF-8");
-        writer.writeStartDocument();
-        writer.writeStartElement("d");
-        
-        LinkExtractor linkExtractor = new LinkExtractor(writer);
+        LinkExtractor linkExtractor;
+        if (threads > 1) {
+            linkExtractor = new ParallelLinkExtractor(writer, threads, queueDepth);
+        } else {
+            linkExtractor = new LinkExtractor(writer);
+        }
+        linkExtractor.setRegexParser(regexParser);
+        TitleTableWriter titleTableWriter = titleTable ? new TitleTableWriter() : null;
+        linkExtractor.setTitleTable(titleTableWriter);
+        linkExtractor.setDecompressionThreads(bzip2Threads);
+        if (bzip2Index != null) {
+            linkExtractor.setMultistreamIndex(bzip2Index);
+        }
         linkExtractor.parse(inputFile);
-
-        writer.writeEndElement();
-        writer.writeEndDocument();
         writer.close();
         
         long elapsedSeconds = (System.currentTimeMillis() - startTime) / 1000;
         System.out.printf("\n%d pages parsed in %d seconds.\n", linkExtractor.getPageCount(), elapsedSeconds);
+
+        if (titleTableWriter != null) {
+            File titleFile = TitleTable.forLinkFile(outputFile);
+            int titleCount = titleTableWriter.write(titleFile);
+            System.out.printf("%d titles written to %s\n", titleCount, titleFile);
+            File indexFile = NormalizedTitleIndex.forTitleFile(titleFile);
+            int collisions = NormalizedTitleIndex.write(new TitleTable(titleFile), indexFile);
+            System.out.printf("normalised titles written to %s; %d titles shadowed by another with the same "
+                    + "normalised form\n", indexFile, collisions);
+        }
     }
 
 }
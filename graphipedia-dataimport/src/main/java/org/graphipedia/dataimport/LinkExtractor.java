@@ -21,22 +21,18 @@
 //
 package org.graphipedia.dataimport;
 
+import java.io.IOException;
+import java.nio.CharBuffer;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamWriter;
-
 public class LinkExtractor extends SimpleStaxParser {
 
     private static String REDIRECT_REGEX = "(#REDIRECT)";
     private static String LINK_REGEX = "\\[\\[(.+?)\\]\\]";
     private static String HEADER_REGEX = "={2,5}(.+?)={2,5}";
     private static String RELATED_REGEX = "\\{\\{(.+?)\\}\\}";
-    private static String CLASS_REGEX = "\\|\\|(.+?)////";
 
     private static String COMBO_REGEX = REDIRECT_REGEX + "|" +
                                         LINK_REGEX + "|" +
@@ -44,16 +40,26 @@ public class LinkExtractor extends SimpleStaxParser {
                                         RELATED_REGEX;
 
     private static final Pattern COMBO_PATTERN = Pattern.compile(COMBO_REGEX);
-    private static final Pattern CLASS_PATTERN = Pattern.compile(CLASS_REGEX);
 
-    private final XMLStreamWriter writer;
+    private static final int PAGE = 0;
+    private static final int TITLE = 1;
+    private static final int TEXT = 2;
+
+    private final LinkWriter writer;
     private final ProgressCounter pageCounter = new ProgressCounter();
 
+    private boolean regexParser = false;
+    private TitleTableWriter titleTable;
+
     private String title;
-    private String text;
+    private char[] text = new char[1 << 16];
+    private int textLength = -1;
 
-    public LinkExtractor(XMLStreamWriter writer) {
+    public LinkExtractor(LinkWriter writer) {
         super(Arrays.asList("page", "title", "text"));
+        // dump text is escaped, so title and text hold nothing but text
+        shareText("title");
+        shareText("text");
         this.writer = writer;
     }
 
@@ -61,117 +67,124 @@ public class LinkExtractor extends SimpleStaxParser {
         return pageCounter.getCount();
     }
 
+    /**
+     * Parses links with COMBO_PATTERN instead of LinkScanner. Both write the
+     * same output, so the two can be diffed against each other.
+     */
+    public void setRegexParser(boolean regexParser) {
+        this.regexParser = regexParser;
+    }
+
+    /**
+     * Also collects the title of every page written into the given table.
+     */
+    public void setTitleTable(TitleTableWriter titleTable) {
+        this.titleTable = titleTable;
+    }
+
     @Override
-    protected void handleElement(String element, String value) {
-        if ("page".equals(element)) {
+    protected void handleElement(int element, char[] chars, int start, int length) {
+        if (element == PAGE) {
             if (!title.contains(":")) {
-                try {
-                    writePage(title, text);
-                } catch (XMLStreamException streamException) {
-                    throw new RuntimeException(streamException);
-                }
+                handlePage(title, textLength >= 0 ? CharBuffer.wrap(text, 0, textLength) : null);
             }
             title = null;
-            text = null;
-        } else if ("title".equals(element)) {
-            title = value;
-        } else if ("text".equals(element)) {
-            text = value;
+            textLength = -1;
+        } else if (element == TITLE) {
+            title = new String(chars, start, length);
+        } else if (element == TEXT) {
+            if (length > text.length) {
+                text = new char[Math.max(length, text.length * 2)];
+            }
+            System.arraycopy(chars, start, text, 0, length);
+            textLength = length;
         }
     }
 
-    private void writePage(String title, String text) throws XMLStreamException {
-        writer.writeStartElement("p");
-        
-        writer.writeStartElement("t");
-        writer.writeCharacters(title);
-        writer.writeEndElement();
-        
-        Set<String> links = parseLinks(text);
-        links.remove(title);
-        
-        String linkclass = "";
-
-        for (String link : links) {
-
-            Matcher metadata = CLASS_PATTERN.matcher(link);
-
-            while(metadata.find()) {
-                linkclass = metadata.group(1);
-                link = link.replace(metadata.group(0),"||");
-            }
-
-            writer.writeStartElement(linkclass);
-            writer.writeCharacters(link);
-            writer.writeEndElement();
+    /**
+     * The text is only valid during the call.
+     */
+    protected void handlePage(String title, CharSequence text) {
+        try {
+            writePage(title, parseLinks(text));
+        } catch (IOException ioException) {
+            throw new RuntimeException(ioException);
         }
-        
-        writer.writeEndElement();
+    }
 
+    void writePage(String title, PageLinks links) throws IOException {
+        writer.writePage(title, links);
+        if (titleTable != null) {
+            titleTable.add(title);
+        }
         pageCounter.increment();
     }
 
-    private Set<String> parseLinks(String text) {
-        Set<String> links = new HashSet<String>();
+    PageLinks parseLinks(CharSequence text) {
+        PageLinks links = new PageLinks();
         if (text != null) {
-            Matcher matcher = COMBO_PATTERN.matcher(text);
-            Integer redirect_flag = 0;
-            Integer header_counter = 0;
-            // Integer link_counter = 0;
-            while (matcher.find()) {
-                if (matcher.group(1)!=null) { // redirect
-                    redirect_flag = 1;
-                } else if (matcher.group(2)!=null) { // link
-                    String link = matcher.group(2);
-                    String identifier = "l";
-
-                    if (redirect_flag==1) {
-                        identifier = "r";
-                    }
+            if (regexParser) {
+                parseLinksWithRegex(text, links);
+            } else {
+                LinkScanner.scan(text, links);
+            }
+            links.sort();
+        }
+        return links;
+    }
 
-                    if (!link.contains(":")) {
-                        if (link.contains("|")) {
-                            // link = link.substring(link.lastIndexOf('|') + 1);
-                            // String[] stringarr = link.split("\\|");
-                            // System.out.println(link);
-                            // System.out.println(stringarr[0]);
-                            try {
-                                links.add(buildLink(identifier,(link.split("\\|"))[0],header_counter));
-                            } catch(ArrayIndexOutOfBoundsException e) {
-                                System.out.println(link);
-                            }
-                            // links.add(buildLink(identifier,stringarr[1],header_counter));
+    private void parseLinksWithRegex(CharSequence text, PageLinks links) {
+        Matcher matcher = COMBO_PATTERN.matcher(text);
+        Integer redirect_flag = 0;
+        Integer header_counter = 0;
+        // Integer link_counter = 0;
+        while (matcher.find()) {
+            if (matcher.group(1)!=null) { // redirect
+                redirect_flag = 1;
+            } else if (matcher.group(2)!=null) { // link
+                String link = matcher.group(2);
+                char identifier = 'l';
+
+                if (redirect_flag==1) {
+                    identifier = 'r';
+                }
 
-                        } else {
-                            links.add(buildLink(identifier,link,header_counter));
+                if (!link.contains(":")) {
+                    if (link.contains("|")) {
+                        try {
+                            addLink(links, identifier,(link.split("\\|"))[0],header_counter);
+                        } catch(ArrayIndexOutOfBoundsException e) {
+                            System.out.println(link);
                         }
+                    } else {
+                        addLink(links, identifier,link,header_counter);
                     }
+                }
 
-                } else if (matcher.group(3)!=null) { // header
-                    header_counter++;
-                } else { // related link
-
-                    String[] arr = matcher.group(4).split("\\|");
-                    Integer i = 0;
-                    for(String str: arr) {
-                        if (i==0) {
-                            if (str.contains("Main")||str.contains("Related articles")) {
-                            } else {
-                                break;
-                            }
-                            i = 1;
+            } else if (matcher.group(3)!=null) { // header
+                header_counter++;
+            } else { // related link
+
+                String[] arr = matcher.group(4).split("\\|");
+                Integer i = 0;
+                for(String str: arr) {
+                    if (i==0) {
+                        if (str.contains("Main")||str.contains("Related articles")) {
                         } else {
-                            links.add(buildLink("h",str,header_counter));
+                            break;
                         }
+                        i = 1;
+                    } else {
+                        addLink(links, 'h',str,header_counter);
                     }
                 }
             }
         }
-        return links;
     }
 
-    private String buildLink(String identifier, String title, Integer counter) {
-        return "||" + identifier + "////" + Integer.toString(counter) + "||" + stripHash(title);
+    private void addLink(PageLinks links, char identifier, String title, Integer counter) {
+        String stripped = stripHash(title);
+        links.add(identifier, counter, stripped, 0, stripped.length());
     }
 
     private String stripHash(String title) {
@@ -0,0 +1,208 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport;
+
+/**
+ * Finds the same redirects, links, headers and related links as
+ * LinkExtractor's COMBO_PATTERN, in a single pass over the characters.
+ * <p>
+ * The regex semantics are kept on purpose, including the reluctant matches
+ * that stop at the first line terminator and headers swallowing any links
+ * inside them, so both parsers write the same output.
+ */
+class LinkScanner {
+
+    private static final String REDIRECT = "#REDIRECT";
+    private static final int MIN_HEADER_RUN = 2;
+    private static final int MAX_HEADER_RUN = 5;
+
+    private LinkScanner() {
+    }
+
+    static void scan(CharSequence text, PageLinks links) {
+        int length = text.length();
+        boolean redirect = false;
+        int headerCount = 0;
+        int i = 0;
+        while (i < length) {
+            int end = -1;
+            switch (text.charAt(i)) {
+            case '#':
+                if (startsWith(text, i, REDIRECT)) {
+                    redirect = true;
+                    end = i + REDIRECT.length();
+                }
+                break;
+            case '[':
+                end = findClose(text, i, '[', ']');
+                if (end >= 0) {
+                    addLink(text, i + 2, end - 2, redirect ? 'r' : 'l', headerCount, links);
+                }
+                break;
+            case '=':
+                end = findHeaderEnd(text, i);
+                if (end >= 0) {
+                    headerCount++;
+                }
+                break;
+            case '{':
+                end = findClose(text, i, '{', '}');
+                if (end >= 0) {
+                    addRelated(text, i + 2, end - 2, headerCount, links);
+                }
+                break;
+            }
+            i = end >= 0 ? end : i + 1;
+        }
+    }
+
+    // [[(.+?)]] and {{(.+?)}}: returns the end of the match, or -1
+    private static int findClose(CharSequence text, int start, char open, char close) {
+        int length = text.length();
+        if (start + 1 >= length || text.charAt(start + 1) != open) {
+            return -1;
+        }
+        for (int k = start + 2; k + 2 < length; k++) {
+            if (isLineTerminator(text.charAt(k))) {
+                return -1;
+            }
+            if (text.charAt(k + 1) == close && text.charAt(k + 2) == close) {
+                return k + 3;
+            }
+        }
+        return -1;
+    }
+
+    // ={2,5}(.+?)={2,5}: the opening run backs off one '=' at a time
+    private static int findHeaderEnd(CharSequence text, int start) {
+        int length = text.length();
+        int run = equalsRun(text, start);
+        for (int open = run; open >= MIN_HEADER_RUN; open--) {
+            for (int k = start + open; k + 2 < length; k++) {
+                if (isLineTerminator(text.charAt(k))) {
+                    break;
+                }
+                if (text.charAt(k + 1) == '=' && text.charAt(k + 2) == '=') {
+                    return k + 1 + equalsRun(text, k + 1);
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static int equalsRun(CharSequence text, int start) {
+        int length = text.length();
+        int run = 0;
+        while (run < MAX_HEADER_RUN && start + run < length && text.charAt(start + run) == '=') {
+            run++;
+        }
+        return run;
+    }
+
+    private static void addLink(CharSequence text, int start, int end, char type, int headerCount,
+            PageLinks links) {
+        if (indexOf(text, start, end, ':') >= 0) {
+            return;
+        }
+        // String.split drops trailing empty strings, so a link made of pipes only has no title
+        if (trimPipes(text, start, end) == start) {
+            return;
+        }
+        int pipe = indexOf(text, start, end, '|');
+        addTitle(text, start, pipe >= 0 ? pipe : end, type, headerCount, links);
+    }
+
+    private static void addRelated(CharSequence text, int start, int end, int headerCount, PageLinks links) {
+        end = trimPipes(text, start, end);
+        if (end == start) {
+            return;
+        }
+        int pipe = indexOf(text, start, end, '|');
+        int firstEnd = pipe >= 0 ? pipe : end;
+        if (indexOf(text, start, firstEnd, "Main") < 0 && indexOf(text, start, firstEnd, "Related articles") < 0) {
+            return;
+        }
+        while (pipe >= 0) {
+            int pieceStart = pipe + 1;
+            pipe = indexOf(text, pieceStart, end, '|');
+            addTitle(text, pieceStart, pipe >= 0 ? pipe : end, 'h', headerCount, links);
+        }
+    }
+
+    private static void addTitle(CharSequence text, int start, int end, char type, int headerCount,
+            PageLinks links) {
+        int hash = lastIndexOf(text, start, end, '#');
+        links.add(type, headerCount, text, start, hash >= 0 ? hash : end);
+    }
+
+    private static int trimPipes(CharSequence text, int start, int end) {
+        while (end > start && text.charAt(end - 1) == '|') {
+            end--;
+        }
+        return end;
+    }
+
+    // the characters '.' does not match without DOTALL
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static boolean startsWith(CharSequence text, int start, String prefix) {
+        if (start + prefix.length() > text.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (text.charAt(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence text, int start, int end, char c) {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(CharSequence text, int start, int end, char c) {
+        for (int i = end - 1; i >= start; i--) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(CharSequence text, int start, int end, String s) {
+        for (int i = start; i + s.length() <= end; i++) {
+            if (startsWith(text, i, s)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
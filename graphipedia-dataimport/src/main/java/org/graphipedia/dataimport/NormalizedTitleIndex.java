@@ -0,0 +1,264 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds the id of a title in a TitleTable with one binary search over the
+ * titles normalised by TitleNormalizer, so that "foo_bar#History" finds
+ * "Foo bar". Written next to the title table as &lt;titles-file&gt;.norm.
+ * <p>
+ * Almost every page title is its own normalised form, and those entries
+ * take their key from the title table itself; only the other titles store
+ * their normalised key here. When two titles have the same normalised form,
+ * the one that is already normalised wins, else the one with the lowest id.
+ * <p>
+ * The file is the magic number, the version, the entry count and the size
+ * of the stored keys, then the title id of each entry in key order, then
+ * for each entry -1 or the offset of its key, then the stored keys, each a
+ * two-byte length followed by UTF-8.
+ */
+public class NormalizedTitleIndex {
+
+    public static final String SUFFIX = ".norm";
+
+    private static final byte[] MAGIC = { 'G', 'P', 'N', 'T' };
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 12;
+    private static final int OWN_TITLE = -1;
+
+    private final TitleTable titles;
+    private final int size;
+    private final IntBuffer ids;
+    private final IntBuffer keyOffsets;
+    private final ByteBuffer keys;
+
+    private byte[] keyBuffer = new byte[1024];
+
+    public NormalizedTitleIndex(TitleTable titles, File file) throws IOException {
+        this.titles = titles;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            for (byte magicByte : MAGIC) {
+                if (header.get() != magicByte) {
+                    throw new IOException(file + " is not a normalised title index");
+                }
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported normalised title index version " + version);
+            }
+            size = header.getInt();
+            int keyBytes = header.getInt();
+            ids = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, 4L * size).asIntBuffer();
+            keyOffsets = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + 4L * size, 4L * size).asIntBuffer();
+            keys = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + 8L * size, keyBytes);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static File forTitleFile(File titleFile) {
+        return new File(titleFile.getPath() + SUFFIX);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the id of the page the title or link resolves to, or
+     * TitleTable.NOT_FOUND. Not safe for use by several threads at once.
+     */
+    public int find(String title) {
+        String key = TitleNormalizer.normalize(title);
+        if (key.length() * Utf8.MAX_BYTES_PER_CHAR > keyBuffer.length) {
+            keyBuffer = new byte[key.length() * Utf8.MAX_BYTES_PER_CHAR];
+        }
+        int length = Utf8.encode(key, 0, key.length(), keyBuffer, 0);
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compare(middle, keyBuffer, length);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return ids.get(middle);
+            }
+        }
+        return TitleTable.NOT_FOUND;
+    }
+
+    /**
+     * Returns the id of the page with exactly the given title, which is not
+     * the page its links resolve to if the title is not normalised and
+     * another title takes its normalised form, or TitleTable.NOT_FOUND.
+     */
+    public int findPage(String title) {
+        byte[] bytes = title.getBytes(Utf8.CHARSET);
+        return titles.find(bytes, 0, bytes.length);
+    }
+
+    private int compare(int entry, byte[] key, int length) {
+        int offset = keyOffsets.get(entry);
+        if (offset == OWN_TITLE) {
+            return titles.compare(ids.get(entry), key, 0, length);
+        }
+        int entryLength = keys.getShort(offset) & 0xffff;
+        offset += 2;
+        int common = Math.min(entryLength, length);
+        for (int i = 0; i < common; i++) {
+            int difference = (keys.get(offset + i) & 0xff) - (key[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return entryLength - length;
+    }
+
+    /**
+     * Writes the index of the given title table. Returns the number of
+     * titles whose normalised form is already taken by another title.
+     */
+    public static int write(TitleTable titles, File file) throws IOException {
+        // the titles that are not their own normalised form, sorted by key then id
+        List<Key> otherKeys = new ArrayList<Key>();
+        BitSet hasOtherKey = new BitSet(titles.size());
+        for (int id = 0; id < titles.size(); id++) {
+            String title = titles.getTitle(id);
+            String key = TitleNormalizer.normalize(title);
+            if (!key.equals(title)) {
+                hasOtherKey.set(id);
+                if (key.length() > 0) {
+                    otherKeys.add(new Key(key.getBytes(Utf8.CHARSET), id));
+                }
+            }
+        }
+        Collections.sort(otherKeys, new Comparator<Key>() {
+            public int compare(Key a, Key b) {
+                int comparison = compareBytes(a.bytes, b.bytes);
+                return comparison != 0 ? comparison : a.id - b.id;
+            }
+        });
+
+        // merge them with the other titles, which are already in key order
+        int[] ids = new int[titles.size()];
+        int[] keyOffsets = new int[titles.size()];
+        ByteArrayOutputStream keyData = new ByteArrayOutputStream();
+        int size = 0;
+        int collisions = 0;
+        int id = hasOtherKey.nextClearBit(0);
+        int next = 0;
+        byte[] lastKey = null;
+        while (id < titles.size() || next < otherKeys.size()) {
+            Key other = next < otherKeys.size() ? otherKeys.get(next) : null;
+            int comparison = id >= titles.size() ? 1
+                    : other == null ? -1 : titles.compare(id, other.bytes, 0, other.bytes.length);
+            if (comparison <= 0) {
+                lastKey = null;
+                if (comparison == 0) {
+                    collisions++;
+                    next++;
+                    lastKey = other.bytes;
+                }
+                ids[size] = id;
+                keyOffsets[size++] = OWN_TITLE;
+                id = hasOtherKey.nextClearBit(id + 1);
+            } else {
+                next++;
+                if (lastKey != null && Arrays.equals(lastKey, other.bytes)) {
+                    collisions++;
+                    continue;
+                }
+                ids[size] = other.id;
+                keyOffsets[size++] = keyData.size();
+                keyData.write(other.bytes.length >>> 8);
+                keyData.write(other.bytes.length);
+                keyData.write(other.bytes);
+                lastKey = other.bytes;
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            out.writeInt(keyData.size());
+            for (int i = 0; i < size; i++) {
+                out.writeInt(ids[i]);
+            }
+            for (int i = 0; i < size; i++) {
+                out.writeInt(keyOffsets[i]);
+            }
+            keyData.writeTo(out);
+        } finally {
+            out.close();
+        }
+        return collisions;
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int common = Math.min(a.length, b.length);
+        for (int i = 0; i < common; i++) {
+            int difference = (a[i] & 0xff) - (b[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static class Key {
+
+        final byte[] bytes;
+        final int id;
+
+        Key(byte[] bytes, int id) {
+            this.bytes = bytes;
+            this.id = id;
+        }
+
+    }
+
+}
@@ -0,0 +1,250 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport;
+
+import java.util.Arrays;
+
+/**
+ * The distinct links found on one page, in the order they were first found
+ * until sort() is called. Link titles are copied into a single char array,
+ * so adding a link does not allocate a String.
+ */
+public class PageLinks {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private char[] titleChars = new char[16 * INITIAL_CAPACITY];
+    private int charCount = 0;
+
+    private char[] types = new char[INITIAL_CAPACITY];
+    private int[] distances = new int[INITIAL_CAPACITY];
+    private int[] titleStarts = new int[INITIAL_CAPACITY];
+    private int[] titleLengths = new int[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // open addressing over entry index + 1, 0 marks a free slot
+    private int[] slots = new int[2 * INITIAL_CAPACITY];
+
+    public int size() {
+        return size;
+    }
+
+    public char getType(int link) {
+        return types[link];
+    }
+
+    public int getDistance(int link) {
+        return distances[link];
+    }
+
+    public char[] getTitleChars() {
+        return titleChars;
+    }
+
+    public int getTitleStart(int link) {
+        return titleStarts[link];
+    }
+
+    public int getTitleLength(int link) {
+        return titleLengths[link];
+    }
+
+    public String getTitle(int link) {
+        return new String(titleChars, titleStarts[link], titleLengths[link]);
+    }
+
+    public void add(char type, int distance, CharSequence text, int start, int end) {
+        int hash = 31 * type + distance;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        int mask = slots.length - 1;
+        int slot = mix(hash) & mask;
+        while (slots[slot] != 0) {
+            int link = slots[slot] - 1;
+            if (hashes[link] == hash && types[link] == type && distances[link] == distance
+                    && titleEquals(link, text, start, end)) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        append(type, distance, text, start, end, hash);
+        slots[slot] = size;
+        if (2 * size > slots.length) {
+            rehash();
+        }
+    }
+
+    /**
+     * Puts the links in a fixed order: by distance, then redirects before
+     * links before related links, then by title. Pages with the same links
+     * are then written the same, wherever the links were on the page, and
+     * the first link of a redirect page is still its redirect.
+     */
+    public void sort() {
+        int[] order = new int[size];
+        for (int link = 0; link < size; link++) {
+            order[link] = link;
+        }
+        int[] buffer = new int[size];
+        mergeSort(order, buffer, 0, size);
+        char[] sortedTypes = new char[types.length];
+        int[] sortedDistances = new int[distances.length];
+        int[] sortedStarts = new int[titleStarts.length];
+        int[] sortedLengths = new int[titleLengths.length];
+        int[] sortedHashes = new int[hashes.length];
+        for (int i = 0; i < size; i++) {
+            int link = order[i];
+            sortedTypes[i] = types[link];
+            sortedDistances[i] = distances[link];
+            sortedStarts[i] = titleStarts[link];
+            sortedLengths[i] = titleLengths[link];
+            sortedHashes[i] = hashes[link];
+        }
+        types = sortedTypes;
+        distances = sortedDistances;
+        titleStarts = sortedStarts;
+        titleLengths = sortedLengths;
+        hashes = sortedHashes;
+        Arrays.fill(slots, 0);
+        insertAll();
+    }
+
+    private void mergeSort(int[] order, int[] buffer, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(order, buffer, from, middle);
+        mergeSort(order, buffer, middle, to);
+        if (compare(order[middle - 1], order[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(order, from, buffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || left < middle && compare(buffer[left], buffer[right]) <= 0) {
+                order[i] = buffer[left++];
+            } else {
+                order[i] = buffer[right++];
+            }
+        }
+    }
+
+    private int compare(int link, int other) {
+        if (distances[link] != distances[other]) {
+            return distances[link] < distances[other] ? -1 : 1;
+        }
+        if (types[link] != types[other]) {
+            return typeRank(types[link]) - typeRank(types[other]);
+        }
+        int length = Math.min(titleLengths[link], titleLengths[other]);
+        for (int i = 0; i < length; i++) {
+            char c = titleChars[titleStarts[link] + i];
+            char d = titleChars[titleStarts[other] + i];
+            if (c != d) {
+                return c - d;
+            }
+        }
+        return titleLengths[link] - titleLengths[other];
+    }
+
+    private static int typeRank(char type) {
+        switch (type) {
+        case 'r':
+            return 0;
+        case 'l':
+            return 1;
+        default:
+            return 2;
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(slots, 0);
+        size = 0;
+        charCount = 0;
+    }
+
+    private boolean titleEquals(int link, CharSequence text, int start, int end) {
+        if (titleLengths[link] != end - start) {
+            return false;
+        }
+        int offset = titleStarts[link];
+        for (int i = start; i < end; i++) {
+            if (titleChars[offset++] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void append(char type, int distance, CharSequence text, int start, int end, int hash) {
+        if (size == types.length) {
+            int capacity = 2 * size;
+            types = Arrays.copyOf(types, capacity);
+            distances = Arrays.copyOf(distances, capacity);
+            titleStarts = Arrays.copyOf(titleStarts, capacity);
+            titleLengths = Arrays.copyOf(titleLengths, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+        }
+        int length = end - start;
+        if (charCount + length > titleChars.length) {
+            titleChars = Arrays.copyOf(titleChars, Math.max(2 * titleChars.length, charCount + length));
+        }
+        for (int i = start; i < end; i++) {
+            titleChars[charCount + i - start] = text.charAt(i);
+        }
+        types[size] = type;
+        distances[size] = distance;
+        titleStarts[size] = charCount;
+        titleLengths[size] = length;
+        hashes[size] = hash;
+        charCount += length;
+        size++;
+    }
+
+    private void rehash() {
+        slots = new int[2 * slots.length];
+        insertAll();
+    }
+
+    private void insertAll() {
+        int mask = slots.length - 1;
+        for (int link = 0; link < size; link++) {
+            int slot = mix(hashes[link]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = link + 1;
+        }
+    }
+
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        return hash ^ (hash >>> 13);
+    }
+
+}
@@ -0,0 +1,512 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * Decompresses a bzip2 file on several threads and returns the decompressed
+ * bytes in order.
+ * <p>
+ * With a multistream index (as published next to the
+ * pages-articles-multistream dumps) the file is cut at the stream offsets
+ * listed in the index and every stream is decoded on its own. Without one,
+ * the file is cut into chunks and every compressed block found by its magic
+ * number is rewrapped into a single-block stream and decoded on its own, the
+ * way pbzip2 and lbzip2 do it.
+ */
+public class ParallelBzip2InputStream extends InputStream {
+
+    private static final String MULTISTREAM_SUFFIX = "-multistream.xml.bz2";
+    private static final String MULTISTREAM_INDEX_SUFFIX = "-multistream-index.txt.bz2";
+
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int LOOKAHEAD_SIZE = 1 << 20;
+    private static final int MAX_END_CANDIDATES = 3;
+
+    private static final byte[] STREAM_HEADER = { 'B', 'Z', 'h', '9' };
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long END_OF_STREAM_MAGIC = 0x177245385090L;
+    private static final long MAGIC_MASK = 0xffffffffffffL;
+    private static final int MAGIC_BITS = 48;
+    private static final int CRC_BITS = 32;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileLength;
+    private final long[] streamOffsets;
+    private final int segmentCount;
+
+    private final ExecutorService decoders;
+    private final Deque<Future<Segment>> pending = new ArrayDeque<Future<Segment>>();
+    private final int windowSize;
+    private int nextSegment = 0;
+
+    private long coveredUntil = 0;
+    private byte[] current = new byte[0];
+    private int position = 0;
+
+    public ParallelBzip2InputStream(File bzip2File, int threads) throws IOException {
+        this(bzip2File, null, threads);
+    }
+
+    public ParallelBzip2InputStream(File bzip2File, File multistreamIndex, int threads) throws IOException {
+        file = new RandomAccessFile(bzip2File, "r");
+        channel = file.getChannel();
+        fileLength = channel.size();
+        if (multistreamIndex != null) {
+            streamOffsets = readStreamOffsets(multistreamIndex, fileLength, threads);
+            segmentCount = streamOffsets.length - 1;
+        } else {
+            streamOffsets = null;
+            segmentCount = (int) ((fileLength + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        }
+        decoders = Executors.newFixedThreadPool(threads, new DecoderThreadFactory());
+        windowSize = 2 * threads;
+        fillWindow();
+    }
+
+    /**
+     * Returns the index file that goes with a multistream dump, if there is
+     * one next to it.
+     */
+    public static File findMultistreamIndex(File bzip2File) {
+        String name = bzip2File.getName();
+        if (!name.endsWith(MULTISTREAM_SUFFIX)) {
+            return null;
+        }
+        String indexName = name.substring(0, name.length() - MULTISTREAM_SUFFIX.length()) + MULTISTREAM_INDEX_SUFFIX;
+        File index = new File(bzip2File.getParentFile(), indexName);
+        return index.isFile() ? index : null;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        int count = Math.min(length, current.length - position);
+        System.arraycopy(current, position, buffer, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        decoders.shutdownNow();
+        file.close();
+    }
+
+    private boolean ensureAvailable() throws IOException {
+        while (position == current.length) {
+            if (pending.isEmpty()) {
+                return false;
+            }
+            Segment segment = takeSegment(pending.poll());
+            fillWindow();
+            checkCoverage(segment);
+            current = segment.data;
+            position = 0;
+        }
+        return true;
+    }
+
+    private void fillWindow() {
+        while (pending.size() < windowSize && nextSegment < segmentCount) {
+            final int segment = nextSegment++;
+            pending.add(decoders.submit(new Callable<Segment>() {
+                public Segment call() throws IOException {
+                    return streamOffsets != null ? decodeStreams(segment) : decodeBlocks(segment);
+                }
+            }));
+        }
+    }
+
+    private Segment takeSegment(Future<Segment> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException decodeException) {
+            Throwable cause = decodeException.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    // a magic number that could not be decoded is only a false match if it
+    // lies inside a block that was decoded by the chunk before
+    private void checkCoverage(Segment segment) throws IOException {
+        if (segment.lastFailure >= 0 && segment.lastFailure >= coveredUntil) {
+            throw new IOException("corrupt bzip2 block at byte " + segment.lastFailure / 8);
+        }
+        if (segment.lastEnd >= 0) {
+            coveredUntil = segment.lastEnd;
+        }
+    }
+
+    private Segment decodeStreams(int segment) throws IOException {
+        long start = streamOffsets[segment];
+        byte[] compressed = readFully(start, (int) (streamOffsets[segment + 1] - start));
+        InputStream in = new BZip2CompressorInputStream(new ByteArrayInputStream(compressed), true);
+        return new Segment(readFully(in), -1, -1);
+    }
+
+    private Segment decodeBlocks(int segment) throws IOException {
+        long chunkStart = (long) segment * CHUNK_SIZE;
+        int chunkLength = (int) Math.min(CHUNK_SIZE, fileLength - chunkStart);
+        MagicScanner scanner = new MagicScanner(chunkStart, chunkLength);
+        // magic numbers starting inside this chunk end at most 6 bytes past it
+        scanner.scanUntil(chunkLength + MAGIC_BITS / 8);
+
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(5 * CHUNK_SIZE);
+        long chunkEndBit = 8L * chunkLength;
+        long localCoveredUntil = -1;
+        long lastFailure = -1;
+        for (int i = 0; i < scanner.count && scanner.positions[i] < chunkEndBit; i++) {
+            long start = scanner.positions[i];
+            if (!scanner.blockMagic[i] || start < localCoveredUntil) {
+                continue;
+            }
+            long end = decodeBlock(scanner, i, decoded);
+            if (end >= 0) {
+                localCoveredUntil = end;
+            } else if (localCoveredUntil < 0) {
+                lastFailure = 8 * chunkStart + start;
+            } else {
+                throw new IOException("corrupt bzip2 block at byte " + (chunkStart + start / 8));
+            }
+        }
+        long lastEnd = localCoveredUntil >= 0 ? 8 * chunkStart + localCoveredUntil : -1;
+        return new Segment(decoded.toByteArray(), lastFailure, lastEnd);
+    }
+
+    // a block ends where the next magic number starts, unless that one is a
+    // false match inside the compressed data, so a few candidates are tried
+    private long decodeBlock(MagicScanner scanner, int index, ByteArrayOutputStream decoded) throws IOException {
+        long start = scanner.positions[index];
+        for (int candidate = index + 1; candidate <= index + MAX_END_CANDIDATES; candidate++) {
+            while (candidate >= scanner.count) {
+                if (!scanner.scanMore()) {
+                    if (candidate == index + 1) {
+                        throw new EOFException("truncated bzip2 block at byte " + (scanner.bufferStart + start / 8));
+                    }
+                    return -1;
+                }
+            }
+            long end = scanner.positions[candidate];
+            try {
+                decoded.write(decodeSingleBlock(scanner.buffer, start, end));
+                return end;
+            } catch (IOException notABlock) {
+                // try the next candidate
+            } catch (RuntimeException notABlock) {
+                // try the next candidate
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] decodeSingleBlock(byte[] buffer, long startBit, long endBit) throws IOException {
+        BitWriter stream = new BitWriter((int) ((endBit - startBit) / 8) + 16);
+        for (byte headerByte : STREAM_HEADER) {
+            stream.writeBits(headerByte & 0xff, 8);
+        }
+        stream.copyBits(buffer, startBit, endBit);
+        // with one block in the stream, the stream CRC is the block CRC
+        long blockCrc = readBits(buffer, startBit + MAGIC_BITS, CRC_BITS);
+        stream.writeBits(END_OF_STREAM_MAGIC, MAGIC_BITS);
+        stream.writeBits(blockCrc, CRC_BITS);
+        InputStream in = new BZip2CompressorInputStream(
+                new ByteArrayInputStream(stream.buffer, 0, stream.byteLength()));
+        return readFully(in);
+    }
+
+    private byte[] readFully(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer.array();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1 << 16];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long readBits(byte[] buffer, long bit, int count) {
+        long value = 0;
+        for (int i = 0; i < count; i++, bit++) {
+            value = (value << 1) | ((buffer[(int) (bit >>> 3)] >>> (7 - (bit & 7))) & 1);
+        }
+        return value;
+    }
+
+    private static long[] readStreamOffsets(File index, long fileLength, int threads) throws IOException {
+        InputStream in = index.getName().endsWith(".bz2")
+                ? new ParallelBzip2InputStream(index, threads) : new FileInputStream(index);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        long[] offsets = new long[1024];
+        int count = 0;
+        offsets[count++] = 0;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                long offset = Long.parseLong(line.substring(0, colon));
+                if (offset != offsets[count - 1]) {
+                    if (count == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, 2 * count);
+                    }
+                    offsets[count++] = offset;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        offsets = Arrays.copyOf(offsets, count + 1);
+        offsets[count] = fileLength;
+        Arrays.sort(offsets);
+        int distinct = 1;
+        for (int i = 1; i < offsets.length && offsets[i] <= fileLength; i++) {
+            if (offsets[i] != offsets[distinct - 1]) {
+                offsets[distinct++] = offsets[i];
+            }
+        }
+        return Arrays.copyOf(offsets, distinct);
+    }
+
+    /**
+     * Finds the bit positions of block and end-of-stream magic numbers in a
+     * window of the file, reading further into the file on demand.
+     */
+    private class MagicScanner {
+
+        private final long bufferStart;
+        private byte[] buffer;
+        private int bufferLength;
+
+        private long[] positions = new long[16];
+        private boolean[] blockMagic = new boolean[16];
+        private int count = 0;
+
+        private long window = 0;
+        private int scanned = 0;
+
+        MagicScanner(long bufferStart, int chunkLength) throws IOException {
+            this.bufferStart = bufferStart;
+            this.bufferLength = (int) Math.min(chunkLength + LOOKAHEAD_SIZE, fileLength - bufferStart);
+            this.buffer = readFully(bufferStart, bufferLength);
+        }
+
+        void scanUntil(int limit) {
+            limit = Math.min(limit, bufferLength);
+            for (; scanned < limit; scanned++) {
+                window = (window << 8) | (buffer[scanned] & 0xff);
+                long endBit = 8L * (scanned + 1);
+                for (int shift = 7; shift >= 0; shift--) {
+                    long candidate = (window >>> shift) & MAGIC_MASK;
+                    if (candidate == BLOCK_MAGIC || candidate == END_OF_STREAM_MAGIC) {
+                        long startBit = endBit - shift - MAGIC_BITS;
+                        if (startBit >= 0) {
+                            add(startBit, candidate == BLOCK_MAGIC);
+                        }
+                    }
+                }
+            }
+        }
+
+        boolean scanMore() throws IOException {
+            if (scanned == bufferLength) {
+                long remaining = fileLength - bufferStart - bufferLength;
+                if (remaining <= 0) {
+                    return false;
+                }
+                int extra = (int) Math.min(LOOKAHEAD_SIZE, remaining);
+                buffer = Arrays.copyOf(buffer, bufferLength + extra);
+                System.arraycopy(readFully(bufferStart + bufferLength, extra), 0, buffer, bufferLength, extra);
+                bufferLength += extra;
+            }
+            int before = count;
+            while (count == before && scanned < bufferLength) {
+                scanUntil(scanned + 4096);
+            }
+            return true;
+        }
+
+        private void add(long position, boolean block) {
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, 2 * count);
+                blockMagic = Arrays.copyOf(blockMagic, 2 * count);
+            }
+            positions[count] = position;
+            blockMagic[count] = block;
+            count++;
+        }
+
+    }
+
+    private static class BitWriter {
+
+        private byte[] buffer;
+        private long bitLength = 0;
+
+        BitWriter(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        int byteLength() {
+            return (int) ((bitLength + 7) >>> 3);
+        }
+
+        void writeBits(long value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                writeBit((int) (value >>> i) & 1);
+            }
+        }
+
+        // the stream header leaves the writer byte aligned, so whole bytes
+        // can be shifted out of the source and only the tail goes bit by bit
+        void copyBits(byte[] source, long from, long to) {
+            int shift = (int) (from & 7);
+            int sourceByte = (int) (from >>> 3);
+            long wholeBytes = (to - from) >>> 3;
+            if ((bitLength & 7) == 0) {
+                ensureCapacity(byteLength() + (int) wholeBytes + 1);
+                int target = (int) (bitLength >>> 3);
+                for (int i = 0; i < wholeBytes; i++) {
+                    int value = (source[sourceByte + i] & 0xff) << shift;
+                    if (shift > 0) {
+                        value |= (source[sourceByte + i + 1] & 0xff) >>> (8 - shift);
+                    }
+                    buffer[target + i] = (byte) value;
+                }
+                bitLength += 8 * wholeBytes;
+                from += 8 * wholeBytes;
+            }
+            for (; from < to; from++) {
+                writeBit((source[(int) (from >>> 3)] >>> (7 - (from & 7))) & 1);
+            }
+        }
+
+        private void writeBit(int bit) {
+            int index = (int) (bitLength >>> 3);
+            ensureCapacity(index + 1);
+            if (bit != 0) {
+                buffer[index] |= 0x80 >>> (bitLength & 7);
+            }
+            bitLength++;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(capacity, 2 * buffer.length));
+            }
+        }
+
+    }
+
+    private static class Segment {
+
+        private final byte[] data;
+        private final long lastFailure;
+        private final long lastEnd;
+
+        Segment(byte[] data, long lastFailure, long lastEnd) {
+            this.data = data;
+            this.lastFailure = lastFailure;
+            this.lastEnd = lastEnd;
+        }
+
+    }
+
+    private static class DecoderThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "bzip2-decoder-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
@@ -0,0 +1,202 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * A LinkExtractor that runs the link parsing on a pool of worker threads.
+ * The parsing thread hands each page to the pool and queues the pending
+ * result; a single writer thread takes the results in queue order, so pages
+ * are written in the same order as the sequential extractor writes them.
+ */
+public class ParallelLinkExtractor extends LinkExtractor {
+
+    private static final int REPORT_STEP = 1000000;
+    private static final PendingPage END_OF_INPUT = new PendingPage(null, null);
+
+    private final int threads;
+    private final BlockingQueue<PendingPage> pendingPages;
+
+    private final StageCounter readerStage = new StageCounter("reader", 1);
+    private final StageCounter workerStage;
+    private final StageCounter writerStage = new StageCounter("writer", 1);
+
+    private ExecutorService workers;
+    private long startTime;
+    private long lastHandoff;
+    private volatile Throwable writerFailure;
+
+    public ParallelLinkExtractor(LinkWriter writer, int threads, int queueDepth) {
+        super(writer);
+        this.threads = threads;
+        this.pendingPages = new ArrayBlockingQueue<PendingPage>(queueDepth);
+        this.workerStage = new StageCounter("worker", threads);
+    }
+
+    @Override
+    public void parse(String fileName) throws IOException, XMLStreamException {
+        workers = Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+        Thread writerThread = new Thread(new PageWriter(), "link-writer");
+        startTime = System.nanoTime();
+        lastHandoff = startTime;
+        writerThread.start();
+        try {
+            super.parse(fileName);
+        } finally {
+            putPending(END_OF_INPUT);
+            joinWriter(writerThread);
+            workers.shutdownNow();
+        }
+        if (writerFailure != null) {
+            throw new RuntimeException(writerFailure);
+        }
+        printReport();
+    }
+
+    @Override
+    protected void handlePage(String title, CharSequence text) {
+        if (writerFailure != null) {
+            throw new RuntimeException(writerFailure);
+        }
+        final String pageText = text != null ? text.toString() : null;
+        long handoff = System.nanoTime();
+        Future<PageLinks> links = workers.submit(new Callable<PageLinks>() {
+            public PageLinks call() {
+                long start = System.nanoTime();
+                PageLinks links = parseLinks(pageText);
+                workerStage.record(System.nanoTime() - start, 0);
+                return links;
+            }
+        });
+        putPending(new PendingPage(title, links));
+        long now = System.nanoTime();
+        readerStage.record(handoff - lastHandoff, now - handoff);
+        lastHandoff = now;
+    }
+
+    private void putPending(PendingPage page) {
+        try {
+            pendingPages.put(page);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(interrupted);
+        }
+    }
+
+    private void joinWriter(Thread writerThread) {
+        try {
+            writerThread.join();
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(interrupted);
+        }
+    }
+
+    private void printReport() {
+        long elapsed = System.nanoTime() - startTime;
+        System.out.println();
+        System.out.println(readerStage.report(elapsed));
+        System.out.println(workerStage.report(elapsed));
+        System.out.println(writerStage.report(elapsed));
+    }
+
+    private class PageWriter implements Runnable {
+
+        public void run() {
+            try {
+                while (true) {
+                    long waitStart = System.nanoTime();
+                    PendingPage page = pendingPages.take();
+                    if (page == END_OF_INPUT) {
+                        break;
+                    }
+                    PageLinks links = page.links.get();
+                    long writeStart = System.nanoTime();
+                    writePage(page.title, links);
+                    writerStage.record(System.nanoTime() - writeStart, writeStart - waitStart);
+                    if (writerStage.getCount() % REPORT_STEP == 0) {
+                        printReport();
+                    }
+                }
+            } catch (InterruptedException interrupted) {
+                writerFailure = interrupted;
+            } catch (ExecutionException workerException) {
+                writerFailure = workerException.getCause();
+                drain();
+            } catch (IOException ioException) {
+                writerFailure = ioException;
+                drain();
+            } catch (RuntimeException runtimeException) {
+                writerFailure = runtimeException;
+                drain();
+            }
+        }
+
+        // keep taking pages so the reader never blocks on a dead writer
+        private void drain() {
+            try {
+                while (pendingPages.take() != END_OF_INPUT) {
+                }
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+    private static class PendingPage {
+
+        private final String title;
+        private final Future<PageLinks> links;
+
+        PendingPage(String title, Future<PageLinks> links) {
+            this.title = title;
+            this.links = links;
+        }
+
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "link-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
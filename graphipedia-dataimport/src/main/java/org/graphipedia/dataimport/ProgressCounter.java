@@ -27,7 +27,16 @@ public class ProgressCounter {
     private static final int SMALL_STEP = 1 * THOUSAND;
     private static final int BIG_STEP = 50 * THOUSAND;
 
-    private int count = 0;
+    private int count;
+
+    public ProgressCounter() {
+        this(0);
+    }
+
+    // for counts that go on from an earlier run
+    public ProgressCounter(int count) {
+        this.count = count;
+    }
 
     public int getCount() {
         return count;
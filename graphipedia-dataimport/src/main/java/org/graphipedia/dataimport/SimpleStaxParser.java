@@ -21,10 +21,11 @@
 //
 package org.graphipedia.dataimport;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.xml.stream.XMLInputFactory;
@@ -34,29 +35,113 @@ import javax.xml.stream.events.XMLEvent;
 
 import org.codehaus.stax2.XMLInputFactory2;
 
+/**
+ * Streams an XML file and hands the text of a few interesting elements to
+ * handleElement.
+ * <p>
+ * Elements are identified by their index in the list of interesting
+ * elements, and their text is given as a trimmed range of a char array that
+ * is only valid during the call. Subclasses that still want strings can
+ * override handleElement(String, String) instead. By default the text is
+ * copied into a buffer of the parser's own; elements passed to shareText
+ * get the reader's buffer itself.
+ */
 public abstract class SimpleStaxParser {
 
+    protected static final int OTHER_ELEMENT = -1;
+
     private static final String STDIN_FILENAME = "-";
+    private static final String BZIP2_SUFFIX = ".bz2";
     private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory2.newInstance();
+    private static final XMLInputFactory COALESCING_INPUT_FACTORY = XMLInputFactory2.newInstance();
+
+    static {
+        COALESCING_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
 
-    private final List<String> interestingElements;
+    private final String[] elementNames;
+    private final boolean[] sharedText;
+    private boolean sharingText = false;
+
+    private int[] elementStack = new int[16];
+    private char[] textBuffer = new char[1024];
+
+    private int decompressionThreads = Runtime.getRuntime().availableProcessors();
+    private String multistreamIndex;
 
     public SimpleStaxParser(List<String> interestingElements) {
-        this.interestingElements = interestingElements;
+        this.elementNames = new String[interestingElements.size()];
+        for (int element = 0; element < elementNames.length; element++) {
+            // StAX readers intern element names, so equals mostly stops at ==
+            elementNames[element] = interestingElements.get(element).intern();
+        }
+        this.sharedText = new boolean[elementNames.length];
+    }
+
+    public void setDecompressionThreads(int decompressionThreads) {
+        this.decompressionThreads = decompressionThreads;
+    }
+
+    public void setMultistreamIndex(String multistreamIndex) {
+        this.multistreamIndex = multistreamIndex;
+    }
+
+    /**
+     * Hands the element's text to handleElement straight from the reader's
+     * buffer, as soon as it is read, instead of copying it first. The reader
+     * then coalesces adjacent text, so this is only for elements that hold
+     * nothing but text: a child element or a comment inside one is an error.
+     */
+    protected void shareText(String element) {
+        int id = getElementId(element);
+        if (id == OTHER_ELEMENT) {
+            throw new IllegalArgumentException(element + " is not an interesting element");
+        }
+        sharedText[id] = true;
+        sharingText = true;
+    }
+
+    protected String getElementName(int element) {
+        return elementNames[element];
+    }
+
+    protected int getElementId(String name) {
+        for (int element = 0; element < elementNames.length; element++) {
+            if (elementNames[element].equals(name)) {
+                return element;
+            }
+        }
+        return OTHER_ELEMENT;
+    }
+
+    /**
+     * Called at the end of each interesting element, or for a shared one as
+     * soon as its text is read, with the element's trimmed text in
+     * text[start] to text[start + length - 1].
+     */
+    protected void handleElement(int element, char[] text, int start, int length) {
+        handleElement(elementNames[element], new String(text, start, length));
     }
 
-    protected abstract void handleElement(String element, String value);
+    protected void handleElement(String element, String value) {
+    }
 
     public void parse(String fileName) throws IOException, XMLStreamException {
         if (STDIN_FILENAME.equals(fileName)) {
             parse(System.in);
+        } else if (fileName.endsWith(BZIP2_SUFFIX)) {
+            File file = new File(fileName);
+            File index = multistreamIndex != null
+                    ? new File(multistreamIndex) : ParallelBzip2InputStream.findMultistreamIndex(file);
+            parse(new ParallelBzip2InputStream(file, index, decompressionThreads));
         } else {
             parse(new FileInputStream(fileName));
         }
     }
 
     private void parse(InputStream inputStream) throws IOException, XMLStreamException {
-        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(inputStream, "UTF-8");
+        XMLInputFactory factory = sharingText ? COALESCING_INPUT_FACTORY : XML_INPUT_FACTORY;
+        XMLStreamReader reader = factory.createXMLStreamReader(inputStream, "UTF-8");
         try {
             parseElements(reader);
         } finally {
@@ -66,32 +151,120 @@ public abstract class SimpleStaxParser {
     }
 
     private void parseElements(XMLStreamReader reader) throws XMLStreamException {
-        LinkedList<String> elementStack = new LinkedList<String>();
-        StringBuilder textBuffer = new StringBuilder();
-        
+        int depth = 0;
+        int textLength = 0;
+        boolean textHandled = false;
+        elementStack[0] = OTHER_ELEMENT;
+
         while (reader.hasNext()) {
             switch (reader.next()) {
             case XMLEvent.START_ELEMENT:
-                elementStack.push(reader.getName().getLocalPart());
-                textBuffer.setLength(0);
+                if (isShared(elementStack[depth])) {
+                    throw textOnly(reader, elementStack[depth]);
+                }
+                if (++depth == elementStack.length) {
+                    elementStack = Arrays.copyOf(elementStack, depth * 2);
+                }
+                elementStack[depth] = getElementId(reader.getLocalName());
+                textLength = 0;
+                textHandled = false;
                 break;
             case XMLEvent.END_ELEMENT:
-                String element = elementStack.pop();
-                if (isInteresting(element)) {
-                    handleElement(element, textBuffer.toString().trim());
+                int element = elementStack[depth--];
+                if (element != OTHER_ELEMENT && !textHandled) {
+                    handleText(element, textBuffer, 0, textLength);
                 }
+                textHandled = false;
                 break;
             case XMLEvent.CHARACTERS:
-                if (isInteresting(elementStack.peek())) {
-                    textBuffer.append(reader.getText());
+                int current = elementStack[depth];
+                if (isShared(current)) {
+                    if (textHandled) {
+                        throw textOnly(reader, current);
+                    }
+                    handleText(current, reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    textHandled = true;
+                } else if (current != OTHER_ELEMENT) {
+                    textLength = appendText(reader, textLength);
                 }
                 break;
             }
         }
     }
 
-    private boolean isInteresting(String element) {
-        return interestingElements.contains(element);
+    private boolean isShared(int element) {
+        return element != OTHER_ELEMENT && sharedText[element];
+    }
+
+    private int appendText(XMLStreamReader reader, int textLength) {
+        int length = reader.getTextLength();
+        if (textLength + length > textBuffer.length) {
+            textBuffer = Arrays.copyOf(textBuffer, Math.max(textBuffer.length * 2, textLength + length));
+        }
+        System.arraycopy(reader.getTextCharacters(), reader.getTextStart(), textBuffer, textLength, length);
+        return textLength + length;
+    }
+
+    private void handleText(int element, char[] text, int start, int length) {
+        int end = start + length;
+        while (start < end && text[start] <= ' ') {
+            start++;
+        }
+        while (end > start && text[end - 1] <= ' ') {
+            end--;
+        }
+        handleElement(element, text, start, end - start);
+    }
+
+    private XMLStreamException textOnly(XMLStreamReader reader, int element) {
+        return new XMLStreamException("<" + elementNames[element] + "> may only contain text",
+                reader.getLocation());
+    }
+
+    /**
+     * Returns the index of the first occurrence of s in text[start] to
+     * text[end - 1], or -1.
+     */
+    protected static int indexOf(char[] text, int start, int end, String s) {
+        int last = end - s.length();
+        for (int i = start; i <= last; i++) {
+            int k = 0;
+            while (k < s.length() && text[i + k] == s.charAt(k)) {
+                k++;
+            }
+            if (k == s.length()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a decimal int like Integer.parseInt, without making a string.
+     */
+    protected static int parseInt(char[] text, int start, int end) {
+        boolean negative = start < end && text[start] == '-';
+        int i = negative || (start < end && text[start] == '+') ? start + 1 : start;
+        if (i >= end || end - i > 10) {
+            throw numberFormat(text, start, end);
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = text[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw numberFormat(text, start, end);
+            }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw numberFormat(text, start, end);
+        }
+        return (int) value;
+    }
+
+    private static NumberFormatException numberFormat(char[] text, int start, int end) {
+        return new NumberFormatException("For input string: \"" + new String(text, start, Math.max(end - start, 0)) + "\"");
     }
 
 }
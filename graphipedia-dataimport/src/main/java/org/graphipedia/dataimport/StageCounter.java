@@ -0,0 +1,76 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the items passing through one stage of a pipeline, and how long the
+ * stage spent working on them versus waiting on its neighbours.
+ */
+public class StageCounter {
+
+    private static final double NANOS_PER_SECOND = 1000000000.0;
+
+    private final String name;
+    private final int parallelism;
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    public StageCounter(String name, int parallelism) {
+        this.name = name;
+        this.parallelism = parallelism;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public void record(long busy, long wait) {
+        record(1, busy, wait);
+    }
+
+    // for stages that work on batches of items
+    public void record(int items, long busy, long wait) {
+        count.addAndGet(items);
+        busyNanos.addAndGet(busy);
+        waitNanos.addAndGet(wait);
+    }
+
+    // capacity is the rate the stage would sustain if it never had to wait:
+    // the stage whose capacity is closest to the overall rate is the bottleneck
+    public String report(long elapsedNanos) {
+        long items = count.get();
+        double busySeconds = busyNanos.get() / NANOS_PER_SECOND / parallelism;
+        double waitSeconds = waitNanos.get() / NANOS_PER_SECOND / parallelism;
+        return String.format("%-7s x%-3d %10d items, %8.0f/sec overall, %8.0f/sec capacity, %6.0fs waiting",
+                name, parallelism, items, rate(items, elapsedNanos / NANOS_PER_SECOND),
+                rate(items, busySeconds), waitSeconds);
+    }
+
+    private static double rate(long items, double seconds) {
+        return seconds > 0 ? items / seconds : 0;
+    }
+
+}
@@ -0,0 +1,484 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps page titles to node ids without keeping the titles on the heap.
+ * <p>
+ * Each entry is a record of node id, length and UTF-8 title bytes in an
+ * arena of 64 MB pages, allocated off-heap or mapped from a backing file.
+ * The hash table is a single off-heap array of longs, each slot holding the
+ * top bits of the title's 64-bit hash next to the arena offset of its record,
+ * so most probes that miss are rejected without touching the arena.
+ * <p>
+ * Lookups may run on several threads at once, as long as nothing is added
+ * while they do.
+ */
+public class TitleDictionary {
+
+    public static final long NOT_FOUND = -1;
+
+    private static final int PAGE_SHIFT = 26;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int ID_BYTES = 8;
+    private static final int LENGTH_BYTES = 2;
+    static final int MAX_TITLE_BYTES = 0xffff;
+
+    private static final byte[] SNAPSHOT_MAGIC = { 'G', 'P', 'T', 'D' };
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private static final int MAX_CAPACITY = 1 << 28;
+    private static final double MAX_LOAD = 0.75;
+
+    private final List<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+    private final RandomAccessFile backingFile;
+    private long arenaEnd = 0;
+
+    private LongBuffer slots;
+    private int mask;
+    private int size = 0;
+    private long titleChars = 0;
+
+    private final ThreadLocal<byte[]> keyBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[1024];
+        }
+    };
+
+    public TitleDictionary(int expectedSize) {
+        this.backingFile = null;
+        allocateSlots(capacityFor(expectedSize));
+    }
+
+    /**
+     * Creates a dictionary whose arena is mapped from the given file rather
+     * than allocated in memory. The file is overwritten.
+     */
+    public TitleDictionary(int expectedSize, File backingFile) throws IOException {
+        this.backingFile = new RandomAccessFile(backingFile, "rw");
+        this.backingFile.setLength(0);
+        allocateSlots(capacityFor(expectedSize));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void put(CharSequence title, long id) {
+        byte[] key = encode(title);
+        int length = Utf8.encode(title, 0, title.length(), key, 0);
+        if (length > MAX_TITLE_BYTES) {
+            throw new IllegalArgumentException("title too long: " + title);
+        }
+        put(key, length, id);
+    }
+
+    /**
+     * Adds a title already encoded as UTF-8.
+     */
+    public void put(byte[] key, int length, long id) {
+        if (length > MAX_TITLE_BYTES) {
+            throw new IllegalArgumentException("title too long: " + Utf8.decode(key, 0, length));
+        }
+        long hash = hash(key, 0, length);
+        int slot = findSlot(hash, key, 0, length);
+        long entry = slots.get(slot);
+        if (entry != 0) {
+            page(entry & OFFSET_MASK).putLong(pageOffset(entry & OFFSET_MASK), id);
+            return;
+        }
+        long offset = append(key, length, id);
+        slots.put(slot, (fingerprint(hash) << OFFSET_BITS) | offset);
+        size++;
+        titleChars += charCount(key, length);
+        if (size > MAX_LOAD * (mask + 1)) {
+            allocateSlots(2 * (mask + 1));
+        }
+    }
+
+    public long get(CharSequence title) {
+        byte[] key = encode(title);
+        int length = Utf8.encode(title, 0, title.length(), key, 0);
+        return get(key, 0, length);
+    }
+
+    public long get(byte[] title, int offset, int length) {
+        long entry = slots.get(findSlot(hash(title, offset, length), title, offset, length));
+        if (entry == 0) {
+            return NOT_FOUND;
+        }
+        long record = entry & OFFSET_MASK;
+        return page(record).getLong(pageOffset(record));
+    }
+
+    /**
+     * Receives each title and id of the dictionary.
+     */
+    public interface EntryVisitor {
+
+        void visit(byte[] title, int length, long id);
+
+    }
+
+    /**
+     * Calls the visitor for each entry, in no particular order. The title
+     * array is reused from one call to the next.
+     */
+    public void visitEntries(EntryVisitor visitor) {
+        byte[] title = new byte[MAX_TITLE_BYTES];
+        for (int slot = 0; slot <= mask; slot++) {
+            long entry = slots.get(slot);
+            if (entry == 0) {
+                continue;
+            }
+            long record = entry & OFFSET_MASK;
+            ByteBuffer page = page(record);
+            int position = pageOffset(record);
+            long id = page.getLong(position);
+            int length = page.getShort(position + ID_BYTES) & 0xffff;
+            position += ID_BYTES + LENGTH_BYTES;
+            for (int i = 0; i < length; i++) {
+                title[i] = page.get(position + i);
+            }
+            visitor.visit(title, length, id);
+        }
+    }
+
+    /**
+     * Writes every title and id to a file, from which readSnapshot restores
+     * them. The file is replaced only once it is complete.
+     */
+    public void writeSnapshot(File file) throws IOException {
+        File partFile = new File(file.getPath() + ".part");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partFile), 1 << 16));
+        try {
+            out.write(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(size);
+            for (int slot = 0; slot <= mask; slot++) {
+                long entry = slots.get(slot);
+                if (entry == 0) {
+                    continue;
+                }
+                long record = entry & OFFSET_MASK;
+                ByteBuffer page = page(record);
+                int position = pageOffset(record);
+                int length = page.getShort(position + ID_BYTES) & 0xffff;
+                out.writeShort(length);
+                for (int i = 0; i < length; i++) {
+                    out.write(page.get(position + ID_BYTES + LENGTH_BYTES + i));
+                }
+                out.writeLong(page.getLong(position));
+            }
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete() || !partFile.renameTo(file)) {
+            throw new IOException("cannot replace " + file);
+        }
+    }
+
+    /**
+     * Adds the titles and ids of a file written by writeSnapshot.
+     */
+    public void readSnapshot(File file) throws IOException {
+        DataInputStream in = openSnapshot(file);
+        try {
+            int count = in.readInt();
+            byte[] key = new byte[MAX_TITLE_BYTES];
+            for (int i = 0; i < count; i++) {
+                int length = in.readShort() & 0xffff;
+                in.readFully(key, 0, length);
+                put(key, length, in.readLong());
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes one snapshot with the entries of several, adding idOffsets[i]
+     * to the ids of files[i], without loading any of them. The titles of
+     * the snapshots must be distinct.
+     */
+    public static void mergeSnapshots(List<File> files, long[] idOffsets, File file) throws IOException {
+        int count = 0;
+        for (File snapshot : files) {
+            DataInputStream in = openSnapshot(snapshot);
+            try {
+                count += in.readInt();
+            } finally {
+                in.close();
+            }
+        }
+        File partFile = new File(file.getPath() + ".part");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partFile), 1 << 16));
+        try {
+            out.write(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(count);
+            byte[] key = new byte[MAX_TITLE_BYTES];
+            for (int i = 0; i < files.size(); i++) {
+                DataInputStream in = openSnapshot(files.get(i));
+                try {
+                    int entries = in.readInt();
+                    for (int entry = 0; entry < entries; entry++) {
+                        int length = in.readShort() & 0xffff;
+                        in.readFully(key, 0, length);
+                        long id = in.readLong();
+                        out.writeShort(length);
+                        out.write(key, 0, length);
+                        out.writeLong(id != NOT_FOUND ? id + idOffsets[i] : NOT_FOUND);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete() || !partFile.renameTo(file)) {
+            throw new IOException("cannot replace " + file);
+        }
+    }
+
+    // opens a snapshot and reads its header, up to the entry count
+    private static DataInputStream openSnapshot(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        boolean valid = false;
+        try {
+            for (byte magicByte : SNAPSHOT_MAGIC) {
+                if (in.readByte() != magicByte) {
+                    throw new IOException(file + " is not a title dictionary snapshot");
+                }
+            }
+            int version = in.readInt();
+            if (version != SNAPSHOT_VERSION) {
+                throw new IOException("unsupported title dictionary snapshot version " + version);
+            }
+            valid = true;
+            return in;
+        } finally {
+            if (!valid) {
+                in.close();
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        pages.clear();
+        slots = null;
+        if (backingFile != null) {
+            backingFile.close();
+        }
+    }
+
+    /**
+     * Compares the memory used by this dictionary with an estimate of what a
+     * HashMap&lt;String, Long&gt; with the same titles takes on a 64-bit JVM
+     * with compressed oops.
+     */
+    public String memoryReport() {
+        long arenaBytes = (long) pages.size() * PAGE_SIZE;
+        long slotBytes = 8L * (mask + 1);
+        long hashMapTable = 1;
+        while (hashMapTable < size / 0.75) {
+            hashMapTable <<= 1;
+        }
+        // a 4 byte table reference, then entry 32, String 24, char[] 16 + 2 per char, Long 16
+        long hashMapBytes = 4 * hashMapTable + size * (32L + 24 + 16 + 16) + 2 * titleChars;
+        return String.format("title dictionary: %d titles, %d MB arena %s (%d MB used), %d MB slots off-heap; "
+                + "a HashMap<String, Long> would take ~%d MB of heap",
+                size, arenaBytes >> 20, backingFile != null ? "mapped" : "off-heap", arenaEnd >> 20,
+                slotBytes >> 20, hashMapBytes >> 20);
+    }
+
+    // the UTF-16 length of a UTF-8 title: one char per lead byte, two for
+    // the four byte sequences of supplementary characters
+    private static int charCount(byte[] key, int length) {
+        int chars = 0;
+        for (int i = 0; i < length; i++) {
+            if ((key[i] & 0xc0) != 0x80) {
+                chars += (key[i] & 0xf8) == 0xf0 ? 2 : 1;
+            }
+        }
+        return chars;
+    }
+
+    private byte[] encode(CharSequence title) {
+        byte[] key = keyBuffers.get();
+        if (title.length() * Utf8.MAX_BYTES_PER_CHAR > key.length) {
+            key = new byte[title.length() * Utf8.MAX_BYTES_PER_CHAR];
+            keyBuffers.set(key);
+        }
+        return key;
+    }
+
+    // returns the slot holding the title, or the free slot where it belongs
+    private int findSlot(long hash, byte[] key, int offset, int length) {
+        long fingerprint = fingerprint(hash);
+        int slot = (int) hash & mask;
+        while (true) {
+            long entry = slots.get(slot);
+            if (entry == 0 || ((entry >>> OFFSET_BITS) == fingerprint && matches(entry & OFFSET_MASK, key, offset, length))) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean matches(long record, byte[] key, int offset, int length) {
+        ByteBuffer page = page(record);
+        int position = pageOffset(record) + ID_BYTES;
+        if ((page.getShort(position) & 0xffff) != length) {
+            return false;
+        }
+        position += LENGTH_BYTES;
+        for (int i = 0; i < length; i++) {
+            if (page.get(position + i) != key[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long append(byte[] key, int length, long id) {
+        int recordLength = ID_BYTES + LENGTH_BYTES + length;
+        if (pageOffset(arenaEnd) + recordLength > PAGE_SIZE) {
+            arenaEnd = (arenaEnd | (PAGE_SIZE - 1)) + 1;
+        }
+        while (pages.size() <= (int) (arenaEnd >>> PAGE_SHIFT)) {
+            pages.add(allocatePage(pages.size()));
+        }
+        long record = arenaEnd;
+        ByteBuffer page = page(record);
+        int position = pageOffset(record);
+        page.putLong(position, id);
+        page.putShort(position + ID_BYTES, (short) length);
+        position += ID_BYTES + LENGTH_BYTES;
+        for (int i = 0; i < length; i++) {
+            page.put(position + i, key[i]);
+        }
+        arenaEnd += recordLength;
+        return record;
+    }
+
+    private ByteBuffer allocatePage(int index) {
+        if (backingFile == null) {
+            return ByteBuffer.allocateDirect(PAGE_SIZE);
+        }
+        try {
+            return backingFile.getChannel().map(FileChannel.MapMode.READ_WRITE, (long) index * PAGE_SIZE, PAGE_SIZE);
+        } catch (IOException ioException) {
+            throw new RuntimeException(ioException);
+        }
+    }
+
+    private void allocateSlots(int capacity) {
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalStateException("title dictionary full at " + size + " titles");
+        }
+        LongBuffer oldSlots = slots;
+        slots = ByteBuffer.allocateDirect(8 * capacity).asLongBuffer();
+        mask = capacity - 1;
+        if (oldSlots == null) {
+            return;
+        }
+        for (int i = 0; i < oldSlots.capacity(); i++) {
+            long entry = oldSlots.get(i);
+            if (entry != 0) {
+                int slot = (int) recordHash(entry & OFFSET_MASK) & mask;
+                while (slots.get(slot) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots.put(slot, entry);
+            }
+        }
+    }
+
+    private long recordHash(long record) {
+        ByteBuffer page = page(record);
+        int position = pageOffset(record) + ID_BYTES;
+        int length = page.getShort(position) & 0xffff;
+        byte[] key = new byte[length];
+        for (int i = 0; i < length; i++) {
+            key[i] = page.get(position + LENGTH_BYTES + i);
+        }
+        return hash(key, 0, length);
+    }
+
+    private ByteBuffer page(long record) {
+        return pages.get((int) (record >>> PAGE_SHIFT));
+    }
+
+    private static int pageOffset(long record) {
+        return (int) (record & (PAGE_SIZE - 1));
+    }
+
+    private static long fingerprint(long hash) {
+        long fingerprint = hash >>> OFFSET_BITS;
+        return fingerprint != 0 ? fingerprint : 1;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = 1024;
+        while (capacity < expectedSize / MAX_LOAD && capacity < MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    // FNV-1a followed by the murmur3 finalizer, so that both the low bits
+    // (slot) and the high bits (fingerprint) are well mixed
+    static long hash(byte[] bytes, int offset, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= bytes[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+}
@@ -0,0 +1,215 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Writes a minimal perfect hash from normalised page titles to node ids,
+ * which GraphipediaService memory-maps to find pages without Lucene.
+ * <p>
+ * The titles are hashed to 64 bits and split into buckets of two on
+ * average. Buckets are placed largest first: each gets the smallest
+ * displacement that sends all of its titles to free slots, and a bucket of
+ * one title, placed last, simply stores the slot it takes. Every slot holds
+ * a 32-bit fingerprint of its title, so that a title not in the set is
+ * almost always rejected, and the node id.
+ * <p>
+ * The file is the magic number, the version, the title count and the
+ * bucket count, then one int per bucket (a displacement, or -1 - slot for
+ * buckets of one title), then one int fingerprint and one long node id per
+ * slot. The hash functions must stay identical to those of the query
+ * module's TitleHash.
+ */
+public class TitleHashWriter implements TitleDictionary.EntryVisitor {
+
+    public static final String FILE = "titles.mph";
+
+    static final byte[] MAGIC = { 'G', 'P', 'M', 'H' };
+    static final int VERSION = 1;
+    private static final int KEYS_PER_BUCKET = 2;
+    private static final int MAX_DISPLACEMENT = 1 << 24;
+
+    private long[] hashes = new long[1024];
+    private long[] ids = new long[1024];
+    private int size = 0;
+
+    public void visit(byte[] title, int length, long id) {
+        if (id == TitleDictionary.NOT_FOUND) {
+            // a page deleted by UpdateGraph
+            return;
+        }
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, 2 * size);
+            ids = Arrays.copyOf(ids, 2 * size);
+        }
+        hashes[size] = hash(title, 0, length);
+        ids[size++] = id;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void write(File file) throws IOException {
+        int bucketCount = Math.max(1, (size + KEYS_PER_BUCKET - 1) / KEYS_PER_BUCKET);
+
+        // group the titles by bucket
+        int[] bucketStart = new int[bucketCount + 1];
+        for (int i = 0; i < size; i++) {
+            bucketStart[bucket(hashes[i], bucketCount) + 1]++;
+        }
+        int maxBucketSize = 0;
+        for (int b = 0; b < bucketCount; b++) {
+            maxBucketSize = Math.max(maxBucketSize, bucketStart[b + 1]);
+            bucketStart[b + 1] += bucketStart[b];
+        }
+        int[] keys = new int[size];
+        int[] next = Arrays.copyOf(bucketStart, bucketCount);
+        for (int i = 0; i < size; i++) {
+            keys[next[bucket(hashes[i], bucketCount)]++] = i;
+        }
+        next = null;
+
+        // the buckets, largest first
+        int[] sizeStart = new int[maxBucketSize + 2];
+        for (int b = 0; b < bucketCount; b++) {
+            sizeStart[maxBucketSize - bucketSize(bucketStart, b) + 1]++;
+        }
+        for (int i = 0; i <= maxBucketSize; i++) {
+            sizeStart[i + 1] += sizeStart[i];
+        }
+        int[] buckets = new int[bucketCount];
+        for (int b = 0; b < bucketCount; b++) {
+            buckets[sizeStart[maxBucketSize - bucketSize(bucketStart, b)]++] = b;
+        }
+
+        int[] displacements = new int[bucketCount];
+        int[] slotKeys = new int[size];
+        BitSet taken = new BitSet(size);
+        int[] positions = new int[maxBucketSize];
+        int freeSlot = 0;
+        for (int b : buckets) {
+            int start = bucketStart[b];
+            int bucketSize = bucketStart[b + 1] - start;
+            if (bucketSize == 0) {
+                break;
+            }
+            if (bucketSize == 1) {
+                freeSlot = taken.nextClearBit(freeSlot);
+                taken.set(freeSlot);
+                slotKeys[freeSlot] = keys[start];
+                displacements[b] = -1 - freeSlot;
+                continue;
+            }
+            int displacement = 0;
+            while (!fits(keys, start, bucketSize, displacement, taken, positions)) {
+                if (++displacement == MAX_DISPLACEMENT) {
+                    throw new IllegalStateException("no displacement found; titles with the same 64-bit hash?");
+                }
+            }
+            for (int i = 0; i < bucketSize; i++) {
+                taken.set(positions[i]);
+                slotKeys[positions[i]] = keys[start + i];
+            }
+            displacements[b] = displacement;
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            out.writeInt(bucketCount);
+            for (int displacement : displacements) {
+                out.writeInt(displacement);
+            }
+            for (int slot = 0; slot < size; slot++) {
+                out.writeInt(fingerprint(hashes[slotKeys[slot]]));
+            }
+            for (int slot = 0; slot < size; slot++) {
+                out.writeLong(ids[slotKeys[slot]]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // computes the bucket's slots for the displacement, true if all are free and distinct
+    private boolean fits(int[] keys, int start, int bucketSize, int displacement, BitSet taken, int[] positions) {
+        for (int i = 0; i < bucketSize; i++) {
+            int position = position(hashes[keys[start + i]], displacement, size);
+            if (taken.get(position)) {
+                return false;
+            }
+            for (int j = 0; j < i; j++) {
+                if (positions[j] == position) {
+                    return false;
+                }
+            }
+            positions[i] = position;
+        }
+        return true;
+    }
+
+    private static int bucketSize(int[] bucketStart, int bucket) {
+        return bucketStart[bucket + 1] - bucketStart[bucket];
+    }
+
+    static int bucket(long hash, int bucketCount) {
+        return (int) ((hash >>> 1) % bucketCount);
+    }
+
+    static int position(long hash, int displacement, int size) {
+        return (int) ((mix(hash + displacement * 0x9e3779b97f4a7c15L) >>> 1) % size);
+    }
+
+    static int fingerprint(long hash) {
+        return (int) mix(hash ^ 0xc2b2ae3d27d4eb4fL);
+    }
+
+    // FNV-1a followed by the murmur3 finalizer
+    static long hash(byte[] bytes, int offset, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= bytes[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+}
@@ -0,0 +1,86 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport;
+
+/**
+ * Normalises page titles and link targets the way Wikipedia resolves them:
+ * a #section anchor is dropped, underscores become spaces, leading,
+ * trailing and repeated spaces are dropped, and the first letter is upper
+ * case. The import and the query module normalise titles identically.
+ */
+public final class TitleNormalizer {
+
+    private TitleNormalizer() {
+    }
+
+    /**
+     * Returns the normalised title, which is the title itself if it is
+     * already normalised, as almost all page titles are.
+     */
+    public static String normalize(String title) {
+        if (isNormalized(title)) {
+            return title;
+        }
+        int end = title.indexOf('#');
+        if (end < 0) {
+            end = title.length();
+        }
+        StringBuilder normalized = new StringBuilder(end);
+        boolean space = false;
+        for (int i = 0; i < end; i++) {
+            char c = title.charAt(i);
+            if (c == ' ' || c == '_') {
+                space = normalized.length() > 0;
+            } else if (normalized.length() == 0) {
+                normalized.append(Character.toUpperCase(c));
+            } else {
+                if (space) {
+                    normalized.append(' ');
+                    space = false;
+                }
+                normalized.append(c);
+            }
+        }
+        return normalized.toString();
+    }
+
+    private static boolean isNormalized(String title) {
+        int length = title.length();
+        if (length == 0) {
+            return true;
+        }
+        char first = title.charAt(0);
+        if (first == ' ' || Character.toUpperCase(first) != first || title.charAt(length - 1) == ' ') {
+            return false;
+        }
+        char previous = 0;
+        for (int i = 0; i < length; i++) {
+            char c = title.charAt(i);
+            if (c == '_' || c == '#' || (c == ' ' && previous == ' ')) {
+                return false;
+            }
+            previous = c;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,207 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects page titles and writes them as a TitleTable: sorted by their
+ * UTF-8 bytes, without duplicates, so that a title's id is its rank.
+ * <p>
+ * Titles are kept as UTF-8 in 16 MB chunks while they are collected, about a
+ * third of what the same Strings would take on the heap.
+ */
+public class TitleTableWriter {
+
+    private static final int CHUNK_SHIFT = 24;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int LENGTH_BYTES = 2;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+    private int chunkPosition = CHUNK_SIZE;
+    private long[] titles = new long[1024];
+    private int size = 0;
+    private byte[] buffer = new byte[1024];
+
+    public int size() {
+        return size;
+    }
+
+    public void add(String title) {
+        if (title.length() * Utf8.MAX_BYTES_PER_CHAR > buffer.length) {
+            buffer = new byte[title.length() * Utf8.MAX_BYTES_PER_CHAR];
+        }
+        int length = Utf8.encode(title, 0, title.length(), buffer, 0);
+        if (length > 0xffff) {
+            throw new IllegalArgumentException("title too long: " + title);
+        }
+        if (chunkPosition + LENGTH_BYTES + length > CHUNK_SIZE) {
+            chunks.add(new byte[CHUNK_SIZE]);
+            chunkPosition = 0;
+        }
+        byte[] chunk = chunks.get(chunks.size() - 1);
+        chunk[chunkPosition] = (byte) (length >>> 8);
+        chunk[chunkPosition + 1] = (byte) length;
+        System.arraycopy(buffer, 0, chunk, chunkPosition + LENGTH_BYTES, length);
+        if (size == titles.length) {
+            titles = Arrays.copyOf(titles, 2 * size);
+        }
+        titles[size++] = ((long) (chunks.size() - 1) << CHUNK_SHIFT) | chunkPosition;
+        chunkPosition += LENGTH_BYTES + length;
+    }
+
+    /**
+     * Sorts the titles collected so far and writes them to the given file.
+     * Returns the number of distinct titles written.
+     */
+    public int write(File file) throws IOException {
+        sort(0, size - 1);
+        int distinct = 0;
+        for (int i = 0; i < size; i++) {
+            if (distinct == 0 || compare(titles[distinct - 1], titles[i]) != 0) {
+                titles[distinct++] = titles[i];
+            }
+        }
+        size = distinct;
+
+        long dataLength = 0;
+        for (int i = 0; i < size; i++) {
+            dataLength += length(titles[i]);
+        }
+        if (dataLength > Integer.MAX_VALUE) {
+            throw new IOException("title table too large: " + dataLength + " bytes");
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.write(TitleTable.MAGIC);
+            out.writeInt(TitleTable.VERSION);
+            out.writeInt(size);
+            int offset = 0;
+            for (int i = 0; i < size; i++) {
+                out.writeInt(offset);
+                offset += length(titles[i]);
+            }
+            out.writeInt(offset);
+            for (int i = 0; i < size; i++) {
+                long title = titles[i];
+                out.write(chunks.get(chunk(title)), position(title) + LENGTH_BYTES, length(title));
+            }
+        } finally {
+            out.close();
+        }
+        return size;
+    }
+
+    private int length(long title) {
+        byte[] chunk = chunks.get(chunk(title));
+        int position = position(title);
+        return ((chunk[position] & 0xff) << 8) | (chunk[position + 1] & 0xff);
+    }
+
+    // unsigned byte order, which is also code point order
+    private int compare(long a, long b) {
+        byte[] chunkA = chunks.get(chunk(a));
+        byte[] chunkB = chunks.get(chunk(b));
+        int positionA = position(a) + LENGTH_BYTES;
+        int positionB = position(b) + LENGTH_BYTES;
+        int lengthA = length(a);
+        int lengthB = length(b);
+        int common = Math.min(lengthA, lengthB);
+        for (int i = 0; i < common; i++) {
+            int difference = (chunkA[positionA + i] & 0xff) - (chunkB[positionB + i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return lengthA - lengthB;
+    }
+
+    private void sort(int low, int high) {
+        while (high - low > INSERTION_SORT_THRESHOLD) {
+            int middle = (low + high) >>> 1;
+            if (compare(titles[middle], titles[low]) < 0) {
+                swap(middle, low);
+            }
+            if (compare(titles[high], titles[low]) < 0) {
+                swap(high, low);
+            }
+            if (compare(titles[high], titles[middle]) < 0) {
+                swap(high, middle);
+            }
+            long pivot = titles[middle];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (compare(titles[i], pivot) < 0) {
+                    i++;
+                }
+                while (compare(titles[j], pivot) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            // recurse into the smaller half, loop on the larger one
+            if (j - low < high - i) {
+                sort(low, j);
+                low = i;
+            } else {
+                sort(i, high);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            long title = titles[i];
+            int j = i - 1;
+            while (j >= low && compare(titles[j], title) > 0) {
+                titles[j + 1] = titles[j];
+                j--;
+            }
+            titles[j + 1] = title;
+        }
+    }
+
+    private void swap(int i, int j) {
+        long title = titles[i];
+        titles[i] = titles[j];
+        titles[j] = title;
+    }
+
+    private static int chunk(long title) {
+        return (int) (title >>> CHUNK_SHIFT);
+    }
+
+    private static int position(long title) {
+        return (int) (title & (CHUNK_SIZE - 1));
+    }
+
+}
@@ -0,0 +1,96 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport;
+
+import java.nio.charset.Charset;
+
+/**
+ * UTF-8 encoding into caller-supplied buffers, so titles can be written and
+ * looked up without a String.getBytes copy each time.
+ */
+public final class Utf8 {
+
+    public static final Charset CHARSET = Charset.forName("UTF-8");
+
+    // a surrogate pair takes 4 bytes for 2 chars, any other char at most 3
+    public static final int MAX_BYTES_PER_CHAR = 3;
+
+    private Utf8() {
+    }
+
+    public static int encode(CharSequence chars, int start, int end, byte[] target, int offset) {
+        int position = offset;
+        for (int i = start; i < end; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                target[position++] = (byte) c;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                position = put(Character.toCodePoint(c, chars.charAt(++i)), target, position);
+            } else {
+                position = put(c, target, position);
+            }
+        }
+        return position - offset;
+    }
+
+    public static int encode(char[] chars, int start, int end, byte[] target, int offset) {
+        int position = offset;
+        for (int i = start; i < end; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                target[position++] = (byte) c;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+                position = put(Character.toCodePoint(c, chars[++i]), target, position);
+            } else {
+                position = put(c, target, position);
+            }
+        }
+        return position - offset;
+    }
+
+    public static String decode(byte[] bytes, int offset, int length) {
+        return new String(bytes, offset, length, CHARSET);
+    }
+
+    private static int put(int codePoint, byte[] target, int position) {
+        if (codePoint < 0x80) {
+            target[position++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            target[position++] = (byte) (0xc0 | (codePoint >> 6));
+            target[position++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else if (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+            // an unpaired surrogate is replaced the way String.getBytes does it
+            target[position++] = '?';
+        } else if (codePoint < 0x10000) {
+            target[position++] = (byte) (0xe0 | (codePoint >> 12));
+            target[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            target[position++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else {
+            target[position++] = (byte) (0xf0 | (codePoint >> 18));
+            target[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            target[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            target[position++] = (byte) (0x80 | (codePoint & 0x3f));
+        }
+        return position;
+    }
+
+}
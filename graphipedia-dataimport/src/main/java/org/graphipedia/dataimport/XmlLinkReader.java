@@ -0,0 +1,62 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads an XML link file, as written by XmlLinkWriter, into a LinkHandler.
+ */
+public class XmlLinkReader extends SimpleStaxParser {
+
+    private static final List<String> ELEMENTS = Arrays.asList("t", "l", "r", "h");
+    private static final int PAGE = 0;
+
+    private final LinkHandler handler;
+
+    public XmlLinkReader(LinkHandler handler) {
+        super(ELEMENTS);
+        for (String element : ELEMENTS) {
+            shareText(element);
+        }
+        this.handler = handler;
+    }
+
+    @Override
+    protected void handleElement(int element, char[] text, int start, int length) {
+        if (element == PAGE) {
+            handler.handlePage(new String(text, start, length));
+        } else {
+            // ||dist||title
+            int end = start + length;
+            int titleStart = indexOf(text, start + 2, end, "||");
+            if (titleStart < 0) {
+                throw new IllegalArgumentException("link without ||dist||: " + new String(text, start, length));
+            }
+            int distance = parseInt(text, start + 2, titleStart);
+            handler.handleLink(getElementName(element).charAt(0), distance,
+                    new String(text, titleStart + 2, end - titleStart - 2));
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.codehaus.stax2.XMLOutputFactory2;
+
+/**
+ * Writes the original &lt;d&gt;&lt;p&gt;&lt;t&gt; XML format, where each link
+ * is an element named after its type holding ||dist||title.
+ */
+public class XmlLinkWriter implements LinkWriter {
+
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory2.newInstance();
+
+    private final OutputStream out;
+    private final XMLStreamWriter writer;
+    private final char[] linkBuffer = new char[256];
+
+    public XmlLinkWriter(OutputStream out) throws IOException {
+        this.out = out;
+        try {
+            writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+            writer.writeStartDocument();
+            writer.writeStartElement("d");
+        } catch (XMLStreamException streamException) {
+            throw new IOException(streamException);
+        }
+    }
+
+    public void writePage(String title, PageLinks links) throws IOException {
+        try {
+            writer.writeStartElement("p");
+
+            writer.writeStartElement("t");
+            writer.writeCharacters(title);
+            writer.writeEndElement();
+
+            for (int i = 0; i < links.size(); i++) {
+                writer.writeStartElement(linkElement(links.getType(i)));
+                writeLink(links, i);
+                writer.writeEndElement();
+            }
+
+            writer.writeEndElement();
+        } catch (XMLStreamException streamException) {
+            throw new IOException(streamException);
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException streamException) {
+            throw new IOException(streamException);
+        }
+        out.close();
+    }
+
+    // writes ||dist||title without building the string
+    private void writeLink(PageLinks links, int link) throws XMLStreamException {
+        String distance = Integer.toString(links.getDistance(link));
+        int titleLength = links.getTitleLength(link);
+        char[] buffer = linkBuffer;
+        int length = distance.length() + titleLength + 4;
+        if (length > buffer.length) {
+            buffer = new char[length];
+        }
+        buffer[0] = '|';
+        buffer[1] = '|';
+        distance.getChars(0, distance.length(), buffer, 2);
+        int offset = 2 + distance.length();
+        buffer[offset++] = '|';
+        buffer[offset++] = '|';
+        System.arraycopy(links.getTitleChars(), links.getTitleStart(link), buffer, offset, titleLength);
+        writer.writeCharacters(buffer, 0, length);
+    }
+
+    private static String linkElement(char type) {
+        switch (type) {
+        case 'r':
+            return "r";
+        case 'h':
+            return "h";
+        default:
+            return "l";
+        }
+    }
+
+}
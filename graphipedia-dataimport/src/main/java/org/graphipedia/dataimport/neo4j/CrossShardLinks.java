@@ -0,0 +1,130 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport.neo4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.graphipedia.dataimport.TitleNormalizer;
+
+/**
+ * The side tables of a shard: the links from its pages to pages of other
+ * shards, in one file per target shard named "cross-shard.&lt;shard&gt;".
+ * <p>
+ * Each file is the magic number and the version, then for each link its
+ * type as one byte, the node id of its page in the source shard, its
+ * distance and its normalised title.
+ */
+public class CrossShardLinks {
+
+    private static final String FILE_PREFIX = "cross-shard.";
+    private static final byte[] MAGIC = { 'G', 'P', 'X', 'S' };
+    private static final int VERSION = 1;
+
+    private final ImportShard shard;
+    private final DataOutputStream[] files;
+
+    /**
+     * Receives the links read back from a side table.
+     */
+    public interface Visitor {
+
+        void visit(long nodeId, char type, int distance, String title);
+
+    }
+
+    /**
+     * Creates the side tables of a shard in its store directory.
+     */
+    public CrossShardLinks(File dataDir, ImportShard shard) throws IOException {
+        this.shard = shard;
+        this.files = new DataOutputStream[shard.getShardCount()];
+        for (int target = 0; target < files.length; target++) {
+            if (target == shard.getShard()) {
+                continue;
+            }
+            files[target] = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(getFile(dataDir, target)), 1 << 16));
+            files[target].write(MAGIC);
+            files[target].writeInt(VERSION);
+        }
+    }
+
+    public static File getFile(File dataDir, int targetShard) {
+        return new File(dataDir, FILE_PREFIX + targetShard);
+    }
+
+    public void add(long nodeId, char type, int distance, String title) throws IOException {
+        String normalized = TitleNormalizer.normalize(title);
+        int target = ImportShard.shardOf(normalized, shard.getShardCount());
+        if (target == shard.getShard()) {
+            throw new IllegalArgumentException(title + " is in shard " + target);
+        }
+        DataOutputStream out = files[target];
+        out.writeByte(type);
+        out.writeLong(nodeId);
+        out.writeInt(distance);
+        out.writeUTF(normalized);
+    }
+
+    public void close() throws IOException {
+        for (DataOutputStream out : files) {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the links of one side table, and returns how many there were.
+     */
+    public static long read(File file, Visitor visitor) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            for (byte magicByte : MAGIC) {
+                if (in.readByte() != magicByte) {
+                    throw new IOException(file + " is not a cross-shard link table");
+                }
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported cross-shard link table version " + version);
+            }
+            long count = 0;
+            for (int type; (type = in.read()) >= 0; count++) {
+                long nodeId = in.readLong();
+                int distance = in.readInt();
+                visitor.visit(nodeId, (char) type, distance, in.readUTF());
+            }
+            return count;
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,210 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport.neo4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Counts the outgoing and incoming relationships of each type per node while
+ * they are created, and writes the counts into the store directory as
+ * "degrees", for GraphipediaService to read without touching relationships.
+ * <p>
+ * The file is the magic number, the version, the node count and the type
+ * count, then the type names, then for each type one int column of
+ * out-degrees by node id, then for each type one column of in-degrees.
+ */
+public class DegreeCounter {
+
+    public static final String FILE = "degrees";
+
+    private static final byte[] MAGIC = { 'G', 'P', 'D', 'G' };
+    private static final int VERSION = 1;
+
+    private static final WikiRelationshipType[] TYPES = WikiRelationshipType.values();
+
+    private final int[][] outDegrees = new int[TYPES.length][];
+    private final int[][] inDegrees = new int[TYPES.length][];
+    private final long[] relationshipCounts = new long[TYPES.length];
+    private int nodeCount = 0;
+
+    public DegreeCounter(int expectedNodes) {
+        int capacity = Math.max(expectedNodes, 1024);
+        for (int type = 0; type < TYPES.length; type++) {
+            outDegrees[type] = new int[capacity];
+            inDegrees[type] = new int[capacity];
+        }
+    }
+
+    public void add(long startNode, long endNode, WikiRelationshipType type) {
+        int start = (int) startNode;
+        int end = (int) endNode;
+        ensureCapacity(Math.max(start, end) + 1);
+        int column = type.ordinal();
+        outDegrees[column][start]++;
+        inDegrees[column][end]++;
+        relationshipCounts[column]++;
+    }
+
+    /**
+     * Takes a deleted relationship off the counts.
+     */
+    public void remove(long startNode, long endNode, WikiRelationshipType type) {
+        int column = type.ordinal();
+        if (startNode < nodeCount && outDegrees[column][(int) startNode] > 0) {
+            outDegrees[column][(int) startNode]--;
+        }
+        if (endNode < nodeCount && inDegrees[column][(int) endNode] > 0) {
+            inDegrees[column][(int) endNode]--;
+            relationshipCounts[column]--;
+        }
+    }
+
+    private void ensureCapacity(int nodes) {
+        if (nodes > nodeCount) {
+            nodeCount = nodes;
+        }
+        int capacity = outDegrees[0].length;
+        if (nodes <= capacity) {
+            return;
+        }
+        while (capacity < nodes) {
+            capacity *= 2;
+        }
+        for (int type = 0; type < TYPES.length; type++) {
+            outDegrees[type] = Arrays.copyOf(outDegrees[type], capacity);
+            inDegrees[type] = Arrays.copyOf(inDegrees[type], capacity);
+        }
+    }
+
+    public int getOutDegree(long node, WikiRelationshipType type) {
+        return node < nodeCount ? outDegrees[type.ordinal()][(int) node] : 0;
+    }
+
+    public int getInDegree(long node, WikiRelationshipType type) {
+        return node < nodeCount ? inDegrees[type.ordinal()][(int) node] : 0;
+    }
+
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nodeCount);
+            out.writeInt(TYPES.length);
+            for (WikiRelationshipType type : TYPES) {
+                out.writeUTF(type.name());
+            }
+            for (int[] column : outDegrees) {
+                writeColumn(out, column);
+            }
+            for (int[] column : inDegrees) {
+                writeColumn(out, column);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the counts written by write, to go on counting after a resumed
+     * import.
+     */
+    public static DegreeCounter read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            for (byte magicByte : MAGIC) {
+                if (in.readByte() != magicByte) {
+                    throw new IOException(file + " is not a degree table");
+                }
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported degree table version " + version);
+            }
+            int nodeCount = in.readInt();
+            WikiRelationshipType[] types = new WikiRelationshipType[in.readInt()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = WikiRelationshipType.valueOf(in.readUTF());
+            }
+            DegreeCounter degrees = new DegreeCounter(nodeCount);
+            degrees.nodeCount = nodeCount;
+            for (WikiRelationshipType type : types) {
+                readColumn(in, degrees.outDegrees[type.ordinal()], nodeCount);
+            }
+            for (WikiRelationshipType type : types) {
+                int[] column = degrees.inDegrees[type.ordinal()];
+                readColumn(in, column, nodeCount);
+                for (int node = 0; node < nodeCount; node++) {
+                    degrees.relationshipCounts[type.ordinal()] += column[node];
+                }
+            }
+            return degrees;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void readColumn(DataInputStream in, int[] column, int nodeCount) throws IOException {
+        for (int node = 0; node < nodeCount; node++) {
+            column[node] = in.readInt();
+        }
+    }
+
+    private void writeColumn(DataOutputStream out, int[] column) throws IOException {
+        for (int node = 0; node < nodeCount; node++) {
+            out.writeInt(column[node]);
+        }
+    }
+
+    /**
+     * Returns, per relationship type, the relationship count and the largest
+     * out- and in-degree.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (WikiRelationshipType type : TYPES) {
+            int column = type.ordinal();
+            int maxOut = 0;
+            int maxIn = 0;
+            int withLinks = 0;
+            for (int node = 0; node < nodeCount; node++) {
+                maxOut = Math.max(maxOut, outDegrees[column][node]);
+                maxIn = Math.max(maxIn, inDegrees[column][node]);
+                if (outDegrees[column][node] > 0) {
+                    withLinks++;
+                }
+            }
+            report.append(String.format("%-8s %10d relationships from %d pages, max out-degree %d, max in-degree %d\n",
+                    type, relationshipCounts[column], withLinks, maxOut, maxIn));
+        }
+        return report.toString();
+    }
+
+}
@@ -0,0 +1,183 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport.neo4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * How far ImportGraph got with an import, written into the store directory
+ * as "import.checkpoint" for ImportGraph --resume to go on from there.
+ * <p>
+ * A checkpoint names the links file it was taken on, the next page to
+ * import (by index and, in binary link files, by offset), the link counts
+ * so far and the file holding the degrees counted so far.
+ */
+public class ImportCheckpoint {
+
+    public static final String FILE = "import.checkpoint";
+
+    private final String inputFile;
+    private final long inputLength;
+    private final long inputModified;
+    private final boolean collapseRedirects;
+    private final long page;
+    private final long offset;
+    private final int linkCount;
+    private final int badLinkCount;
+    private final String degreeFile;
+
+    /**
+     * Creates the checkpoint taken once all the nodes are imported.
+     */
+    public ImportCheckpoint(File inputFile, boolean collapseRedirects) throws IOException {
+        this(inputFile.getCanonicalPath(), inputFile.length(), inputFile.lastModified(), collapseRedirects, 0, 0,
+                0, 0, null);
+    }
+
+    private ImportCheckpoint(String inputFile, long inputLength, long inputModified, boolean collapseRedirects,
+            long page, long offset, int linkCount, int badLinkCount, String degreeFile) {
+        this.inputFile = inputFile;
+        this.inputLength = inputLength;
+        this.inputModified = inputModified;
+        this.collapseRedirects = collapseRedirects;
+        this.page = page;
+        this.offset = offset;
+        this.linkCount = linkCount;
+        this.badLinkCount = badLinkCount;
+        this.degreeFile = degreeFile;
+    }
+
+    /**
+     * Returns the checkpoint taken before the given page, at the given
+     * offset (0 if it is not known), with the degrees in degreeFile.
+     */
+    public ImportCheckpoint at(long page, long offset, int linkCount, int badLinkCount, String degreeFile) {
+        return new ImportCheckpoint(inputFile, inputLength, inputModified, collapseRedirects, page, offset,
+                linkCount, badLinkCount, degreeFile);
+    }
+
+    /**
+     * Reads the checkpoint of a store directory, or returns null if it has
+     * none.
+     */
+    public static ImportCheckpoint read(File dataDir) throws IOException {
+        File file = new File(dataDir, FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return new ImportCheckpoint(properties.getProperty("input"),
+                Long.parseLong(properties.getProperty("input.length")),
+                Long.parseLong(properties.getProperty("input.modified")),
+                Boolean.parseBoolean(properties.getProperty("collapse.redirects")),
+                Long.parseLong(properties.getProperty("page")),
+                Long.parseLong(properties.getProperty("offset")),
+                Integer.parseInt(properties.getProperty("links")),
+                Integer.parseInt(properties.getProperty("bad.links")),
+                properties.getProperty("degrees"));
+    }
+
+    /**
+     * Replaces the checkpoint of a store directory with this one, so that
+     * either the old or the new one is there should the import stop halfway.
+     */
+    public void write(File dataDir) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("input", inputFile);
+        properties.setProperty("input.length", Long.toString(inputLength));
+        properties.setProperty("input.modified", Long.toString(inputModified));
+        properties.setProperty("collapse.redirects", Boolean.toString(collapseRedirects));
+        properties.setProperty("page", Long.toString(page));
+        properties.setProperty("offset", Long.toString(offset));
+        properties.setProperty("links", Integer.toString(linkCount));
+        properties.setProperty("bad.links", Integer.toString(badLinkCount));
+        if (degreeFile != null) {
+            properties.setProperty("degrees", degreeFile);
+        }
+        File file = new File(dataDir, FILE);
+        File partFile = new File(dataDir, FILE + ".part");
+        OutputStream out = new FileOutputStream(partFile);
+        try {
+            properties.store(out, "ImportGraph checkpoint");
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete() || !partFile.renameTo(file)) {
+            throw new IOException("cannot replace " + file);
+        }
+    }
+
+    public static void delete(File dataDir) {
+        new File(dataDir, FILE).delete();
+    }
+
+    /**
+     * Returns whether the checkpoint was taken on this links file, as it is
+     * now.
+     */
+    public boolean isFor(File inputFile) throws IOException {
+        return this.inputFile.equals(inputFile.getCanonicalPath()) && inputLength == inputFile.length()
+                && inputModified == inputFile.lastModified();
+    }
+
+    public String getInputFile() {
+        return inputFile;
+    }
+
+    public boolean isCollapseRedirects() {
+        return collapseRedirects;
+    }
+
+    public long getPage() {
+        return page;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLinkCount() {
+        return linkCount;
+    }
+
+    public int getBadLinkCount() {
+        return badLinkCount;
+    }
+
+    // null before any link is imported
+    public String getDegreeFile() {
+        return degreeFile;
+    }
+
+}
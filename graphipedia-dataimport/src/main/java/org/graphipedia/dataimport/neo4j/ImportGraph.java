@@ -21,9 +21,16 @@
 //
 package org.graphipedia.dataimport.neo4j;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.graphipedia.dataimport.BinaryLinkReader;
+import org.graphipedia.dataimport.TitleDictionary;
+import org.graphipedia.dataimport.TitleHashWriter;
+import org.graphipedia.dataimport.TitleTable;
+import org.graphipedia.dataimport.XmlLinkReader;
 import org.neo4j.helpers.collection.MapUtil;
 import org.neo4j.unsafe.batchinsert.BatchInserter;
 import org.neo4j.unsafe.batchinsert.BatchInserterIndex;
@@ -33,53 +40,476 @@ import org.neo4j.unsafe.batchinsert.LuceneBatchInserterIndexProvider;
 
 public class ImportGraph {
 
-    private final BatchInserter inserter;
-    private final BatchInserterIndex index;
-    private final Map<String, Long> inMemoryIndex;
+    private static final int EXPECTED_PAGES = 12100000;
+    // node 0 is the reference node of a new store
+    private static final long FIRST_PAGE_NODE_ID = 1;
 
-    public ImportGraph(String dataDir) {
-        inserter = BatchInserters.inserter(dataDir);
-        final BatchInserterIndexProvider indexProvider = new LuceneBatchInserterIndexProvider(inserter);
+    private static final int DEFAULT_QUEUE_DEPTH = 64;
+    private static final int MAX_SORT_MEGABYTES = 2047;
+    static final String TITLE_SNAPSHOT = "titles.dict";
+    // in the store directory while a BatchInserter has the store open
+    static final String STORE_OPEN = "import.open";
+
+    private final String dataDir;
+    private BatchInserter inserter;
+    private BatchInserterIndexProvider indexProvider;
+    private BatchInserterIndex index;
+    private final TitleDictionary inMemoryIndex;
+    private final ImportShard shard;
+    private long highestNodeId = 0;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int queueDepth = DEFAULT_QUEUE_DEPTH;
+    private int sortMemory = 0;
+    private int checkpointInterval = 0;
+    private String lastDegreeFile;
+    private final boolean killed;
+    private RelationshipCreator runningCreator;
+
+    public ImportGraph(String dataDir) throws IOException {
+        this(dataDir, null, true);
+    }
+
+    /**
+     * @param dictionaryFile if not null, the title dictionary is kept in this
+     *        memory-mapped file instead of off-heap memory
+     * @param luceneIndex whether to fill the Lucene "pages" index, which
+     *        GraphipediaService no longer needs once titles.mph is written
+     */
+    public ImportGraph(String dataDir, String dictionaryFile, boolean luceneIndex) throws IOException {
+        this(dataDir, dictionaryFile, luceneIndex, null);
+    }
+
+    /**
+     * @param shard if not null, only the pages of this shard are imported,
+     *        and their links to other shards are written to side tables
+     */
+    public ImportGraph(String dataDir, String dictionaryFile, boolean luceneIndex, ImportShard shard)
+            throws IOException {
+        this.dataDir = dataDir;
+        this.shard = shard;
+        killed = new File(dataDir, STORE_OPEN).exists();
+        inserter = openStore();
+        indexProvider = luceneIndex ? new LuceneBatchInserterIndexProvider(inserter) : null;
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
-                indexProvider.shutdown();
-                inserter.shutdown();
+                awaitStop();
+                shutdownStore();
             }
         });
 
-        index = indexProvider.nodeIndex("pages", MapUtil.stringMap("type", "exact", "to_lower_case", "false"));
-        inMemoryIndex = new HashMap<String, Long>(12100000);
+        index = luceneIndex
+                ? indexProvider.nodeIndex("pages", MapUtil.stringMap("type", "exact", "to_lower_case", "false"))
+                : null;
+        int expectedPages = shard != null ? EXPECTED_PAGES / shard.getShardCount() : EXPECTED_PAGES;
+        if (dictionaryFile != null) {
+            inMemoryIndex = new TitleDictionary(expectedPages, new File(dictionaryFile));
+        } else {
+            inMemoryIndex = new TitleDictionary(expectedPages);
+        }
     }
 
     public static void main(String[] args) throws Exception {
-        if (args.length < 2) {
-            System.out.println("USAGE: ImportGraph <input-file> <data-dir>");
+        String dictionaryFile = null;
+        boolean collapseRedirects = false;
+        boolean luceneIndex = true;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int queueDepth = DEFAULT_QUEUE_DEPTH;
+        int checkpointLinks = 0;
+        int sortMegabytes = 0;
+        boolean resume = false;
+        ImportShard shard = null;
+        List<String> files = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--dictionary-file".equals(args[i]) && i + 1 < args.length) {
+                dictionaryFile = args[++i];
+            } else if ("--collapse-redirects".equals(args[i])) {
+                collapseRedirects = true;
+            } else if ("--no-lucene".equals(args[i])) {
+                luceneIndex = false;
+            } else if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("--queue".equals(args[i]) && i + 1 < args.length) {
+                queueDepth = Integer.parseInt(args[++i]);
+            } else if ("--checkpoint-links".equals(args[i]) && i + 1 < args.length) {
+                checkpointLinks = Integer.parseInt(args[++i]);
+            } else if ("--resume".equals(args[i])) {
+                resume = true;
+            } else if ("--sort-memory".equals(args[i]) && i + 1 < args.length) {
+                sortMegabytes = Integer.parseInt(args[++i]);
+            } else if ("--shard".equals(args[i]) && i + 1 < args.length) {
+                shard = ImportShard.parse(args[++i]);
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.size() < 2) {
+            System.out.println("USAGE: ImportGraph [--dictionary-file <file>] [--collapse-redirects] [--no-lucene] "
+                    + "[--threads <n>] [--queue <n>] [--checkpoint-links <n>] [--resume] [--shard <shard>/<count>] "
+                    + "[--sort-memory <MB>] <input-file> <data-dir>");
+            System.exit(255);
+        }
+        if (sortMegabytes < 0 || sortMegabytes > MAX_SORT_MEGABYTES) {
+            // the sort buffer is a single array
+            System.out.println("--sort-memory takes 1 to " + MAX_SORT_MEGABYTES + " MB");
             System.exit(255);
         }
-        String inputFile = args[0];
-        String dataDir = args[1];
-        ImportGraph importer = new ImportGraph(dataDir);
-        importer.createNodes(inputFile);
-        importer.createRelationships(inputFile);
+        if (sortMegabytes > 0 && (shard != null || resume)) {
+            System.out.println("--shard and --resume cannot be used with --sort-memory");
+            System.exit(255);
+        }
+        if (shard != null && (collapseRedirects || resume)) {
+            // redirect chains cross shards, and side tables are not checkpointed
+            System.out.println("--collapse-redirects and --resume cannot be used with --shard");
+            System.exit(255);
+        }
+        String inputFile = files.get(0);
+        String dataDir = files.get(1);
+        ImportGraph importer = new ImportGraph(dataDir, dictionaryFile, luceneIndex, shard);
+        importer.setLinkThreads(threads, queueDepth);
+        importer.setSortMemory(sortMegabytes << 20);
+        importer.setCheckpointInterval(shard != null || sortMegabytes > 0 ? 0 : checkpointLinks);
+        ImportCheckpoint checkpoint = resume ? importer.readCheckpoint(inputFile) : null;
+        if (checkpoint == null) {
+            File titleFile = TitleTable.forLinkFile(inputFile);
+            if (titleFile.lastModified() >= new File(inputFile).lastModified()) {
+                importer.createNodesFromTitles(titleFile);
+            } else {
+                if (titleFile.exists()) {
+                    System.out.println("Ignoring " + titleFile + ", it is older than " + inputFile);
+                }
+                importer.createNodes(inputFile);
+            }
+            importer.writeTitleHash();
+            importer.checkpointNodes(inputFile, collapseRedirects);
+        } else {
+            importer.restoreNodes();
+            if (collapseRedirects != checkpoint.isCollapseRedirects()) {
+                System.out.println("Redirects are " + (checkpoint.isCollapseRedirects() ? "" : "not ")
+                        + "collapsed, as in the import being resumed");
+            }
+            collapseRedirects = checkpoint.isCollapseRedirects();
+        }
+        RedirectResolver redirects = collapseRedirects ? importer.resolveRedirects(inputFile) : null;
+        importer.createRelationships(inputFile, redirects, checkpoint);
+    }
+
+    /**
+     * Sets how many threads resolve link titles while the relationships are
+     * created, and how many batches of links may wait for the inserter. With
+     * one thread, links are resolved and inserted on the parsing thread.
+     */
+    public void setLinkThreads(int threads, int queueDepth) {
+        this.threads = threads;
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Resolves link titles by sorting them, in runs of at most the given
+     * bytes, against the sorted title dictionary instead of looking each one
+     * up; 0 looks them up.
+     */
+    public void setSortMemory(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("negative sort memory: " + bytes);
+        }
+        this.sortMemory = bytes;
+    }
+
+    /**
+     * Sets after how many links a checkpoint is written while the
+     * relationships are created; 0 writes no checkpoints.
+     */
+    public void setCheckpointInterval(int links) {
+        this.checkpointInterval = links;
     }
 
     public void createNodes(String fileName) throws Exception {
         System.out.println("Importing pages...");
         NodeCreator nodeCreator = new NodeCreator(inserter, index, inMemoryIndex);
+        nodeCreator.setShard(shard);
+        long startTime = System.currentTimeMillis();
+        if (BinaryLinkReader.isBinaryLinkFile(fileName)) {
+            new BinaryLinkReader(fileName).read(nodeCreator, false);
+        } else {
+            nodeCreator.parse(fileName);
+        }
+        long elapsedSeconds = (System.currentTimeMillis() - startTime) / 1000;
+        System.out.printf("\n%d pages imported in %d seconds.\n", nodeCreator.getPageCount(), elapsedSeconds);
+        reportCollisions(nodeCreator);
+        highestNodeId = nodeCreator.getHighestNodeId();
+        System.out.println(inMemoryIndex.memoryReport());
+    }
+
+    /**
+     * Creates the nodes from the title table ExtractLinks wrote next to the
+     * links file, leaving a single pass over the links file itself.
+     */
+    public void createNodesFromTitles(File titleFile) throws Exception {
+        System.out.println("Importing pages from " + titleFile + "...");
+        NodeCreator nodeCreator = new NodeCreator(inserter, index, inMemoryIndex);
+        nodeCreator.setShard(shard);
         long startTime = System.currentTimeMillis();
-        nodeCreator.parse(fileName);
+        nodeCreator.createNodes(new TitleTable(titleFile), FIRST_PAGE_NODE_ID);
         long elapsedSeconds = (System.currentTimeMillis() - startTime) / 1000;
         System.out.printf("\n%d pages imported in %d seconds.\n", nodeCreator.getPageCount(), elapsedSeconds);
+        reportCollisions(nodeCreator);
+        highestNodeId = nodeCreator.getHighestNodeId();
+        System.out.println(inMemoryIndex.memoryReport());
+    }
+
+    private void reportCollisions(NodeCreator nodeCreator) {
+        if (nodeCreator.getCollisionCount() > 0) {
+            System.out.printf("%d page titles are another page's once normalised; links to them go to the page "
+                    + "whose title is in normal form\n", nodeCreator.getCollisionCount());
+        }
+    }
+
+    /**
+     * Writes the minimal perfect hash of the titles imported so far into the
+     * store directory, for GraphipediaService to find pages without Lucene.
+     */
+    public void writeTitleHash() throws IOException {
+        long startTime = System.currentTimeMillis();
+        TitleHashWriter titleHash = new TitleHashWriter();
+        inMemoryIndex.visitEntries(titleHash);
+        File file = new File(dataDir, TitleHashWriter.FILE);
+        titleHash.write(file);
+        long elapsedSeconds = (System.currentTimeMillis() - startTime) / 1000;
+        System.out.printf("title hash of %d titles written to %s in %d seconds\n", titleHash.size(), file,
+                elapsedSeconds);
+    }
+
+    /**
+     * Saves the title dictionary, which UpdateGraph reads to apply later
+     * changes, and a first checkpoint, from which an import stopped while
+     * creating relationships can be resumed.
+     */
+    public void checkpointNodes(String fileName, boolean collapseRedirects) throws IOException {
+        if (index != null) {
+            index.flush();
+        }
+        long startTime = System.currentTimeMillis();
+        File snapshot = new File(dataDir, TITLE_SNAPSHOT);
+        inMemoryIndex.writeSnapshot(snapshot);
+        if (checkpointInterval > 0) {
+            // the pages and their index are only sure to be on disk once the
+            // store is shut down; the index is not needed after this
+            flushStore();
+            new ImportCheckpoint(new File(fileName), collapseRedirects).write(new File(dataDir));
+            openStore();
+        }
+        long elapsedSeconds = (System.currentTimeMillis() - startTime) / 1000;
+        System.out.printf("title dictionary saved to %s in %d seconds\n", snapshot, elapsedSeconds);
+    }
+
+    /**
+     * Reads the checkpoint left in the store directory by an import of the
+     * given links file that stopped before it finished.
+     */
+    public ImportCheckpoint readCheckpoint(String fileName) throws IOException {
+        ImportCheckpoint checkpoint = ImportCheckpoint.read(new File(dataDir));
+        if (checkpoint == null) {
+            throw new IllegalStateException("no checkpoint to resume from in " + dataDir
+                    + ", the import must start again in an empty directory");
+        }
+        if (killed) {
+            // the relationships created after the last checkpoint may be
+            // half written, and their chains with them
+            throw new IllegalStateException("the import in " + dataDir + " was killed before it shut the store "
+                    + "down, it must start again in an empty directory");
+        }
+        if (!checkpoint.isFor(new File(fileName))) {
+            throw new IllegalStateException("the checkpoint in " + dataDir + " was taken on "
+                    + checkpoint.getInputFile() + ", not on " + fileName + " as it is now");
+        }
+        System.out.printf("Resuming the import at page %d, after %d links\n", checkpoint.getPage(),
+                checkpoint.getLinkCount());
+        return checkpoint;
+    }
+
+    /**
+     * Restores the title dictionary saved by checkpointNodes, instead of
+     * creating the nodes again.
+     */
+    public void restoreNodes() throws IOException {
+        long startTime = System.currentTimeMillis();
+        inMemoryIndex.readSnapshot(new File(dataDir, TITLE_SNAPSHOT));
+        long elapsedSeconds = (System.currentTimeMillis() - startTime) / 1000;
+        System.out.printf("%d titles restored in %d seconds\n", inMemoryIndex.size(), elapsedSeconds);
+    }
+
+    /**
+     * Reads the links file for the redirect pages and resolves each one to
+     * its canonical page, for createRelationships to collapse them.
+     */
+    public RedirectResolver resolveRedirects(String fileName) throws Exception {
+        RedirectResolver redirects = new RedirectResolver(inMemoryIndex);
+        redirects.resolve(fileName);
+        return redirects;
     }
 
     public void createRelationships(String fileName) throws Exception {
+        createRelationships(fileName, null);
+    }
+
+    /**
+     * @param redirects if not null, links to redirect pages go to their
+     *        canonical pages instead
+     */
+    public void createRelationships(String fileName, RedirectResolver redirects) throws Exception {
+        createRelationships(fileName, redirects, null);
+    }
+
+    /**
+     * @param redirects if not null, links to redirect pages go to their
+     *        canonical pages instead
+     * @param resumeFrom if not null, the checkpoint to go on from
+     */
+    public void createRelationships(String fileName, RedirectResolver redirects, ImportCheckpoint resumeFrom)
+            throws Exception {
         System.out.println("Importing links...");
-        RelationshipCreator relationshipCreator = new RelationshipCreator(inserter, inMemoryIndex);
+        RelationshipCreator relationshipCreator;
+        if (sortMemory > 0) {
+            relationshipCreator = new SortingRelationshipCreator(inserter, inMemoryIndex, redirects,
+                    new File(dataDir, "sort.tmp"), sortMemory);
+        } else if (threads > 1) {
+            relationshipCreator = new ParallelRelationshipCreator(inserter, inMemoryIndex, redirects, threads,
+                    queueDepth);
+        } else {
+            relationshipCreator = new RelationshipCreator(inserter, inMemoryIndex, redirects);
+        }
+        if (resumeFrom != null) {
+            lastDegreeFile = resumeFrom.getDegreeFile();
+            relationshipCreator.resume(resumeFrom,
+                    lastDegreeFile != null ? DegreeCounter.read(new File(dataDir, lastDegreeFile)) : null);
+        }
+        CrossShardLinks crossShardLinks = null;
+        if (shard != null) {
+            crossShardLinks = new CrossShardLinks(new File(dataDir), shard);
+            relationshipCreator.setShard(shard, crossShardLinks);
+        }
+        if (checkpointInterval > 0) {
+            final ImportCheckpoint checkpoint = new ImportCheckpoint(new File(fileName), redirects != null);
+            relationshipCreator.setCheckpoints(new RelationshipCreator.CheckpointListener() {
+                public void checkpoint(RelationshipCreator creator, long page, long offset, boolean last)
+                        throws IOException {
+                    flushStore();
+                    writeCheckpoint(checkpoint, creator, page, offset);
+                    if (!last) {
+                        creator.setInserter(openStore());
+                    } else {
+                        setRunningCreator(null);
+                    }
+                }
+            }, checkpointInterval);
+            setRunningCreator(relationshipCreator);
+        }
         long startTime = System.currentTimeMillis();
-        relationshipCreator.parse(fileName);
+        try {
+            relationshipCreator.importLinks(fileName);
+        } finally {
+            setRunningCreator(null);
+            if (crossShardLinks != null) {
+                crossShardLinks.close();
+            }
+        }
         long elapsedSeconds = (System.currentTimeMillis() - startTime) / 1000;
         System.out.printf("\n%d links imported in %d seconds; %d broken links ignored\n",
                 relationshipCreator.getLinkCount(), elapsedSeconds, relationshipCreator.getBadLinkCount());
+        if (shard != null) {
+            shard.write(new File(dataDir), highestNodeId, relationshipCreator.getCrossShardLinkCount());
+            System.out.printf("shard %d of %d: %d links to other shards written to side tables\n",
+                    shard.getShard(), shard.getShardCount(), relationshipCreator.getCrossShardLinkCount());
+        }
+        DegreeCounter degrees = relationshipCreator.getDegrees();
+        File degreeFile = new File(dataDir, DegreeCounter.FILE);
+        degrees.write(degreeFile);
+        System.out.print(degrees.report());
+        System.out.println("degrees written to " + degreeFile);
+        removeCheckpoint();
+    }
+
+    // the degrees go to a new file each time, so that the checkpoint file
+    // never names degrees counted up to a different link
+    private void writeCheckpoint(ImportCheckpoint checkpoint, RelationshipCreator creator, long page, long offset)
+            throws IOException {
+        String degreeFile = DegreeCounter.FILE + "." + creator.getLinkCount();
+        creator.getDegrees().write(new File(dataDir, degreeFile));
+        checkpoint.at(page, offset, creator.getLinkCount(), creator.getBadLinkCount(), degreeFile)
+                .write(new File(dataDir));
+        if (lastDegreeFile != null && !lastDegreeFile.equals(degreeFile)) {
+            new File(dataDir, lastDegreeFile).delete();
+        }
+        lastDegreeFile = degreeFile;
+        System.out.printf("checkpoint before page %d, after %d links\n", page, creator.getLinkCount());
+    }
+
+    /**
+     * Shuts the store down, which is the only way to flush a BatchInserter.
+     * The store is opened again without the Lucene index.
+     */
+    private synchronized void flushStore() {
+        long startTime = System.currentTimeMillis();
+        shutdownStore();
+        System.out.printf("\nstore flushed in %d seconds\n", (System.currentTimeMillis() - startTime) / 1000);
+    }
+
+    // the marker outlives a process killed with the store open, whose
+    // last writes may not all have reached the store files
+    private synchronized BatchInserter openStore() throws IOException {
+        inserter = BatchInserters.inserter(dataDir);
+        File marker = new File(dataDir, STORE_OPEN);
+        if (!marker.exists() && !marker.createNewFile()) {
+            throw new IOException("could not create " + marker);
+        }
+        return inserter;
+    }
+
+    private synchronized void shutdownStore() {
+        if (indexProvider != null) {
+            indexProvider.shutdown();
+            indexProvider = null;
+            index = null;
+        }
+        if (inserter != null) {
+            inserter.shutdown();
+            inserter = null;
+            // a store found killed stays marked, however this process ends
+            if (!killed) {
+                new File(dataDir, STORE_OPEN).delete();
+            }
+        }
+    }
+
+    private synchronized void setRunningCreator(RelationshipCreator creator) {
+        runningCreator = creator;
+        notifyAll();
+    }
+
+    // a stop while checkpointed relationships are created, such as Ctrl-C,
+    // waits for a last checkpoint rather than shut the store down under
+    // the inserter, so that the import can be resumed from there
+    private synchronized void awaitStop() {
+        if (runningCreator == null) {
+            return;
+        }
+        System.out.println("\nStopping at the next page...");
+        runningCreator.requestStop();
+        while (runningCreator != null) {
+            try {
+                wait();
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void removeCheckpoint() {
+        ImportCheckpoint.delete(new File(dataDir));
+        if (lastDegreeFile != null) {
+            new File(dataDir, lastDegreeFile).delete();
+        }
     }
 
 }
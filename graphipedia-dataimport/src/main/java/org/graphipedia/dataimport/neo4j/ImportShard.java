@@ -0,0 +1,138 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport.neo4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.graphipedia.dataimport.TitleNormalizer;
+
+/**
+ * One shard of a partitioned import: the pages whose normalised title
+ * hashes to it and the links between them. Links to the pages of other
+ * shards go to CrossShardLinks, for MergeShards to resolve. Once the shard
+ * is imported, its number, the shard count and its highest node id are
+ * written into its store directory as "shard.properties".
+ */
+public class ImportShard {
+
+    public static final String FILE = "shard.properties";
+
+    private final int shard;
+    private final int shardCount;
+    private long highestNodeId;
+    private long crossShardLinkCount;
+
+    public ImportShard(int shard, int shardCount) {
+        if (shardCount < 1 || shard < 0 || shard >= shardCount) {
+            throw new IllegalArgumentException("no shard " + shard + " of " + shardCount);
+        }
+        this.shard = shard;
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Parses a shard given as "shard/count", counting from 0.
+     */
+    public static ImportShard parse(String shard) {
+        int slash = shard.indexOf('/');
+        if (slash < 0) {
+            throw new IllegalArgumentException("shard must be given as <shard>/<count>: " + shard);
+        }
+        return new ImportShard(Integer.parseInt(shard.substring(0, slash)),
+                Integer.parseInt(shard.substring(slash + 1)));
+    }
+
+    /**
+     * Returns the shard of a normalised title. String.hashCode is the same
+     * on every JVM, so shards imported in separate processes agree.
+     */
+    public static int shardOf(String normalizedTitle, int shardCount) {
+        int hash = normalizedTitle.hashCode() * 0x9e3779b9;
+        return ((hash ^ (hash >>> 16)) & 0x7fffffff) % shardCount;
+    }
+
+    public boolean isLocal(String title) {
+        return shardOf(TitleNormalizer.normalize(title), shardCount) == shard;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public long getHighestNodeId() {
+        return highestNodeId;
+    }
+
+    public long getCrossShardLinkCount() {
+        return crossShardLinkCount;
+    }
+
+    public void write(File dataDir, long highestNodeId, long crossShardLinkCount) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("shard", Integer.toString(shard));
+        properties.setProperty("shard.count", Integer.toString(shardCount));
+        properties.setProperty("highest.node", Long.toString(highestNodeId));
+        properties.setProperty("cross.shard.links", Long.toString(crossShardLinkCount));
+        OutputStream out = new FileOutputStream(new File(dataDir, FILE));
+        try {
+            properties.store(out, "graphipedia import shard");
+        } finally {
+            out.close();
+        }
+        this.highestNodeId = highestNodeId;
+        this.crossShardLinkCount = crossShardLinkCount;
+    }
+
+    /**
+     * Reads the shard imported into a store directory, or returns null if
+     * it holds no completed shard.
+     */
+    public static ImportShard read(File dataDir) throws IOException {
+        File file = new File(dataDir, FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        ImportShard shard = new ImportShard(Integer.parseInt(properties.getProperty("shard")),
+                Integer.parseInt(properties.getProperty("shard.count")));
+        shard.highestNodeId = Long.parseLong(properties.getProperty("highest.node"));
+        shard.crossShardLinkCount = Long.parseLong(properties.getProperty("cross.shard.links"));
+        return shard;
+    }
+
+}
@@ -0,0 +1,234 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport.neo4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.graphipedia.dataimport.ProgressCounter;
+import org.graphipedia.dataimport.TitleDictionary;
+import org.graphipedia.dataimport.TitleHashWriter;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndex;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+import org.neo4j.unsafe.batchinsert.BatchRelationship;
+import org.neo4j.unsafe.batchinsert.LuceneBatchInserterIndexProvider;
+
+/**
+ * Merges the shards written by ImportGraph --shard into one store.
+ * <p>
+ * The nodes of shard i keep their ids, shifted past the highest node id of
+ * the shards before it, and the relationships within each shard are copied
+ * as they are. The links between shards are then resolved one target shard
+ * at a time: only that shard's title dictionary is loaded, and the side
+ * tables of every other shard for it are read. The merged store gets the
+ * same titles.dict, titles.mph and degrees files as one imported whole.
+ */
+public class MergeShards {
+
+    private final String dataDir;
+    private final BatchInserter inserter;
+    private final BatchInserterIndex index;
+    private final ProgressCounter linkCounter = new ProgressCounter();
+    private int badLinkCount = 0;
+
+    private ImportShard[] shards;
+    private File[] shardDirs;
+    private long[] idOffsets;
+    private DegreeCounter degrees;
+
+    public MergeShards(String dataDir, boolean luceneIndex) {
+        this.dataDir = dataDir;
+        inserter = BatchInserters.inserter(dataDir);
+        final BatchInserterIndexProvider indexProvider = luceneIndex ? new LuceneBatchInserterIndexProvider(inserter)
+                : null;
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                if (indexProvider != null) {
+                    indexProvider.shutdown();
+                }
+                inserter.shutdown();
+            }
+        });
+        index = luceneIndex
+                ? indexProvider.nodeIndex("pages", MapUtil.stringMap("type", "exact", "to_lower_case", "false"))
+                : null;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean luceneIndex = true;
+        List<String> dirs = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--no-lucene".equals(args[i])) {
+                luceneIndex = false;
+            } else {
+                dirs.add(args[i]);
+            }
+        }
+        if (dirs.size() < 2) {
+            System.out.println("USAGE: MergeShards [--no-lucene] <shard-dir>... <data-dir>");
+            System.exit(255);
+        }
+        MergeShards merger = new MergeShards(dirs.get(dirs.size() - 1), luceneIndex);
+        merger.merge(dirs.subList(0, dirs.size() - 1));
+    }
+
+    public void merge(List<String> dirs) throws IOException {
+        long startTime = System.currentTimeMillis();
+        readShards(dirs);
+        for (int shard = 0; shard < shardDirs.length; shard++) {
+            copyShard(shard);
+        }
+        List<File> dictionaries = new ArrayList<File>();
+        TitleHashWriter titleHash = new TitleHashWriter();
+        for (int shard = 0; shard < shardDirs.length; shard++) {
+            File dictionary = new File(shardDirs[shard], ImportGraph.TITLE_SNAPSHOT);
+            dictionaries.add(dictionary);
+            resolveLinksTo(shard, dictionary, titleHash);
+        }
+        long elapsedSeconds = (System.currentTimeMillis() - startTime) / 1000;
+        System.out.printf("\n%d shards merged in %d seconds: %d links; %d broken links ignored\n",
+                shardDirs.length, elapsedSeconds, linkCounter.getCount(), badLinkCount);
+        TitleDictionary.mergeSnapshots(dictionaries, idOffsets, new File(dataDir, ImportGraph.TITLE_SNAPSHOT));
+        titleHash.write(new File(dataDir, TitleHashWriter.FILE));
+        System.out.printf("title dictionary and title hash of %d titles written\n", titleHash.size());
+        degrees.write(new File(dataDir, DegreeCounter.FILE));
+        System.out.print(degrees.report());
+    }
+
+    // orders the shard directories by shard and numbers the nodes
+    private void readShards(List<String> dirs) throws IOException {
+        for (String dir : dirs) {
+            ImportShard shard = ImportShard.read(new File(dir));
+            if (shard == null) {
+                throw new IllegalStateException(dir + " holds no completed shard");
+            }
+            if (shards == null) {
+                shards = new ImportShard[shard.getShardCount()];
+                shardDirs = new File[shard.getShardCount()];
+            }
+            if (shard.getShardCount() != shards.length) {
+                throw new IllegalStateException(dir + " is shard " + shard.getShard() + " of "
+                        + shard.getShardCount() + ", not of " + shards.length);
+            }
+            if (shards[shard.getShard()] != null) {
+                throw new IllegalStateException(dir + " and " + shardDirs[shard.getShard()] + " are both shard "
+                        + shard.getShard());
+            }
+            shards[shard.getShard()] = shard;
+            shardDirs[shard.getShard()] = new File(dir);
+        }
+        idOffsets = new long[shards.length];
+        long nodeCount = 1;
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[i] == null) {
+                throw new IllegalStateException("shard " + i + " of " + shards.length + " is missing");
+            }
+            // node 0 is the reference node of each shard, and of the merged store
+            idOffsets[i] = nodeCount - 1;
+            nodeCount += shards[i].getHighestNodeId();
+        }
+        degrees = new DegreeCounter((int) Math.min(nodeCount, Integer.MAX_VALUE));
+    }
+
+    private void copyShard(int shard) {
+        System.out.println("Copying shard " + shard + " from " + shardDirs[shard] + "...");
+        long highestNodeId = shards[shard].getHighestNodeId();
+        long offset = idOffsets[shard];
+        BatchInserter shardInserter = BatchInserters.inserter(shardDirs[shard].getPath());
+        try {
+            for (long nodeId = 1; nodeId <= highestNodeId; nodeId++) {
+                if (shardInserter.nodeExists(nodeId)) {
+                    Map<String, Object> properties = shardInserter.getNodeProperties(nodeId);
+                    inserter.createNode(offset + nodeId, properties);
+                    if (index != null) {
+                        index.add(offset + nodeId, properties);
+                    }
+                }
+            }
+            for (long nodeId = 1; nodeId <= highestNodeId; nodeId++) {
+                if (!shardInserter.nodeExists(nodeId)) {
+                    continue;
+                }
+                for (BatchRelationship relationship : shardInserter.getRelationships(nodeId)) {
+                    if (relationship.getStartNode() != nodeId) {
+                        continue;
+                    }
+                    WikiRelationshipType type = WikiRelationshipType.valueOf(relationship.getType().name());
+                    createRelationship(offset + nodeId, offset + relationship.getEndNode(), type,
+                            shardInserter.getRelationshipProperties(relationship.getId()));
+                }
+            }
+        } finally {
+            shardInserter.shutdown();
+        }
+        if (index != null) {
+            index.flush();
+        }
+    }
+
+    private void resolveLinksTo(final int shard, File dictionaryFile, final TitleHashWriter titleHash)
+            throws IOException {
+        System.out.println("\nResolving links to shard " + shard + "...");
+        final TitleDictionary dictionary = new TitleDictionary(1024);
+        try {
+            dictionary.readSnapshot(dictionaryFile);
+            dictionary.visitEntries(new TitleDictionary.EntryVisitor() {
+                public void visit(byte[] title, int length, long id) {
+                    titleHash.visit(title, length, id != TitleDictionary.NOT_FOUND ? id + idOffsets[shard] : id);
+                }
+            });
+            for (int source = 0; source < shardDirs.length; source++) {
+                if (source == shard) {
+                    continue;
+                }
+                final long sourceOffset = idOffsets[source];
+                CrossShardLinks.read(CrossShardLinks.getFile(shardDirs[source], shard), new CrossShardLinks.Visitor() {
+                    public void visit(long nodeId, char type, int distance, String title) {
+                        long linkNodeId = dictionary.get(title);
+                        if (linkNodeId == TitleDictionary.NOT_FOUND) {
+                            badLinkCount++;
+                            return;
+                        }
+                        createRelationship(sourceOffset + nodeId, idOffsets[shard] + linkNodeId,
+                                RelationshipCreator.getType(type), RelationshipCreator.newProperties(distance));
+                    }
+                });
+            }
+        } finally {
+            dictionary.close();
+        }
+    }
+
+    private void createRelationship(long nodeId, long linkNodeId, WikiRelationshipType type,
+            Map<String, Object> properties) {
+        inserter.createRelationship(nodeId, linkNodeId, type, properties);
+        degrees.add(nodeId, linkNodeId, type);
+        linkCounter.increment();
+    }
+
+}
@@ -24,22 +24,33 @@ package org.graphipedia.dataimport.neo4j;
 import java.util.Arrays;
 import java.util.Map;
 
+import org.graphipedia.dataimport.LinkHandler;
 import org.graphipedia.dataimport.ProgressCounter;
 import org.graphipedia.dataimport.SimpleStaxParser;
+import org.graphipedia.dataimport.TitleDictionary;
+import org.graphipedia.dataimport.TitleNormalizer;
+import org.graphipedia.dataimport.TitleTable;
 import org.neo4j.helpers.collection.MapUtil;
 import org.neo4j.unsafe.batchinsert.BatchInserter;
 import org.neo4j.unsafe.batchinsert.BatchInserterIndex;
 
-public class NodeCreator extends SimpleStaxParser {
+public class NodeCreator extends SimpleStaxParser implements LinkHandler {
 
     private final BatchInserter inserter;
     private final BatchInserterIndex index;
-    private final Map<String, Long> inMemoryIndex;
+    private final TitleDictionary inMemoryIndex;
 
     private final ProgressCounter pageCounter = new ProgressCounter();
+    private ImportShard shard;
+    private long highestNodeId = 0;
+    private int collisionCount = 0;
 
-    public NodeCreator(BatchInserter inserter, BatchInserterIndex index, Map<String, Long> inMemoryIndex) {
+    /**
+     * @param index the Lucene index of titles to fill, or null to skip it
+     */
+    public NodeCreator(BatchInserter inserter, BatchInserterIndex index, TitleDictionary inMemoryIndex) {
         super(Arrays.asList("t"));
+        shareText("t");
         this.inserter = inserter;
         this.index = index;
         this.inMemoryIndex = inMemoryIndex;
@@ -49,22 +60,98 @@ public class NodeCreator extends SimpleStaxParser {
         return pageCounter.getCount();
     }
 
+    public long getHighestNodeId() {
+        return highestNodeId;
+    }
+
+    /**
+     * Returns the number of page titles whose normalised form is the title
+     * of another page too.
+     */
+    public int getCollisionCount() {
+        return collisionCount;
+    }
+
+    /**
+     * Only creates the pages of the given shard.
+     */
+    public void setShard(ImportShard shard) {
+        this.shard = shard;
+    }
+
     @Override
-    protected void handleElement(String element, String value) {
-        if ("t".equals(element)) {
-            createNode(value);
+    protected void handleElement(int element, char[] text, int start, int length) {
+        createNode(new String(text, start, length));
+    }
+
+    public void handlePage(String title) {
+        createNode(title);
+    }
+
+    public void handleLink(char type, int distance, String title) {
+    }
+
+    /**
+     * Creates one node per title in the table, with node id firstNodeId plus
+     * the title's id, so no links file has to be read to number the pages.
+     * The pages of a shard are numbered as they come instead.
+     */
+    public void createNodes(TitleTable titles, long firstNodeId) {
+        if (shard != null) {
+            for (int titleId = 0; titleId < titles.size(); titleId++) {
+                createNode(titles.getTitle(titleId));
+            }
+            return;
+        }
+        for (int titleId = 0; titleId < titles.size(); titleId++) {
+            String title = titles.getTitle(titleId);
+            Map<String, Object> properties = MapUtil.map("title", title);
+            inserter.createNode(firstNodeId + titleId, properties);
+            addNode(firstNodeId + titleId, title, properties);
         }
     }
 
     private void createNode(String title) {
+        if (shard != null && !shard.isLocal(title)) {
+            return;
+        }
         Map<String, Object> properties = MapUtil.map("title", title);
-        long nodeId = inserter.createNode(properties);
-        index.add(nodeId, properties);
-        inMemoryIndex.put(title, nodeId);
+        addNode(inserter.createNode(properties), title, properties);
+    }
+
+    private void addNode(long nodeId, String title, Map<String, Object> properties) {
+        highestNodeId = Math.max(highestNodeId, nodeId);
+        if (index != null) {
+            index.add(nodeId, properties);
+        }
+        if (!addTitle(inMemoryIndex, title, nodeId)) {
+            collisionCount++;
+        }
         pageCounter.increment();
-        if (pageCounter.getCount() % 50000 == 0) {
+        if (index != null && pageCounter.getCount() % 50000 == 0) {
             index.flush();
         }
     }
 
+    /**
+     * Adds the title of a page. Links are looked up by their normalised
+     * form, and a title that is already normalised takes precedence over
+     * one that only maps to it; a title that is not is also kept as it is,
+     * for its page to find its own node. Returns false if the normalised
+     * form is the title of another page too.
+     */
+    static boolean addTitle(TitleDictionary inMemoryIndex, String title, long nodeId) {
+        String key = TitleNormalizer.normalize(title);
+        long previous = inMemoryIndex.get(key);
+        if (key.equals(title)) {
+            inMemoryIndex.put(key, nodeId);
+        } else {
+            inMemoryIndex.put(title, nodeId);
+            if (previous == TitleDictionary.NOT_FOUND) {
+                inMemoryIndex.put(key, nodeId);
+            }
+        }
+        return previous == TitleDictionary.NOT_FOUND || previous == nodeId;
+    }
+
 }
@@ -0,0 +1,400 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport.neo4j;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.graphipedia.dataimport.StageCounter;
+import org.graphipedia.dataimport.TitleDictionary;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+
+/**
+ * A RelationshipCreator that runs as a pipeline. The parsing thread collects
+ * pages and links into batches, a pool of resolver threads looks up the node
+ * ids of the titles in each batch, and a single inserter thread creates the
+ * relationships of the resolved batches. Batches are inserted in the order
+ * they were read, so the store is the same as the sequential one.
+ */
+public class ParallelRelationshipCreator extends RelationshipCreator {
+
+    private static final int BATCH_SIZE = 4096;
+    private static final int REPORT_STEP = 10000000;
+    private static final Future<LinkBatch> END_OF_INPUT = new EndOfInput();
+
+    private final int threads;
+    private final BlockingQueue<Future<LinkBatch>> pendingBatches;
+
+    private final StageCounter parserStage = new StageCounter("parser", 1);
+    private final StageCounter resolverStage;
+    private final StageCounter inserterStage = new StageCounter("insert", 1);
+
+    private ExecutorService resolvers;
+    private LinkBatch batch = new LinkBatch();
+    private boolean skippedPage;
+    private long startTime;
+    private long lastHandoff;
+    private volatile Throwable inserterFailure;
+
+    public ParallelRelationshipCreator(BatchInserter inserter, TitleDictionary inMemoryIndex,
+            RedirectResolver redirects, int threads, int queueDepth) {
+        super(inserter, inMemoryIndex, redirects);
+        this.threads = threads;
+        this.pendingBatches = new ArrayBlockingQueue<Future<LinkBatch>>(queueDepth);
+        this.resolverStage = new StageCounter("resolve", threads);
+    }
+
+    @Override
+    public void importLinks(String fileName) throws Exception {
+        resolvers = Executors.newFixedThreadPool(threads, new ResolverThreadFactory());
+        Thread inserterThread = new Thread(new BatchInserterLoop(), "link-inserter");
+        startTime = System.nanoTime();
+        lastHandoff = startTime;
+        inserterThread.start();
+        try {
+            super.importLinks(fileName);
+            if (batch.linkCount > 0 || batch.pageCount > 0) {
+                submitBatch(getPageIndex() + 1, 0);
+            }
+        } finally {
+            putPending(END_OF_INPUT);
+            joinInserter(inserterThread);
+            resolvers.shutdownNow();
+        }
+        if (inserterFailure != null) {
+            throw new RuntimeException(inserterFailure);
+        }
+        printReport();
+    }
+
+    @Override
+    public void handlePage(String title) {
+        skippedPage = !startPage();
+        if (skippedPage) {
+            return;
+        }
+        // batches only end between pages, so a page's links are never split
+        if (batch.linkCount >= BATCH_SIZE) {
+            submitBatch(getPageIndex(), getPageOffset());
+        }
+        batch.addPage(title);
+    }
+
+    @Override
+    public void handleLink(char type, int distance, String title) {
+        if (!skippedPage) {
+            batch.addLink(type, distance, title);
+        }
+    }
+
+    @Override
+    public void handleLink(char type, int distance, long linkNodeId) {
+        if (!skippedPage) {
+            batch.addResolvedLink(type, distance, linkNodeId);
+        }
+    }
+
+    // nextPage and nextOffset locate the page after the batch, where a
+    // checkpoint taken once the batch is inserted resumes
+    private void submitBatch(long nextPage, long nextOffset) {
+        if (inserterFailure != null) {
+            throw new RuntimeException(inserterFailure);
+        }
+        final LinkBatch full = batch;
+        full.nextPage = nextPage;
+        full.nextOffset = nextOffset;
+        batch = new LinkBatch();
+        long handoff = System.nanoTime();
+        Future<LinkBatch> resolved = resolvers.submit(new Callable<LinkBatch>() {
+            public LinkBatch call() {
+                long start = System.nanoTime();
+                full.resolve(ParallelRelationshipCreator.this);
+                resolverStage.record(full.linkCount, System.nanoTime() - start, 0);
+                return full;
+            }
+        });
+        putPending(resolved);
+        long now = System.nanoTime();
+        parserStage.record(full.linkCount, handoff - lastHandoff, now - handoff);
+        lastHandoff = now;
+    }
+
+    private void putPending(Future<LinkBatch> batch) {
+        try {
+            pendingBatches.put(batch);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(interrupted);
+        }
+    }
+
+    private void joinInserter(Thread inserterThread) {
+        try {
+            inserterThread.join();
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(interrupted);
+        }
+    }
+
+    private void printReport() {
+        long elapsed = System.nanoTime() - startTime;
+        System.out.println();
+        System.out.println(parserStage.report(elapsed));
+        System.out.println(resolverStage.report(elapsed));
+        System.out.println(inserterStage.report(elapsed));
+    }
+
+    private class BatchInserterLoop implements Runnable {
+
+        public void run() {
+            try {
+                long reported = 0;
+                while (true) {
+                    long waitStart = System.nanoTime();
+                    Future<LinkBatch> pending = pendingBatches.take();
+                    if (pending == END_OF_INPUT) {
+                        break;
+                    }
+                    LinkBatch resolved = pending.get();
+                    long insertStart = System.nanoTime();
+                    resolved.insert(ParallelRelationshipCreator.this);
+                    inserterStage.record(resolved.linkCount, System.nanoTime() - insertStart,
+                            insertStart - waitStart);
+                    checkpoint(resolved.nextPage, resolved.nextOffset);
+                    if (inserterStage.getCount() - reported >= REPORT_STEP) {
+                        reported = inserterStage.getCount();
+                        printReport();
+                    }
+                }
+            } catch (InterruptedException interrupted) {
+                inserterFailure = interrupted;
+            } catch (ExecutionException resolverException) {
+                inserterFailure = resolverException.getCause();
+                drain();
+            } catch (RuntimeException runtimeException) {
+                inserterFailure = runtimeException;
+                drain();
+            }
+        }
+
+        // keep taking batches so the parser never blocks on a dead inserter
+        private void drain() {
+            try {
+                while (pendingBatches.take() != END_OF_INPUT) {
+                }
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+    /**
+     * The pages and links read by the parser, in columns, then the
+     * relationships they resolve to.
+     */
+    private static class LinkBatch {
+
+        private String[] pageTitles = new String[64];
+        private int[] pageLinkEnds = new int[64];
+        private int pageCount = 0;
+
+        // a link resolved by the reader has no title, only its node id
+        private String[] linkTitles = new String[BATCH_SIZE];
+        private long[] linkNodeIds = new long[BATCH_SIZE];
+        private char[] linkTypes = new char[BATCH_SIZE];
+        private int[] linkDistances = new int[BATCH_SIZE];
+        private int linkCount = 0;
+
+        private long nextPage;
+        private long nextOffset;
+
+        private long[] sources;
+        private long[] targets;
+        private char[] types;
+        private int[] distances;
+        private int relationshipCount;
+        private int badLinkCount;
+
+        // links to the pages of other shards, when importing one shard
+        private int[] crossShardLinks;
+        private long[] crossShardSources;
+        private int crossShardLinkCount;
+
+        void addPage(String title) {
+            if (pageCount == pageTitles.length) {
+                pageTitles = Arrays.copyOf(pageTitles, 2 * pageCount);
+                pageLinkEnds = Arrays.copyOf(pageLinkEnds, 2 * pageCount);
+            }
+            pageTitles[pageCount] = title;
+            pageLinkEnds[pageCount] = linkCount;
+            pageCount++;
+        }
+
+        void addLink(char type, int distance, String title) {
+            addLink(type, distance, title, TitleDictionary.NOT_FOUND);
+        }
+
+        void addResolvedLink(char type, int distance, long linkNodeId) {
+            addLink(type, distance, null, linkNodeId);
+        }
+
+        private void addLink(char type, int distance, String title, long linkNodeId) {
+            if (pageCount == 0) {
+                // links before the first page have no page to start from
+                return;
+            }
+            if (linkCount == linkTitles.length) {
+                linkTitles = Arrays.copyOf(linkTitles, 2 * linkCount);
+                linkNodeIds = Arrays.copyOf(linkNodeIds, 2 * linkCount);
+                linkTypes = Arrays.copyOf(linkTypes, 2 * linkCount);
+                linkDistances = Arrays.copyOf(linkDistances, 2 * linkCount);
+            }
+            linkTitles[linkCount] = title;
+            linkNodeIds[linkCount] = linkNodeId;
+            linkTypes[linkCount] = type;
+            linkDistances[linkCount] = distance;
+            linkCount++;
+            pageLinkEnds[pageCount - 1] = linkCount;
+        }
+
+        // the same decisions as RelationshipCreator.handlePage and handleLink
+        void resolve(RelationshipCreator creator) {
+            int capacity = linkCount + pageCount;
+            sources = new long[capacity];
+            targets = new long[capacity];
+            types = new char[capacity];
+            distances = new int[capacity];
+            int link = 0;
+            for (int page = 0; page < pageCount; page++) {
+                int linkEnd = pageLinkEnds[page];
+                if (!creator.isLocalPage(pageTitles[page])) {
+                    link = linkEnd;
+                    continue;
+                }
+                long nodeId = creator.findPageNodeId(pageTitles[page]);
+                if (creator.isRedirect(nodeId)) {
+                    add(nodeId, creator.getCanonical(nodeId), 'r', 0);
+                    link = linkEnd;
+                    continue;
+                }
+                for (; link < linkEnd; link++) {
+                    String title = linkTitles[link];
+                    long linkNodeId = title != null ? creator.findLinkNodeId(title) : linkNodeIds[link];
+                    if (linkNodeId != TitleDictionary.NOT_FOUND) {
+                        add(nodeId, linkNodeId, linkTypes[link], linkDistances[link]);
+                    } else if (title != null && creator.isCrossShard(title)) {
+                        addCrossShardLink(nodeId, link);
+                    } else {
+                        badLinkCount++;
+                    }
+                }
+            }
+            pageTitles = null;
+            linkNodeIds = null;
+            if (crossShardLinkCount == 0) {
+                linkTitles = null;
+            }
+        }
+
+        private void addCrossShardLink(long source, int link) {
+            if (crossShardLinks == null) {
+                crossShardLinks = new int[16];
+                crossShardSources = new long[16];
+            } else if (crossShardLinkCount == crossShardLinks.length) {
+                crossShardLinks = Arrays.copyOf(crossShardLinks, 2 * crossShardLinkCount);
+                crossShardSources = Arrays.copyOf(crossShardSources, 2 * crossShardLinkCount);
+            }
+            crossShardLinks[crossShardLinkCount] = link;
+            crossShardSources[crossShardLinkCount++] = source;
+        }
+
+        private void add(long source, long target, char type, int distance) {
+            sources[relationshipCount] = source;
+            targets[relationshipCount] = target;
+            types[relationshipCount] = type;
+            distances[relationshipCount] = distance;
+            relationshipCount++;
+        }
+
+        void insert(RelationshipCreator creator) {
+            for (int i = 0; i < relationshipCount; i++) {
+                creator.createRelationship(sources[i], targets[i], RelationshipCreator.getType(types[i]),
+                        distances[i]);
+            }
+            for (int i = 0; i < crossShardLinkCount; i++) {
+                int link = crossShardLinks[i];
+                creator.addCrossShardLink(crossShardSources[i], linkTypes[link], linkDistances[link],
+                        linkTitles[link]);
+            }
+            creator.addBadLinks(badLinkCount);
+        }
+
+    }
+
+    private static class EndOfInput implements Future<LinkBatch> {
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return true;
+        }
+
+        public LinkBatch get() {
+            return null;
+        }
+
+        public LinkBatch get(long timeout, TimeUnit unit) {
+            return null;
+        }
+
+    }
+
+    private static class ResolverThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "link-resolver-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
@@ -0,0 +1,195 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport.neo4j;
+
+import java.util.Arrays;
+
+import org.graphipedia.dataimport.BinaryLinkReader;
+import org.graphipedia.dataimport.LinkHandler;
+import org.graphipedia.dataimport.TitleDictionary;
+import org.graphipedia.dataimport.XmlLinkReader;
+
+/**
+ * Reads the links file once to find the redirect pages, whose first link is
+ * a redirect, and resolves each one to the article at the end of its chain
+ * of redirects.
+ * <p>
+ * Chains longer than MAX_CHAIN, chains that loop back on themselves and
+ * redirects to missing pages are left alone: those pages keep their own
+ * relationships, as without collapsing.
+ */
+public class RedirectResolver implements LinkHandler {
+
+    public static final int MAX_CHAIN = 8;
+
+    private final TitleDictionary inMemoryIndex;
+
+    // by node id: the redirect target while reading, the canonical page
+    // after resolve(), 0 for pages that are not redirects
+    private int[] targets = new int[1024];
+    private long nodeId;
+    private boolean firstLink;
+
+    private int redirectCount = 0;
+    private int brokenCount = 0;
+    private int cycleCount = 0;
+    private int longChainCount = 0;
+
+    public RedirectResolver(TitleDictionary inMemoryIndex) {
+        this.inMemoryIndex = inMemoryIndex;
+    }
+
+    /**
+     * For subclasses that look up the node ids of titles themselves.
+     */
+    protected RedirectResolver() {
+        this(null);
+    }
+
+    /**
+     * Returns the node id of the page a link goes to, or
+     * TitleDictionary.NOT_FOUND. Node id 0 is never a page.
+     */
+    protected long findNodeId(String title) {
+        return RelationshipCreator.findNodeId(inMemoryIndex, title);
+    }
+
+    /**
+     * Returns the node id of the page with exactly the given title, or
+     * TitleDictionary.NOT_FOUND.
+     */
+    protected long findPageNodeId(String title) {
+        return RelationshipCreator.findPageNodeId(inMemoryIndex, title);
+    }
+
+    public void handlePage(String title) {
+        nodeId = findPageNodeId(title);
+        firstLink = true;
+    }
+
+    public void handleLink(char type, int distance, String title) {
+        if (!firstLink) {
+            return;
+        }
+        firstLink = false;
+        if (type != 'r' || nodeId == TitleDictionary.NOT_FOUND) {
+            return;
+        }
+        long target = findNodeId(title);
+        if (target == TitleDictionary.NOT_FOUND) {
+            brokenCount++;
+            return;
+        }
+        if (nodeId >= targets.length) {
+            targets = Arrays.copyOf(targets, Math.max(2 * targets.length, (int) nodeId + 1));
+        }
+        targets[(int) nodeId] = (int) target;
+    }
+
+    /**
+     * Reads the links file for the redirect pages and resolves each one to
+     * its canonical page.
+     */
+    public void resolve(String fileName) throws Exception {
+        System.out.println("Resolving redirects...");
+        long startTime = System.currentTimeMillis();
+        if (BinaryLinkReader.isBinaryLinkFile(fileName)) {
+            new BinaryLinkReader(fileName).read(this, true);
+        } else {
+            new XmlLinkReader(this).parse(fileName);
+        }
+        resolve();
+        long elapsedSeconds = (System.currentTimeMillis() - startTime) / 1000;
+        System.out.printf("%d redirects resolved in %d seconds; %d broken, %d in cycles and %d in chains longer "
+                + "than %d left as they are\n", redirectCount, elapsedSeconds, brokenCount, cycleCount,
+                longChainCount, MAX_CHAIN);
+    }
+
+    /**
+     * Replaces each redirect's target with the end of its chain. Must be
+     * called once, after the links file has been read.
+     */
+    public void resolve() {
+        int[] canonical = new int[targets.length];
+        int[] chain = new int[MAX_CHAIN + 1];
+        for (int page = 0; page < targets.length; page++) {
+            if (targets[page] == 0) {
+                continue;
+            }
+            int length = 0;
+            int node = page;
+            boolean cycle = false;
+            while (isRedirect(targets, node) && !cycle && length <= MAX_CHAIN) {
+                chain[length++] = node;
+                node = targets[node];
+                for (int i = 0; i < length; i++) {
+                    cycle |= chain[i] == node;
+                }
+            }
+            if (cycle) {
+                cycleCount++;
+            } else if (isRedirect(targets, node)) {
+                longChainCount++;
+            } else {
+                canonical[page] = node;
+                redirectCount++;
+            }
+        }
+        targets = canonical;
+    }
+
+    /**
+     * Returns true if the page is a redirect that resolve() collapsed.
+     */
+    public boolean isRedirect(long nodeId) {
+        return isRedirect(targets, nodeId);
+    }
+
+    /**
+     * Returns the article the page redirects to, or the page itself if it
+     * is not a collapsed redirect.
+     */
+    public long getCanonical(long nodeId) {
+        return isRedirect(targets, nodeId) ? targets[(int) nodeId] : nodeId;
+    }
+
+    public int getRedirectCount() {
+        return redirectCount;
+    }
+
+    public int getBrokenCount() {
+        return brokenCount;
+    }
+
+    public int getCycleCount() {
+        return cycleCount;
+    }
+
+    public int getLongChainCount() {
+        return longChainCount;
+    }
+
+    private static boolean isRedirect(int[] targets, long nodeId) {
+        return nodeId >= 0 && nodeId < targets.length && targets[(int) nodeId] != 0;
+    }
+
+}
@@ -21,38 +21,93 @@
 //
 package org.graphipedia.dataimport.neo4j;
 
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import org.graphipedia.dataimport.BinaryLinkReader;
+import org.graphipedia.dataimport.LinkHandler;
+import org.graphipedia.dataimport.LinkTitleResolver;
 import org.graphipedia.dataimport.ProgressCounter;
 import org.graphipedia.dataimport.SimpleStaxParser;
-import org.neo4j.helpers.collection.MapUtil;
+import org.graphipedia.dataimport.TitleDictionary;
+import org.graphipedia.dataimport.TitleNormalizer;
 import org.neo4j.unsafe.batchinsert.BatchInserter;
 
-import org.neo4j.graphdb.RelationshipType;
-import org.neo4j.graphdb.DynamicRelationshipType;
+public class RelationshipCreator extends SimpleStaxParser implements LinkHandler, LinkTitleResolver {
 
-public class RelationshipCreator extends SimpleStaxParser {
+    // a link written without ||dist|| metadata
+    static final int NO_DISTANCE = -1;
 
-    private final BatchInserter inserter;
-    private final Map<String, Long> inMemoryIndex;
+    private static final List<String> ELEMENTS = Arrays.asList("t", "l", "h", "r");
+    private static final int PAGE = 0;
 
-    private final ProgressCounter linkCounter = new ProgressCounter();
+    private static final int SHARED_PROPERTIES = 256;
 
-    private static String METADATA_REGEX = "\\|\\|(.+?)\\|\\|";
+    private BatchInserter inserter;
+    private final TitleDictionary inMemoryIndex;
+    private final RedirectResolver redirects;
+    private DegreeCounter degrees;
 
-    private static final Pattern METADATA_PATTERN = Pattern.compile(METADATA_REGEX);
+    private ProgressCounter linkCounter = new ProgressCounter();
+
+    // the inserter copies the properties, so one map per distance will do
+    private final Map<String, Object>[] distanceProperties = newPropertiesArray(SHARED_PROPERTIES);
 
     private long nodeId;
+    private boolean redirectPage;
+    private boolean skippedPage;
     private int badLinkCount = 0;
 
-    public RelationshipCreator(BatchInserter inserter,  Map<String, Long> inMemoryIndex) {
-        super(Arrays.asList("t", "l", "h", "r"));
+    private BinaryLinkReader binaryReader;
+    private long pageIndex = -1;
+    private long resumePage = 0;
+    private long resumeOffset = 0;
+
+    private ImportShard shard;
+    private CrossShardLinks crossShardLinks;
+    private long crossShardLinkCount = 0;
+
+    private CheckpointListener checkpoints;
+    private int checkpointInterval;
+    private int checkpointLinkCount = 0;
+    private volatile boolean stopRequested = false;
+
+    /**
+     * Receives the position from which the import can go on, every so many
+     * links.
+     */
+    public interface CheckpointListener {
+
+        /**
+         * @param page the index of the next page to import
+         * @param offset its offset in a binary link file, or 0
+         * @param last whether the import stops after this checkpoint
+         */
+        void checkpoint(RelationshipCreator creator, long page, long offset, boolean last) throws IOException;
+
+    }
+
+    public RelationshipCreator(BatchInserter inserter,  TitleDictionary inMemoryIndex) {
+        this(inserter, inMemoryIndex, null);
+    }
+
+    /**
+     * With resolved redirects, links to a redirect page go to its canonical
+     * page instead, and a redirect page only gets one Redirect relationship,
+     * to its canonical page.
+     */
+    public RelationshipCreator(BatchInserter inserter,  TitleDictionary inMemoryIndex, RedirectResolver redirects) {
+        super(ELEMENTS);
+        for (String element : ELEMENTS) {
+            shareText(element);
+        }
         this.inserter = inserter;
         this.inMemoryIndex = inMemoryIndex;
+        this.redirects = redirects;
+        this.degrees = new DegreeCounter(inMemoryIndex.size() + 2);
     }
 
     public int getLinkCount() {
@@ -63,82 +118,304 @@ public class RelationshipCreator extends SimpleStaxParser {
         return badLinkCount;
     }
 
+    /**
+     * Returns the degrees of the nodes, counted as their relationships are
+     * created.
+     */
+    public DegreeCounter getDegrees() {
+        return degrees;
+    }
+
+    public long getCrossShardLinkCount() {
+        return crossShardLinkCount;
+    }
+
+    /**
+     * Only imports the pages of the given shard, whose nodes are the only
+     * ones in the title dictionary, and writes their links to the pages of
+     * other shards to the side tables.
+     */
+    public void setShard(ImportShard shard, CrossShardLinks crossShardLinks) {
+        this.shard = shard;
+        this.crossShardLinks = crossShardLinks;
+    }
+
+    /**
+     * Replaces the inserter, after a checkpoint listener has reopened the
+     * store; it is called on the thread that inserts the relationships.
+     */
+    void setInserter(BatchInserter inserter) {
+        this.inserter = inserter;
+    }
+
+    /**
+     * Calls the listener at the first page boundary after every interval
+     * links.
+     */
+    public void setCheckpoints(CheckpointListener checkpoints, int interval) {
+        this.checkpoints = checkpoints;
+        this.checkpointInterval = interval;
+    }
+
+    /**
+     * Asks the import to stop at the next page boundary, after a last
+     * checkpoint, rather than go on to the end of the links file.
+     */
+    void requestStop() {
+        stopRequested = true;
+    }
+
+    /**
+     * Goes on from a checkpoint: pages before it are skipped. The store must
+     * hold no relationships created after it, as when the import stopped
+     * at that checkpoint.
+     */
+    public void resume(ImportCheckpoint checkpoint, DegreeCounter degrees) {
+        resumePage = checkpoint.getPage();
+        resumeOffset = checkpoint.getOffset();
+        linkCounter = new ProgressCounter(checkpoint.getLinkCount());
+        checkpointLinkCount = checkpoint.getLinkCount();
+        badLinkCount = checkpoint.getBadLinkCount();
+        if (degrees != null) {
+            this.degrees = degrees;
+        }
+    }
+
+    /**
+     * Reads the links of a binary or XML link file and creates their
+     * relationships.
+     */
+    public void importLinks(String fileName) throws Exception {
+        if (BinaryLinkReader.isBinaryLinkFile(fileName)) {
+            binaryReader = new BinaryLinkReader(fileName);
+            if (resolvesLinkTitles()) {
+                binaryReader.setLinkTitleResolver(this);
+            }
+            if (resumeOffset > 0) {
+                pageIndex = resumePage - 1;
+            }
+            binaryReader.read(this, true, resumeOffset);
+        } else {
+            parse(fileName);
+        }
+    }
+
     // element is the XML tag
 
     @Override
-    protected void handleElement(String element, String value) {
+    protected void handleElement(int element, char[] text, int start, int length) {
         // this assumes in-order t -> l detection
-        if ("t".equals(element)) {
-            nodeId = findNodeId(value);
-        } else if ("l".equals(element)||"r".equals(element)||"h".equals(element)) {
-            createRelationship(nodeId, value, element);
-        }
-    }
-
-    private void createRelationship(long nodeId, String link, String linkclass) {
-        String title = extractLinkTitle(link);
-        Long linkNodeId = findNodeId(title);
-        String linkDistance = extractLinkCount(link);
-        Map<String, Object> properties = new HashMap<String, Object>();
-        properties.put("dist",linkDistance);
-        if (linkNodeId != null) {
-            inserter.createRelationship(nodeId,
-                                        linkNodeId,
-                                        getType(linkclass),
-                                        properties);
-            linkCounter.increment();
+        if (element == PAGE) {
+            handlePage(new String(text, start, length));
         } else {
-            // System.out.println(link);
-            // System.out.println(extractLinkTitle(link));
-            if (title.length()<2) {
-                linkNodeId = findNodeId(title.toUpperCase());
+            // ||dist||title
+            int end = start + length;
+            char type = getElementName(element).charAt(0);
+            boolean hasDistance = length > 2 && text[start] == '|' && text[start + 1] == '|';
+            int titleStart = hasDistance ? indexOf(text, start + 3, end, "||") : -1;
+            if (titleStart < 0) {
+                handleLink(type, NO_DISTANCE, new String(text, start, length));
             } else {
-                linkNodeId = findNodeId(title.substring(0,1).toUpperCase() + title.substring(1)); 
-            }
-            if (linkNodeId != null) {
-                inserter.createRelationship(nodeId,
-                                            linkNodeId,
-                                            getType(linkclass),
-                                            properties);
-                linkCounter.increment();
-            } else {
-                // if (link.contains("philosophy")) {
-                //     System.out.println(link);
-                //     String title = extractLinkTitle(link);
-                //     System.out.println(title.substring(0,1).toUpperCase() + title.substring(1));
-                // }
-                badLinkCount++;
+                handleLink(type, parseInt(text, start + 2, titleStart),
+                        new String(text, titleStart + 2, end - titleStart - 2));
             }
         }
     }
 
-    private String extractLinkTitle(String raw) {
-        return raw.replaceAll(METADATA_REGEX,"");
+    public void handlePage(String title) {
+        skippedPage = !startPage();
+        if (skippedPage) {
+            return;
+        }
+        checkpoint(pageIndex, getPageOffset());
+        if (!isLocalPage(title)) {
+            skippedPage = true;
+            return;
+        }
+        nodeId = findPageNodeId(title);
+        redirectPage = isRedirect(nodeId);
+        if (redirectPage) {
+            createRelationship(nodeId, redirects.getCanonical(nodeId), WikiRelationshipType.Redirect, 0);
+        }
+    }
+
+    public void handleLink(char type, int distance, String title) {
+        if (redirectPage || skippedPage) {
+            return;
+        }
+        long linkNodeId = findLinkNodeId(title);
+        if (linkNodeId != TitleDictionary.NOT_FOUND) {
+            createRelationship(nodeId, linkNodeId, getType(type), distance);
+        } else if (isCrossShard(title)) {
+            addCrossShardLink(nodeId, type, distance, title);
+        } else {
+            badLinkCount++;
+        }
+    }
+
+    // link titles of a binary link file are looked up once per title, a
+    // cross-shard one each time it is linked to
+    public long resolve(String title) {
+        long linkNodeId = findLinkNodeId(title);
+        if (linkNodeId == TitleDictionary.NOT_FOUND && isCrossShard(title)) {
+            return TITLE_NEEDED;
+        }
+        return linkNodeId;
+    }
+
+    public void handleLink(char type, int distance, long linkNodeId) {
+        if (redirectPage || skippedPage) {
+            return;
+        }
+        if (linkNodeId != TitleDictionary.NOT_FOUND) {
+            createRelationship(nodeId, linkNodeId, getType(type), distance);
+        } else {
+            badLinkCount++;
+        }
+    }
+
+    // whether links are passed to handleLink resolved, when they can be
+    boolean resolvesLinkTitles() {
+        return true;
+    }
+
+    boolean isLocalPage(String title) {
+        return shard == null || shard.isLocal(title);
+    }
+
+    // whether a link title not found in the dictionary is a page of
+    // another shard rather than a broken link
+    boolean isCrossShard(String title) {
+        return shard != null && !shard.isLocal(title);
+    }
+
+    void addCrossShardLink(long nodeId, char type, int distance, String title) {
+        try {
+            crossShardLinks.add(nodeId, type, distance, title);
+        } catch (IOException ioException) {
+            throw new RuntimeException(ioException);
+        }
+        crossShardLinkCount++;
+    }
+
+    // counts a page read, and returns false if it was imported before the
+    // checkpoint the import resumed from
+    boolean startPage() {
+        pageIndex++;
+        return pageIndex >= resumePage;
+    }
+
+    long getPageIndex() {
+        return pageIndex;
+    }
+
+    long getPageOffset() {
+        return binaryReader != null ? binaryReader.getPageOffset() : 0;
+    }
+
+    // called between pages, once every relationship of the pages before
+    // the given one is created
+    void checkpoint(long page, long offset) {
+        boolean last = stopRequested;
+        if (checkpoints == null || !last && getLinkCount() - checkpointLinkCount < checkpointInterval) {
+            return;
+        }
+        try {
+            checkpoints.checkpoint(this, page, offset, last);
+        } catch (IOException ioException) {
+            throw new RuntimeException(ioException);
+        }
+        checkpointLinkCount = getLinkCount();
+        if (last) {
+            throw new IllegalStateException("import stopped before page " + page + ", run it again with --resume");
+        }
+    }
+
+    boolean isRedirect(long nodeId) {
+        return redirects != null && redirects.isRedirect(nodeId);
+    }
+
+    long getCanonical(long nodeId) {
+        return redirects.getCanonical(nodeId);
+    }
+
+    // safe to call from several threads once all the nodes are created
+    long findLinkNodeId(String title) {
+        long linkNodeId = findNodeId(title);
+        if (redirects != null && linkNodeId != TitleDictionary.NOT_FOUND) {
+            linkNodeId = redirects.getCanonical(linkNodeId);
+        }
+        return linkNodeId;
+    }
+
+    void createRelationship(long nodeId, long linkNodeId, WikiRelationshipType type, int distance) {
+        inserter.createRelationship(nodeId, linkNodeId, type, getProperties(distance));
+        degrees.add(nodeId, linkNodeId, type);
+        linkCounter.increment();
+    }
+
+    void addBadLinks(int count) {
+        badLinkCount += count;
+    }
+
+    private Map<String, Object> getProperties(int distance) {
+        if (distance < 0 || distance >= SHARED_PROPERTIES) {
+            return newProperties(distance);
+        }
+        Map<String, Object> properties = distanceProperties[distance];
+        if (properties == null) {
+            properties = newProperties(distance);
+            distanceProperties[distance] = properties;
+        }
+        return properties;
     }
 
-    private String extractLinkCount(String raw) {
-        Matcher m = METADATA_PATTERN.matcher(raw);
-        String s = "";
-        while (m.find()) {
-            s = m.group(1);    
+    // dist is an int, so traversals can compare it without parsing
+    static Map<String, Object> newProperties(int distance) {
+        if (distance == NO_DISTANCE) {
+            return Collections.emptyMap();
         }
-        return s;
+        return Collections.<String, Object> singletonMap("dist", distance);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Map<String, Object>[] newPropertiesArray(int size) {
+        return new Map[size];
+    }
+
+    long findNodeId(String title) {
+        return findNodeId(inMemoryIndex, title);
     }
 
-    private Long findNodeId(String title) {
+    long findPageNodeId(String title) {
+        return findPageNodeId(inMemoryIndex, title);
+    }
+
+    /**
+     * Finds the node of a page by its own title, under which NodeCreator
+     * stored every title; links to a title that is not in normal form may
+     * go to another page, the one whose title is its normal form.
+     */
+    static long findPageNodeId(TitleDictionary inMemoryIndex, String title) {
         return inMemoryIndex.get(title);
     }
 
-    private WikiRelationshipType getType(String linkclass) {
-        linkclass = linkclass.replaceAll("\\.","");
-        if (linkclass=="l") {
-            return WikiRelationshipType.Link;
-        } else if (linkclass=="r") {
+    /**
+     * Finds the node a link goes to with a single lookup of its normalised
+     * form, under which NodeCreator stored every title.
+     */
+    static long findNodeId(TitleDictionary inMemoryIndex, String title) {
+        return inMemoryIndex.get(TitleNormalizer.normalize(title));
+    }
+
+    static WikiRelationshipType getType(char type) {
+        switch (type) {
+        case 'r':
             return WikiRelationshipType.Redirect;
-        } else if (linkclass=="h") {
+        case 'h':
             return WikiRelationshipType.Related;
+        default:
+            return WikiRelationshipType.Link;
         }
-        System.out.println("This should never execute: [" + linkclass + "]");
-        return WikiRelationshipType.Link;
     }
 }
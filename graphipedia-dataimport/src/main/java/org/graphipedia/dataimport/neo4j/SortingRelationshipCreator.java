@@ -0,0 +1,255 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport.neo4j;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.graphipedia.dataimport.ExternalSorter;
+import org.graphipedia.dataimport.TitleDictionary;
+import org.graphipedia.dataimport.TitleNormalizer;
+import org.graphipedia.dataimport.Utf8;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+
+/**
+ * A RelationshipCreator that resolves link titles by sorting rather than by
+ * one dictionary lookup per link, so that memory use is bounded and every
+ * disk access is sequential:
+ * <ol>
+ * <li>the links file is read once, and each page and link is written to
+ * sorted runs keyed by its normalised title;</li>
+ * <li>the title dictionary is written out sorted by title the same way;</li>
+ * <li>both are merge-joined, and each resolved link is written to new runs
+ * keyed by its page and its position on the page;</li>
+ * <li>those are merged, and the relationships created in that order.</li>
+ * </ol>
+ * The relationships come out in the same order as RelationshipCreator's.
+ */
+public class SortingRelationshipCreator extends RelationshipCreator {
+
+    // page index, position on the page, type and distance
+    private static final int LINK_BYTES = 17;
+    // target node id, type and distance
+    private static final int RESOLVED_BYTES = 13;
+
+    private final TitleDictionary inMemoryIndex;
+    private final File workDir;
+    private final int memory;
+
+    private ExternalSorter linkSorter;
+    private long pageIndex = -1;
+    private int linkIndex;
+    private byte[] key = new byte[256];
+    private final byte[] value = new byte[LINK_BYTES];
+
+    /**
+     * @param workDir the directory for the sorted runs, removed afterwards
+     * @param memory the bytes the sort buffer may hold
+     */
+    public SortingRelationshipCreator(BatchInserter inserter, TitleDictionary inMemoryIndex,
+            RedirectResolver redirects, File workDir, int memory) {
+        super(inserter, inMemoryIndex, redirects);
+        this.inMemoryIndex = inMemoryIndex;
+        this.workDir = workDir;
+        this.memory = memory;
+    }
+
+    @Override
+    public void importLinks(String fileName) throws Exception {
+        if (!workDir.isDirectory() && !workDir.mkdirs()) {
+            throw new IOException("cannot create " + workDir);
+        }
+        long startTime = System.currentTimeMillis();
+        linkSorter = new ExternalSorter(workDir, "links", memory);
+        super.importLinks(fileName);
+        // sorted() releases each sorter's buffer before the next one fills
+        ExternalSorter.Reader linkReader = linkSorter.sorted();
+        ExternalSorter titleSorter = sortTitles();
+        ExternalSorter.Reader titleReader = titleSorter.sorted();
+        System.out.printf("\n%d pages and links and %d titles spilled to %d and %d runs in %d seconds\n",
+                linkSorter.size(), titleSorter.size(), linkSorter.getRunCount(), titleSorter.getRunCount(),
+                (System.currentTimeMillis() - startTime) / 1000);
+
+        startTime = System.currentTimeMillis();
+        ExternalSorter resolvedSorter = join(linkReader, titleReader);
+        linkSorter.delete();
+        titleSorter.delete();
+        System.out.printf("titles joined into %d runs in %d seconds\n", resolvedSorter.getRunCount(),
+                (System.currentTimeMillis() - startTime) / 1000);
+
+        createRelationships(resolvedSorter);
+        resolvedSorter.delete();
+        workDir.delete();
+    }
+
+    // the titles are resolved by the join, not one by one
+    @Override
+    boolean resolvesLinkTitles() {
+        return false;
+    }
+
+    @Override
+    public void handlePage(String title) {
+        pageIndex++;
+        linkIndex = 0;
+        spill(title, 0, 0);
+    }
+
+    @Override
+    public void handleLink(char type, int distance, String title) {
+        if (pageIndex >= 0) {
+            spill(TitleNormalizer.normalize(title), type, distance);
+        }
+    }
+
+    // the page itself is at position 0, its links from 1 on, each under the
+    // dictionary key it is looked up by
+    private void spill(String titleKey, int type, int distance) {
+        if (key.length < titleKey.length() * Utf8.MAX_BYTES_PER_CHAR) {
+            key = new byte[titleKey.length() * Utf8.MAX_BYTES_PER_CHAR];
+        }
+        int keyLength = Utf8.encode(titleKey, 0, titleKey.length(), key, 0);
+        putLong(value, 0, pageIndex);
+        putInt(value, 8, linkIndex++);
+        value[12] = (byte) type;
+        putInt(value, 13, distance);
+        try {
+            linkSorter.add(key, keyLength, value, LINK_BYTES);
+        } catch (IOException ioException) {
+            throw new RuntimeException(ioException);
+        }
+    }
+
+    private ExternalSorter sortTitles() throws IOException {
+        final ExternalSorter titleSorter = new ExternalSorter(workDir, "titles", memory);
+        final byte[] id = new byte[8];
+        try {
+            inMemoryIndex.visitEntries(new TitleDictionary.EntryVisitor() {
+                public void visit(byte[] title, int length, long nodeId) {
+                    if (nodeId == TitleDictionary.NOT_FOUND) {
+                        return;
+                    }
+                    putLong(id, 0, nodeId);
+                    try {
+                        titleSorter.add(title, length, id, id.length);
+                    } catch (IOException ioException) {
+                        throw new RuntimeException(ioException);
+                    }
+                }
+            });
+        } catch (RuntimeException runtimeException) {
+            if (runtimeException.getCause() instanceof IOException) {
+                throw (IOException) runtimeException.getCause();
+            }
+            throw runtimeException;
+        }
+        return titleSorter;
+    }
+
+    // both sorted by title: each link takes the id of the title it meets
+    private ExternalSorter join(ExternalSorter.Reader linkReader, ExternalSorter.Reader titleReader)
+            throws IOException {
+        ExternalSorter resolvedSorter = new ExternalSorter(workDir, "resolved", memory);
+        byte[] resolvedKey = new byte[12];
+        byte[] resolved = new byte[RESOLVED_BYTES];
+        try {
+            boolean moreTitles = titleReader.next();
+            while (linkReader.next()) {
+                int order = -1;
+                while (moreTitles && (order = compareKeys(titleReader, linkReader)) < 0) {
+                    moreTitles = titleReader.next();
+                }
+                long nodeId = moreTitles && order == 0 ? getLong(titleReader.getValue(), 0)
+                        : TitleDictionary.NOT_FOUND;
+                byte[] link = linkReader.getValue();
+                System.arraycopy(link, 0, resolvedKey, 0, 12);
+                putLong(resolved, 0, nodeId);
+                System.arraycopy(link, 12, resolved, 8, 5);
+                resolvedSorter.add(resolvedKey, resolvedKey.length, resolved, resolved.length);
+            }
+        } finally {
+            linkReader.close();
+            titleReader.close();
+        }
+        return resolvedSorter;
+    }
+
+    private static int compareKeys(ExternalSorter.Reader title, ExternalSorter.Reader link) {
+        return ExternalSorter.compare(title.getKey(), 0, title.getKeyLength(), link.getKey(), 0,
+                link.getKeyLength());
+    }
+
+    // the same decisions as RelationshipCreator.handlePage and handleLink
+    private void createRelationships(ExternalSorter resolvedSorter) throws IOException {
+        ExternalSorter.Reader reader = resolvedSorter.sorted();
+        try {
+            long nodeId = TitleDictionary.NOT_FOUND;
+            boolean redirectPage = false;
+            while (reader.next()) {
+                byte[] position = reader.getKey();
+                byte[] resolved = reader.getValue();
+                long linkNodeId = getLong(resolved, 0);
+                if (getInt(position, 8) == 0) {
+                    nodeId = linkNodeId;
+                    redirectPage = nodeId != TitleDictionary.NOT_FOUND && isRedirect(nodeId);
+                    if (redirectPage) {
+                        createRelationship(nodeId, getCanonical(nodeId), WikiRelationshipType.Redirect, 0);
+                    }
+                } else if (redirectPage || nodeId == TitleDictionary.NOT_FOUND) {
+                    continue;
+                } else if (linkNodeId == TitleDictionary.NOT_FOUND) {
+                    addBadLinks(1);
+                } else {
+                    if (isRedirect(linkNodeId)) {
+                        linkNodeId = getCanonical(linkNodeId);
+                    }
+                    createRelationship(nodeId, linkNodeId, getType((char) (resolved[8] & 0xff)),
+                            getInt(resolved, 9));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        putInt(bytes, offset, (int) (value >>> 32));
+        putInt(bytes, offset + 4, (int) value);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        return ((long) getInt(bytes, offset) << 32) | (getInt(bytes, offset + 4) & 0xffffffffL);
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+}
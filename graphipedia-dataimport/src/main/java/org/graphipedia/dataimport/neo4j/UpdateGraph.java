@@ -0,0 +1,509 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport.neo4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.graphipedia.dataimport.BinaryLinkReader;
+import org.graphipedia.dataimport.LinkHandler;
+import org.graphipedia.dataimport.ProgressCounter;
+import org.graphipedia.dataimport.TitleDictionary;
+import org.graphipedia.dataimport.TitleHashWriter;
+import org.graphipedia.dataimport.Utf8;
+import org.graphipedia.dataimport.XmlLinkReader;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+
+/**
+ * Brings a store created by ImportGraph up to date with a newer links file,
+ * without importing it again. Each page's links in the file are compared
+ * with the relationships the page has in the store, and only the
+ * difference is applied: new pages become nodes, missing links become
+ * relationships and links gone from the page are deleted. Given a full
+ * links file, pages no longer in it are deleted too; given only the
+ * changed pages (--changes), no page is deleted.
+ * <p>
+ * The title dictionary ImportGraph saved as "titles.dict", "titles.mph",
+ * "degrees" and the Lucene "pages" index are updated along with the store.
+ * Graph snapshots are exported from links files, not from the store, so the
+ * UPDATE_TIME file tells GraphipediaService which ones predate the update.
+ * Changes are committed every OPERATIONS_PER_TRANSACTION nodes or
+ * relationships, but the files are only written once the update is done.
+ * An update that stops half way leaves the INCOMPLETE file behind, and the
+ * next one rebuilds the dictionary and the degrees from the nodes' titles
+ * and relationships in the store instead of reading them, so that running
+ * it again picks up where it stopped.
+ */
+public class UpdateGraph {
+
+    static final String INCOMPLETE = "update.incomplete";
+    // GraphipediaService ignores graph snapshots exported before this file
+    // was last written
+    static final String UPDATE_TIME = "update.time";
+    private static final int OPERATIONS_PER_TRANSACTION = 10000;
+    private static final WikiRelationshipType[] TYPES = WikiRelationshipType.values();
+
+    private final String dataDir;
+    private final GraphDatabaseService db;
+    private final Index<Node> index;
+    private final TitleDictionary inMemoryIndex;
+    private final DegreeCounter degrees;
+    private RedirectResolver redirects;
+
+    private Transaction tx;
+    private int operations = 0;
+
+    // the nodes of the pages in the links file
+    private final BitSet pages = new BitSet();
+    private int pageCount = 0;
+    private int newPageCount = 0;
+    private int collisionCount = 0;
+    private int deletedPageCount = 0;
+    private int changedPageCount = 0;
+    private long newLinkCount = 0;
+    private long deletedLinkCount = 0;
+    private int badLinkCount = 0;
+
+    public UpdateGraph(String dataDir) throws IOException {
+        this(dataDir, null);
+    }
+
+    /**
+     * @param dictionaryFile if not null, the title dictionary is kept in this
+     *        memory-mapped file instead of off-heap memory
+     */
+    public UpdateGraph(String dataDir, String dictionaryFile) throws IOException {
+        this.dataDir = dataDir;
+        File snapshot = new File(dataDir, ImportGraph.TITLE_SNAPSHOT);
+        if (!snapshot.isFile()) {
+            throw new IllegalStateException("no title dictionary in " + dataDir
+                    + ", the store must be imported again before it can be updated");
+        }
+        if (dictionaryFile != null) {
+            inMemoryIndex = new TitleDictionary(1024, new File(dictionaryFile));
+        } else {
+            inMemoryIndex = new TitleDictionary(1024);
+        }
+        db = new EmbeddedGraphDatabase(dataDir);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                db.shutdown();
+            }
+        });
+        index = db.index().existsForNodes("pages") ? db.index().forNodes("pages") : null;
+        File degreeFile = new File(dataDir, DegreeCounter.FILE);
+        if (new File(dataDir, INCOMPLETE).exists()) {
+            System.out.println("An earlier update did not finish, reading the titles and degrees from the store...");
+            degrees = readStore(degreeFile.isFile());
+        } else {
+            inMemoryIndex.readSnapshot(snapshot);
+            degrees = degreeFile.isFile() ? DegreeCounter.read(degreeFile) : null;
+        }
+    }
+
+    // the files as they would be had the committed changes been written to
+    // them; nodes are visited in the order they were created, so colliding
+    // titles go to the same nodes as they did then
+    private DegreeCounter readStore(boolean countDegrees) {
+        DegreeCounter degrees = countDegrees ? new DegreeCounter(0) : null;
+        ProgressCounter nodeCounter = new ProgressCounter();
+        for (Node node : db.getAllNodes()) {
+            Object title = node.getProperty("title", null);
+            if (title == null) {
+                continue;
+            }
+            NodeCreator.addTitle(inMemoryIndex, title.toString(), node.getId());
+            if (degrees != null) {
+                for (Relationship relationship : node.getRelationships(Direction.OUTGOING)) {
+                    degrees.add(node.getId(), relationship.getEndNode().getId(),
+                            WikiRelationshipType.valueOf(relationship.getType().name()));
+                }
+            }
+            nodeCounter.increment();
+        }
+        System.out.printf("\n%d titles read from the store\n", nodeCounter.getCount());
+        return degrees;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String dictionaryFile = null;
+        boolean changesOnly = false;
+        boolean collapseRedirects = false;
+        List<String> files = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--dictionary-file".equals(args[i]) && i + 1 < args.length) {
+                dictionaryFile = args[++i];
+            } else if ("--changes".equals(args[i])) {
+                changesOnly = true;
+            } else if ("--collapse-redirects".equals(args[i])) {
+                collapseRedirects = true;
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.size() < 2 || changesOnly && collapseRedirects) {
+            System.out.println("USAGE: UpdateGraph [--dictionary-file <file>] [--changes | --collapse-redirects] "
+                    + "<input-file> <data-dir>");
+            System.exit(255);
+        }
+        String inputFile = files.get(0);
+        UpdateGraph updater = new UpdateGraph(files.get(1), dictionaryFile);
+        updater.update(inputFile, changesOnly, collapseRedirects);
+    }
+
+    /**
+     * Applies the links file to the store.
+     * 
+     * @param changesOnly whether the file only holds the pages that changed,
+     *        so that pages missing from it are kept
+     * @param collapseRedirects whether the store was imported with
+     *        collapsed redirects; needs a full links file
+     */
+    public void update(String fileName, boolean changesOnly, boolean collapseRedirects) throws Exception {
+        long startTime = System.currentTimeMillis();
+        // removed once the store and the files agree again
+        File incomplete = new File(dataDir, INCOMPLETE);
+        if (!incomplete.exists() && !incomplete.createNewFile()) {
+            throw new IOException("could not create " + incomplete);
+        }
+        touchUpdateTime();
+        tx = db.beginTx();
+        try {
+            System.out.println("Updating pages...");
+            read(fileName, new PageUpdater(), false);
+            System.out.printf("\n%d pages read, %d of them new\n", pageCount, newPageCount);
+            if (collisionCount > 0) {
+                System.out.printf("%d new page titles are another page's once normalised; links to them go "
+                        + "to the page whose title is in normal form\n", collisionCount);
+            }
+            if (!changesOnly) {
+                deleteMissingPages();
+                System.out.printf("%d pages no longer in %s deleted\n", deletedPageCount, fileName);
+            }
+            if (collapseRedirects) {
+                redirects = new RedirectResolver(inMemoryIndex);
+                read(fileName, redirects, true);
+                redirects.resolve();
+                System.out.printf("%d redirects resolved\n", redirects.getRedirectCount());
+            }
+            System.out.println("Updating links...");
+            LinkUpdater linkUpdater = new LinkUpdater();
+            read(fileName, linkUpdater, true);
+            linkUpdater.finish();
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+        long elapsedSeconds = (System.currentTimeMillis() - startTime) / 1000;
+        System.out.printf("\n%d pages changed in %d seconds: %d links added, %d deleted; %d broken links ignored\n",
+                changedPageCount, elapsedSeconds, newLinkCount, deletedLinkCount, badLinkCount);
+        db.shutdown();
+        // cached query results are keyed on the store's modification time
+        new File(dataDir, "neostore").setLastModified(System.currentTimeMillis());
+        writeQueryFiles();
+        touchUpdateTime();
+        incomplete.delete();
+    }
+
+    private void touchUpdateTime() throws IOException {
+        File updateTime = new File(dataDir, UPDATE_TIME);
+        if (!updateTime.createNewFile() && !updateTime.setLastModified(System.currentTimeMillis())) {
+            throw new IOException("could not write " + updateTime);
+        }
+    }
+
+    private void read(String fileName, LinkHandler handler, boolean readLinks) throws Exception {
+        if (BinaryLinkReader.isBinaryLinkFile(fileName)) {
+            new BinaryLinkReader(fileName).read(handler, readLinks);
+        } else {
+            new XmlLinkReader(handler).parse(fileName);
+        }
+    }
+
+    private void writeQueryFiles() throws IOException {
+        inMemoryIndex.writeSnapshot(new File(dataDir, ImportGraph.TITLE_SNAPSHOT));
+        TitleHashWriter titleHash = new TitleHashWriter();
+        inMemoryIndex.visitEntries(titleHash);
+        titleHash.write(new File(dataDir, TitleHashWriter.FILE));
+        System.out.printf("title dictionary and title hash of %d titles written\n", titleHash.size());
+        if (degrees != null) {
+            degrees.write(new File(dataDir, DegreeCounter.FILE));
+            System.out.print(degrees.report());
+        }
+    }
+
+    // commits every so many changes, so that the transaction state stays small
+    private void operation() {
+        if (++operations % OPERATIONS_PER_TRANSACTION == 0) {
+            tx.success();
+            tx.finish();
+            tx = db.beginTx();
+        }
+    }
+
+    private long findNodeId(String title) {
+        return RelationshipCreator.findNodeId(inMemoryIndex, title);
+    }
+
+    private long findPageNodeId(String title) {
+        return RelationshipCreator.findPageNodeId(inMemoryIndex, title);
+    }
+
+    /**
+     * Finds the node of each page, creating the pages that are new.
+     */
+    private class PageUpdater implements LinkHandler {
+
+        private final ProgressCounter pageCounter = new ProgressCounter();
+
+        public void handlePage(String title) {
+            long nodeId = findPage(title);
+            if (nodeId == TitleDictionary.NOT_FOUND) {
+                nodeId = createNode(title);
+            }
+            pages.set((int) nodeId);
+            pageCount++;
+            pageCounter.increment();
+        }
+
+        public void handleLink(char type, int distance, String title) {
+        }
+
+        // a title in normal form may find the page that only maps to it,
+        // and stores imported before page titles were kept as they are only
+        // have the normal form of the others, so the node's title decides
+        private long findPage(String title) {
+            long nodeId = findPageNodeId(title);
+            boolean listed = nodeId != TitleDictionary.NOT_FOUND;
+            if (!listed) {
+                nodeId = findNodeId(title);
+            }
+            if (nodeId == TitleDictionary.NOT_FOUND
+                    || !title.equals(db.getNodeById(nodeId).getProperty("title", null))) {
+                return TitleDictionary.NOT_FOUND;
+            }
+            if (!listed) {
+                inMemoryIndex.put(title, nodeId);
+            }
+            return nodeId;
+        }
+
+        private long createNode(String title) {
+            Node node = db.createNode();
+            node.setProperty("title", title);
+            if (index != null) {
+                index.add(node, "title", title);
+            }
+            if (!NodeCreator.addTitle(inMemoryIndex, title, node.getId())) {
+                collisionCount++;
+            }
+            newPageCount++;
+            operation();
+            return node.getId();
+        }
+
+    }
+
+    private void deleteMissingPages() {
+        final List<byte[]> missingTitles = new ArrayList<byte[]>();
+        final List<Long> missingNodes = new ArrayList<Long>();
+        inMemoryIndex.visitEntries(new TitleDictionary.EntryVisitor() {
+            public void visit(byte[] title, int length, long id) {
+                if (id != TitleDictionary.NOT_FOUND && !pages.get((int) id)) {
+                    byte[] key = new byte[length];
+                    System.arraycopy(title, 0, key, 0, length);
+                    missingTitles.add(key);
+                    missingNodes.add(id);
+                }
+            }
+        });
+        // a page whose title is not in normal form has two entries
+        BitSet deleted = new BitSet();
+        for (int i = 0; i < missingNodes.size(); i++) {
+            long nodeId = missingNodes.get(i);
+            if (!deleted.get((int) nodeId)) {
+                deleteNode(db.getNodeById(nodeId));
+                deleted.set((int) nodeId);
+            }
+            // a deleted title stays in the dictionary, so as not to move
+            // the others, but no longer finds a node
+            byte[] key = missingTitles.get(i);
+            inMemoryIndex.put(Utf8.decode(key, 0, key.length), TitleDictionary.NOT_FOUND);
+        }
+    }
+
+    private void deleteNode(Node node) {
+        List<Relationship> relationships = new ArrayList<Relationship>();
+        for (Relationship relationship : node.getRelationships(Direction.BOTH)) {
+            relationships.add(relationship);
+        }
+        for (Relationship relationship : relationships) {
+            deleteRelationship(relationship);
+        }
+        if (index != null) {
+            index.remove(node);
+        }
+        node.delete();
+        deletedPageCount++;
+        operation();
+    }
+
+    private void deleteRelationship(Relationship relationship) {
+        if (degrees != null) {
+            degrees.remove(relationship.getStartNode().getId(), relationship.getEndNode().getId(),
+                    WikiRelationshipType.valueOf(relationship.getType().name()));
+        }
+        relationship.delete();
+        deletedLinkCount++;
+        operation();
+    }
+
+    /**
+     * Collects the links of each page, then compares them with the page's
+     * relationships in the store, as a multiset of target, type and dist.
+     */
+    private class LinkUpdater implements LinkHandler {
+
+        private final ProgressCounter pageCounter = new ProgressCounter();
+        // the nodes whose links were updated, for pages read twice
+        private final BitSet updated = new BitSet();
+        private final Map<Long, Integer> links = new HashMap<Long, Integer>();
+        private long nodeId = TitleDictionary.NOT_FOUND;
+        private boolean redirectPage;
+
+        public void handlePage(String title) {
+            finish();
+            nodeId = findPageNodeId(title);
+            redirectPage = redirects != null && redirects.isRedirect(nodeId);
+            if (redirectPage) {
+                addLink(redirects.getCanonical(nodeId), WikiRelationshipType.Redirect, 0);
+            }
+            pageCounter.increment();
+        }
+
+        public void handleLink(char type, int distance, String title) {
+            if (redirectPage || nodeId == TitleDictionary.NOT_FOUND) {
+                return;
+            }
+            long linkNodeId = findNodeId(title);
+            if (linkNodeId == TitleDictionary.NOT_FOUND) {
+                badLinkCount++;
+                return;
+            }
+            if (redirects != null) {
+                linkNodeId = redirects.getCanonical(linkNodeId);
+            }
+            addLink(linkNodeId, RelationshipCreator.getType(type), distance);
+        }
+
+        private void addLink(long linkNodeId, WikiRelationshipType type, int distance) {
+            Long key = linkKey(linkNodeId, type, distance);
+            Integer count = links.get(key);
+            links.put(key, count != null ? count + 1 : 1);
+        }
+
+        // applies the links of the last page read
+        void finish() {
+            if (nodeId == TitleDictionary.NOT_FOUND) {
+                return;
+            }
+            Node node = db.getNodeById(nodeId);
+            // a page read a second time keeps the links of the first
+            boolean replace = !updated.get((int) nodeId);
+            updated.set((int) nodeId);
+            List<Relationship> removed = new ArrayList<Relationship>();
+            for (Relationship relationship : node.getRelationships(Direction.OUTGOING)) {
+                Long key = linkKey(relationship.getEndNode().getId(),
+                        WikiRelationshipType.valueOf(relationship.getType().name()), getDistance(relationship));
+                Integer count = links.get(key);
+                if (count == null) {
+                    if (replace) {
+                        removed.add(relationship);
+                    }
+                } else if (count == 1) {
+                    links.remove(key);
+                } else {
+                    links.put(key, count - 1);
+                }
+            }
+            for (Relationship relationship : removed) {
+                deleteRelationship(relationship);
+            }
+            for (Map.Entry<Long, Integer> link : links.entrySet()) {
+                long key = link.getKey();
+                int distance = (int) (key & 0xffff) - 1;
+                key >>>= 16;
+                WikiRelationshipType type = TYPES[(int) (key % TYPES.length)];
+                Node linkNode = db.getNodeById(key / TYPES.length);
+                for (int i = 0; i < link.getValue(); i++) {
+                    createRelationship(node, linkNode, type, distance);
+                }
+            }
+            if (!removed.isEmpty() || !links.isEmpty()) {
+                changedPageCount++;
+            }
+            links.clear();
+            nodeId = TitleDictionary.NOT_FOUND;
+        }
+
+        private void createRelationship(Node node, Node linkNode, WikiRelationshipType type, int distance) {
+            Relationship relationship = node.createRelationshipTo(linkNode, type);
+            if (distance != RelationshipCreator.NO_DISTANCE) {
+                relationship.setProperty("dist", distance);
+            }
+            if (degrees != null) {
+                degrees.add(node.getId(), linkNode.getId(), type);
+            }
+            newLinkCount++;
+            operation();
+        }
+
+    }
+
+    // stores imported before dist was an int have it as a string
+    private static int getDistance(Relationship relationship) {
+        Object distance = relationship.getProperty("dist", null);
+        if (distance instanceof Number) {
+            return ((Number) distance).intValue();
+        }
+        return distance != null ? Integer.parseInt(distance.toString()) : RelationshipCreator.NO_DISTANCE;
+    }
+
+    // the target, the type and dist + 1 in the low 16 bits; distances past
+    // that are not told apart
+    private static Long linkKey(long linkNodeId, WikiRelationshipType type, int distance) {
+        int distanceBits = Math.min(distance + 1, 0xffff);
+        return ((linkNodeId * TYPES.length + type.ordinal()) << 16) | distanceBits;
+    }
+
+}
@@ -0,0 +1,143 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport.snapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.graphipedia.dataimport.LinkHandler;
+import org.graphipedia.dataimport.LinkTitleResolver;
+import org.graphipedia.dataimport.NormalizedTitleIndex;
+import org.graphipedia.dataimport.ProgressCounter;
+import org.graphipedia.dataimport.TitleTable;
+
+/**
+ * Resolves the links of a link file to title ids through their normalised
+ * form and spools them, as pairs of source and target id, into one
+ * temporary file per link type.
+ * <p>
+ * With resolved redirects, links to a redirect page go to its canonical page
+ * instead, and a redirect page only gets one redirect edge, to its canonical
+ * page, as ImportGraph --collapse-redirects does.
+ */
+class EdgeCollector implements LinkHandler, LinkTitleResolver {
+
+    private final NormalizedTitleIndex titles;
+    private final SnapshotRedirectResolver redirects;
+    private final File[] edgeFiles = new File[SnapshotFormat.FILE_NAMES.length];
+    private final DataOutputStream[] edgeStreams = new DataOutputStream[SnapshotFormat.FILE_NAMES.length];
+    private final long[] edgeCounts = new long[SnapshotFormat.FILE_NAMES.length];
+    private final ProgressCounter pageCounter = new ProgressCounter();
+
+    private int sourceId;
+    private boolean redirectPage;
+    private int missingPageCount = 0;
+    private int badLinkCount = 0;
+
+    EdgeCollector(NormalizedTitleIndex titles, SnapshotRedirectResolver redirects, File snapshotDir)
+            throws IOException {
+        this.titles = titles;
+        this.redirects = redirects;
+        for (int type = 0; type < SnapshotFormat.FILE_NAMES.length; type++) {
+            edgeFiles[type] = new File(snapshotDir, SnapshotFormat.FILE_NAMES[type] + ".edges");
+            edgeStreams[type] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(edgeFiles[type]), 1 << 16));
+        }
+    }
+
+    File getEdgeFile(int type) {
+        return edgeFiles[type];
+    }
+
+    long getEdgeCount(int type) {
+        return edgeCounts[type];
+    }
+
+    int getPageCount() {
+        return pageCounter.getCount();
+    }
+
+    int getMissingPageCount() {
+        return missingPageCount;
+    }
+
+    int getBadLinkCount() {
+        return badLinkCount;
+    }
+
+    public void handlePage(String title) {
+        sourceId = titles.findPage(title);
+        if (sourceId == TitleTable.NOT_FOUND) {
+            missingPageCount++;
+        }
+        pageCounter.increment();
+        redirectPage = sourceId != TitleTable.NOT_FOUND && redirects != null && redirects.isRedirectTitle(sourceId);
+        if (redirectPage) {
+            writeEdge(SnapshotFormat.typeIndex('r'), redirects.getCanonicalTitle(sourceId));
+        }
+    }
+
+    public void handleLink(char type, int distance, String title) {
+        if (sourceId != TitleTable.NOT_FOUND && !redirectPage) {
+            handleLink(type, distance, resolve(title));
+        }
+    }
+
+    public long resolve(String title) {
+        int targetId = titles.find(title);
+        if (redirects != null && targetId != TitleTable.NOT_FOUND) {
+            targetId = redirects.getCanonicalTitle(targetId);
+        }
+        return targetId;
+    }
+
+    public void handleLink(char type, int distance, long resolved) {
+        if (sourceId == TitleTable.NOT_FOUND || redirectPage) {
+            return;
+        }
+        int targetId = (int) resolved;
+        if (targetId == TitleTable.NOT_FOUND) {
+            badLinkCount++;
+            return;
+        }
+        writeEdge(SnapshotFormat.typeIndex(type), targetId);
+    }
+
+    private void writeEdge(int typeIndex, int targetId) {
+        try {
+            edgeStreams[typeIndex].writeInt(sourceId);
+            edgeStreams[typeIndex].writeInt(targetId);
+        } catch (IOException ioException) {
+            throw new RuntimeException(ioException);
+        }
+        edgeCounts[typeIndex]++;
+    }
+
+    void close() throws IOException {
+        for (DataOutputStream edgeStream : edgeStreams) {
+            edgeStream.close();
+        }
+    }
+
+}
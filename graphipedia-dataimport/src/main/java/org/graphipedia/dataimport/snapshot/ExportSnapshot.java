@@ -0,0 +1,256 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport.snapshot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.graphipedia.dataimport.BinaryLinkReader;
+import org.graphipedia.dataimport.NormalizedTitleIndex;
+import org.graphipedia.dataimport.TitleTable;
+import org.graphipedia.dataimport.XmlLinkReader;
+
+/**
+ * Exports a link file and its title table as a graph snapshot directory that
+ * GraphipediaService can memory-map and search without Neo4j.
+ */
+public class ExportSnapshot {
+
+    public static void main(String[] args) throws Exception {
+        boolean collapseRedirects = false;
+        List<String> files = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--collapse-redirects".equals(args[i])) {
+                collapseRedirects = true;
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.size() < 2) {
+            System.out.println("USAGE: ExportSnapshot [--collapse-redirects] <input-file> <snapshot-dir>");
+            System.exit(255);
+        }
+        new ExportSnapshot().export(files.get(0), new File(files.get(1)), collapseRedirects);
+    }
+
+    public void export(String linkFile, File snapshotDir) throws Exception {
+        export(linkFile, snapshotDir, false);
+    }
+
+    /**
+     * @param collapseRedirects if true, links to redirect pages go to their
+     *            canonical page, as with ImportGraph --collapse-redirects,
+     *            which a snapshot of such a store should match
+     */
+    public void export(String linkFile, File snapshotDir, boolean collapseRedirects) throws Exception {
+        File titleFile = TitleTable.forLinkFile(linkFile);
+        if (!titleFile.isFile()) {
+            throw new FileNotFoundException(titleFile + " not found, run ExtractLinks without --no-title-table");
+        }
+        if (!snapshotDir.isDirectory() && !snapshotDir.mkdirs()) {
+            throw new IOException("cannot create " + snapshotDir);
+        }
+        TitleTable titles = new TitleTable(titleFile);
+        File indexFile = NormalizedTitleIndex.forTitleFile(titleFile);
+        if (indexFile.lastModified() < titleFile.lastModified()) {
+            System.out.println("Writing " + indexFile + "...");
+            NormalizedTitleIndex.write(titles, indexFile);
+        }
+
+        NormalizedTitleIndex normalizedTitles = new NormalizedTitleIndex(titles, indexFile);
+        SnapshotRedirectResolver redirects = null;
+        if (collapseRedirects) {
+            redirects = new SnapshotRedirectResolver(normalizedTitles);
+            redirects.resolve(linkFile);
+        }
+
+        System.out.println("Resolving links...");
+        long startTime = System.currentTimeMillis();
+        EdgeCollector edges = new EdgeCollector(normalizedTitles, redirects, snapshotDir);
+        try {
+            if (BinaryLinkReader.isBinaryLinkFile(linkFile)) {
+                BinaryLinkReader reader = new BinaryLinkReader(linkFile);
+                reader.setLinkTitleResolver(edges);
+                reader.read(edges, true);
+            } else {
+                new XmlLinkReader(edges).parse(linkFile);
+            }
+        } finally {
+            edges.close();
+        }
+        long elapsedSeconds = (System.currentTimeMillis() - startTime) / 1000;
+        System.out.printf("\n%d pages read in %d seconds; %d broken links ignored\n",
+                edges.getPageCount(), elapsedSeconds, edges.getBadLinkCount());
+        if (edges.getMissingPageCount() > 0) {
+            System.out.printf("%d pages missing from %s were skipped\n", edges.getMissingPageCount(), titleFile);
+        }
+
+        for (int type = 0; type < SnapshotFormat.FILE_NAMES.length; type++) {
+            String name = SnapshotFormat.FILE_NAMES[type];
+            Csr csr = readCsr(edges.getEdgeFile(type), edges.getEdgeCount(type), titles.size());
+            edges.getEdgeFile(type).delete();
+            writeCsr(csr, new File(snapshotDir, name + SnapshotFormat.CSR_SUFFIX));
+            System.out.printf("%d %s edges written\n", csr.edgeCount, name);
+            // for searches that also walk backwards from the end page
+            writeCsr(transpose(csr), new File(snapshotDir, name + SnapshotFormat.INCOMING_SUFFIX
+                    + SnapshotFormat.CSR_SUFFIX));
+        }
+        copy(titleFile, new File(snapshotDir, SnapshotFormat.TITLES_FILE));
+        copy(indexFile, new File(snapshotDir, SnapshotFormat.TITLES_FILE + NormalizedTitleIndex.SUFFIX));
+    }
+
+    // counts the edges of each node, then places them with a second read
+    private Csr readCsr(File edgeFile, long edgeCount, int nodeCount) throws IOException {
+        if (edgeCount > Integer.MAX_VALUE / 4) {
+            throw new IOException("too many edges for a snapshot: " + edgeCount);
+        }
+        int[] offsets = new int[nodeCount + 1];
+        DataInputStream in = openEdges(edgeFile);
+        try {
+            for (long i = 0; i < edgeCount; i++) {
+                offsets[in.readInt() + 1]++;
+                in.readInt();
+            }
+        } finally {
+            in.close();
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            offsets[node + 1] += offsets[node];
+        }
+
+        int[] targets = new int[(int) edgeCount];
+        int[] next = Arrays.copyOf(offsets, nodeCount);
+        in = openEdges(edgeFile);
+        try {
+            for (long i = 0; i < edgeCount; i++) {
+                int source = in.readInt();
+                targets[next[source]++] = in.readInt();
+            }
+        } finally {
+            in.close();
+        }
+        next = null;
+
+        // sort each row and drop duplicate targets, compacting in place
+        int end = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            int start = offsets[node];
+            int rowEnd = offsets[node + 1];
+            Arrays.sort(targets, start, rowEnd);
+            offsets[node] = end;
+            for (int i = start; i < rowEnd; i++) {
+                if (i == start || targets[i] != targets[i - 1]) {
+                    targets[end++] = targets[i];
+                }
+            }
+        }
+        offsets[nodeCount] = end;
+        return new Csr(nodeCount, offsets, targets, end);
+    }
+
+    // rows come out sorted, as the sources are visited in order
+    private Csr transpose(Csr csr) {
+        int[] offsets = new int[csr.nodeCount + 1];
+        for (int i = 0; i < csr.edgeCount; i++) {
+            offsets[csr.targets[i] + 1]++;
+        }
+        for (int node = 0; node < csr.nodeCount; node++) {
+            offsets[node + 1] += offsets[node];
+        }
+        int[] targets = new int[csr.edgeCount];
+        int[] next = Arrays.copyOf(offsets, csr.nodeCount);
+        for (int node = 0; node < csr.nodeCount; node++) {
+            for (int i = csr.offsets[node]; i < csr.offsets[node + 1]; i++) {
+                targets[next[csr.targets[i]]++] = node;
+            }
+        }
+        return new Csr(csr.nodeCount, offsets, targets, csr.edgeCount);
+    }
+
+    private void writeCsr(Csr csr, File csrFile) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(csrFile), 1 << 16));
+        try {
+            out.write(SnapshotFormat.CSR_MAGIC);
+            out.writeInt(SnapshotFormat.CSR_VERSION);
+            out.writeInt(csr.nodeCount);
+            out.writeInt(csr.edgeCount);
+            for (int offset : csr.offsets) {
+                out.writeInt(offset);
+            }
+            for (int i = 0; i < csr.edgeCount; i++) {
+                out.writeInt(csr.targets[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static DataInputStream openEdges(File edgeFile) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(edgeFile), 1 << 16));
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        FileChannel in = new FileInputStream(from).getChannel();
+        try {
+            FileChannel out = new FileOutputStream(to).getChannel();
+            try {
+                long position = 0;
+                long size = in.size();
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class Csr {
+
+        final int nodeCount;
+        final int[] offsets;
+        final int[] targets;
+        final int edgeCount;
+
+        Csr(int nodeCount, int[] offsets, int[] targets, int edgeCount) {
+            this.nodeCount = nodeCount;
+            this.offsets = offsets;
+            this.targets = targets;
+            this.edgeCount = edgeCount;
+        }
+
+    }
+
+}
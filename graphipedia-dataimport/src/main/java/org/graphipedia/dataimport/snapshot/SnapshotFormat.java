@@ -0,0 +1,62 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport.snapshot;
+
+/**
+ * File names and layout of a graph snapshot directory, which holds the
+ * title table as "titles", its NormalizedTitleIndex as "titles.norm" and one
+ * compressed sparse row file per link type.
+ * <p>
+ * A CSR file is the magic number, the version, the node count and the edge
+ * count, then node count + 1 int offsets into the targets, then the int
+ * target ids. The targets of node n are targets[offsets[n]] up to
+ * targets[offsets[n + 1]], sorted and without duplicates. Node ids are
+ * title ids. Each link type is also written reversed, as "link.in.csr",
+ * "redirect.in.csr" and "related.in.csr".
+ */
+final class SnapshotFormat {
+
+    static final String TITLES_FILE = "titles";
+    static final String CSR_SUFFIX = ".csr";
+    static final String INCOMING_SUFFIX = ".in";
+
+    static final byte[] CSR_MAGIC = { 'G', 'P', 'C', 'S' };
+    static final int CSR_VERSION = 1;
+
+    static final String[] FILE_NAMES = { "link", "redirect", "related" };
+    static final int LINK = 0;
+
+    private SnapshotFormat() {
+    }
+
+    static int typeIndex(char type) {
+        switch (type) {
+        case 'r':
+            return 1;
+        case 'h':
+            return 2;
+        default:
+            return LINK;
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport.snapshot;
+
+import org.graphipedia.dataimport.NormalizedTitleIndex;
+import org.graphipedia.dataimport.TitleDictionary;
+import org.graphipedia.dataimport.TitleTable;
+import org.graphipedia.dataimport.neo4j.RedirectResolver;
+
+/**
+ * Resolves redirects between the titles of a title table, numbering each
+ * page by its title id plus one, the node id ImportGraph gives it, so that
+ * a snapshot collapses the same redirects as ImportGraph --collapse-redirects.
+ */
+class SnapshotRedirectResolver extends RedirectResolver {
+
+    private final NormalizedTitleIndex titles;
+
+    SnapshotRedirectResolver(NormalizedTitleIndex titles) {
+        this.titles = titles;
+    }
+
+    @Override
+    protected long findNodeId(String title) {
+        return toNodeId(titles.find(title));
+    }
+
+    @Override
+    protected long findPageNodeId(String title) {
+        return toNodeId(titles.findPage(title));
+    }
+
+    private static long toNodeId(int titleId) {
+        return titleId != TitleTable.NOT_FOUND ? titleId + 1 : TitleDictionary.NOT_FOUND;
+    }
+
+    boolean isRedirectTitle(int titleId) {
+        return isRedirect(titleId + 1);
+    }
+
+    int getCanonicalTitle(int titleId) {
+        return (int) getCanonical(titleId + 1) - 1;
+    }
+
+}
@@ -0,0 +1,239 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.dataimport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that ParallelBzip2InputStream decompresses to the same bytes as
+ * BZip2CompressorInputStream.
+ */
+public class ParallelBzip2InputStreamTest {
+
+    private static final int THREADS = 4;
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("bzip2", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void deleteDir() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void decodesBlocksAcrossChunks() throws IOException {
+        // 100k blocks of poorly compressible text, spread over several chunks
+        byte[] data = randomText(4 << 20, 1);
+        File file = new File(dir, "blocks.bz2");
+        writeStream(file, data, 1);
+        assertTrue(file.length() > 2 << 20);
+        assertDecodes(data, file, null);
+    }
+
+    @Test
+    public void decodesStreamInOneChunk() throws IOException {
+        byte[] data = randomText(20000, 2);
+        File file = new File(dir, "small.bz2");
+        writeStream(file, data, 9);
+        assertTrue(file.length() < 1 << 20);
+        assertDecodes(data, file, null);
+    }
+
+    @Test
+    public void decodesMultistreamWithIndex() throws IOException {
+        File file = new File(dir, "wiki-multistream.xml.bz2");
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        StringBuilder index = new StringBuilder();
+        OutputStream out = new FileOutputStream(file);
+        long offset = 0;
+        try {
+            for (int stream = 0; stream < 40; stream++) {
+                byte[] streamData = randomText(50000 + 1000 * stream, 100 + stream);
+                data.write(streamData);
+                // a stream holds several pages, each listed at its offset
+                for (int page = 0; page < 3; page++) {
+                    index.append(offset).append(':').append(3 * stream + page).append(":Page ")
+                            .append(3 * stream + page).append('\n');
+                }
+                byte[] compressed = compress(streamData, 9);
+                out.write(compressed);
+                offset += compressed.length;
+            }
+        } finally {
+            out.close();
+        }
+        File indexFile = new File(dir, "wiki-multistream-index.txt.bz2");
+        writeStream(indexFile, index.toString().getBytes("UTF-8"), 9);
+        assertEquals(indexFile, ParallelBzip2InputStream.findMultistreamIndex(file));
+        assertDecodes(data.toByteArray(), file, indexFile);
+        // without the index, every stream's blocks are found by their magic
+        assertDecodes(data.toByteArray(), file, null);
+    }
+
+    @Test
+    public void decodesEmptyStream() throws IOException {
+        File file = new File(dir, "empty.bz2");
+        writeStream(file, new byte[0], 9);
+        assertDecodes(new byte[0], file, null);
+    }
+
+    @Test
+    public void rejectsCorruptBlock() throws IOException {
+        byte[] data = randomText(1 << 20, 3);
+        File file = new File(dir, "corrupt.bz2");
+        writeStream(file, data, 1);
+        flipBit(file, file.length() / 2);
+        assertCorrupt(file);
+    }
+
+    @Test
+    public void rejectsCorruptBlockAtChunkStart() throws IOException {
+        // the first block starting in a chunk may be a false magic number,
+        // so it is only reported once the chunk before does not cover it
+        byte[] data = randomText(4 << 20, 4);
+        File file = new File(dir, "corrupt.bz2");
+        writeStream(file, data, 1);
+        long magic = findBlockMagic(file, 8L * CHUNK_SIZE);
+        flipBit(file, magic / 8 + 100);
+        assertCorrupt(file);
+    }
+
+    private static void assertDecodes(byte[] data, File file, File index) throws IOException {
+        InputStream expected = new BZip2CompressorInputStream(new FileInputStream(file), true);
+        assertArrayEquals(data, readFully(expected));
+        assertArrayEquals(data, readFully(new ParallelBzip2InputStream(file, index, THREADS)));
+    }
+
+    private static void assertCorrupt(File file) throws IOException {
+        try {
+            readFully(new ParallelBzip2InputStream(file, THREADS));
+            fail("corrupt block decoded");
+        } catch (IOException expected) {
+            // the block CRC did not match
+        }
+    }
+
+    private static void flipBit(File file, long offset) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.seek(offset);
+            int value = out.read();
+            out.seek(offset);
+            out.write(value ^ 0x10);
+        } finally {
+            out.close();
+        }
+    }
+
+    // the bit position of the first block magic number from the given bit
+    private static long findBlockMagic(File file, long fromBit) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            long window = 0;
+            long bit = 0;
+            int value;
+            while ((value = in.read()) >= 0) {
+                for (int i = 7; i >= 0; i--, bit++) {
+                    window = ((window << 1) | ((value >>> i) & 1)) & 0xffffffffffffL;
+                    if (window == BLOCK_MAGIC && bit - 47 >= fromBit) {
+                        return bit - 47;
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+        throw new AssertionError("no block magic after bit " + fromBit);
+    }
+
+    // lowercase letters, digits and spaces, at about five bits a byte
+    private static byte[] randomText(int length, long seed) {
+        Random random = new Random(seed);
+        String alphabet = "abcdefghijklmnopqrstuvwxyz0123 \n";
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = (byte) alphabet.charAt(random.nextInt(alphabet.length()));
+        }
+        return text;
+    }
+
+    private static void writeStream(File file, byte[] data, int blockSize) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(compress(data, blockSize));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] compress(byte[] data, int blockSize) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream out = new BZip2CompressorOutputStream(compressed, blockSize);
+        out.write(data);
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,353 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shortest path search that grows a frontier forwards from the start page
+ * along outgoing links and one backwards from the end page along incoming
+ * links, always expanding the smaller of the two, until they meet.
+ * <p>
+ * The queues and the visited arrays are allocated once and reused by every
+ * search: a node's entry in a visited array holds the search epoch and its
+ * depth, so starting a new search only bumps the epoch. An instance must
+ * therefore be used by one thread at a time. The two visited arrays take 8
+ * bytes per node; the queues start small and grow to the largest frontiers
+ * searched, up to another 8 bytes per node.
+ */
+public class BidirectionalPathFinder {
+
+    private static final int DEPTH_BITS = 6;
+    public static final int MAX_DEPTH = (1 << DEPTH_BITS) - 1;
+    private static final int MAX_EPOCH = Integer.MAX_VALUE >> DEPTH_BITS;
+    private static final int NONE = -1;
+    // nodes expanded or paths emitted between two deadline checks
+    private static final int CHECK_MASK = (1 << 10) - 1;
+    private static final int INITIAL_QUEUE = 1 << 16;
+
+    private final CsrGraph outgoing;
+    private final CsrGraph incoming;
+    private final LandmarkIndex landmarks;
+    private final Frontier forward;
+    private final Frontier backward;
+    private final int[] startFromLandmark;
+    private final int[] startToLandmark;
+    private final int[] endFromLandmark;
+    private final int[] endToLandmark;
+
+    private int epoch = 0;
+    private int base;
+    private int pathLength;
+    private int limit;
+    private QueryDeadline deadline;
+    private int work;
+
+    public BidirectionalPathFinder(CsrGraph outgoing, CsrGraph incoming) {
+        this(outgoing, incoming, null);
+    }
+
+    /**
+     * With a landmark index, a search gives up at once when the landmarks
+     * show the pages to be further apart than maxDepth, searches no deeper
+     * than the landmark upper bound, and skips every node that the bounds
+     * show cannot lie on a short enough path.
+     */
+    public BidirectionalPathFinder(CsrGraph outgoing, CsrGraph incoming, LandmarkIndex landmarks) {
+        this.outgoing = outgoing;
+        this.incoming = incoming;
+        this.landmarks = landmarks;
+        forward = new Frontier(outgoing, outgoing.getNodeCount(), true);
+        backward = new Frontier(incoming, incoming.getNodeCount(), false);
+        int landmarkCount = landmarks != null ? landmarks.getLandmarks().length : 0;
+        startFromLandmark = new int[landmarkCount];
+        startToLandmark = new int[landmarkCount];
+        endFromLandmark = new int[landmarkCount];
+        endToLandmark = new int[landmarkCount];
+    }
+
+    /**
+     * Returns the nodes of a shortest path of at most maxDepth edges, or
+     * null if there is none.
+     */
+    public int[] findSinglePath(int start, int end, int maxDepth) {
+        return findSinglePath(start, end, maxDepth, QueryDeadline.NONE);
+    }
+
+    public int[] findSinglePath(int start, int end, int maxDepth, QueryDeadline deadline) {
+        int meeting = search(start, end, maxDepth, deadline);
+        if (meeting == NONE) {
+            return null;
+        }
+        int[] path = new int[pathLength + 1];
+        int meetingDepth = forward.depthOf(meeting);
+        path[meetingDepth] = meeting;
+        for (int i = meetingDepth; i > 0; i--) {
+            path[i - 1] = forward.predecessor(path[i], incoming, i - 1);
+        }
+        for (int i = meetingDepth; i < pathLength; i++) {
+            path[i + 1] = backward.predecessor(path[i], outgoing, pathLength - i - 1);
+        }
+        return path;
+    }
+
+    /**
+     * Returns every shortest path of at most maxDepth edges.
+     */
+    public List<int[]> findAllPaths(int start, int end, int maxDepth) {
+        return findAllPaths(start, end, maxDepth, QueryDeadline.NONE);
+    }
+
+    public List<int[]> findAllPaths(int start, int end, int maxDepth, QueryDeadline deadline) {
+        List<int[]> paths = new ArrayList<int[]>();
+        ShortestPathDag dag = findShortestPathDag(start, end, maxDepth, deadline);
+        if (dag != null) {
+            for (int[] path : dag) {
+                paths.add(path);
+                checkDeadline();
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Returns the DAG of every shortest path of at most maxDepth edges, or
+     * null if there is none. The DAG does not share state with this finder.
+     */
+    public ShortestPathDag findShortestPathDag(int start, int end, int maxDepth, QueryDeadline deadline) {
+        if (search(start, end, maxDepth, deadline) == NONE) {
+            return null;
+        }
+        int[][] layers = new int[pathLength + 1][];
+        int[][] links = new int[pathLength][];
+        int[] linkCounts = new int[pathLength];
+        // every shortest path crosses this depth at a node both searches saw
+        int middle = Math.min(forward.depth, pathLength);
+        int count = 0;
+        int[] layer = new int[16];
+        for (int i = 0; i < forward.tail; i++) {
+            int node = forward.queue[i];
+            if (forward.depthOf(node) == middle && backward.depthOf(node) == pathLength - middle) {
+                if (count == layer.length) {
+                    layer = Arrays.copyOf(layer, 2 * count);
+                }
+                layer[count++] = node;
+            }
+        }
+        layers[middle] = Arrays.copyOf(layer, count);
+        for (int depth = middle - 1; depth >= 0; depth--) {
+            addLayer(layers, links, linkCounts, depth, depth + 1, forward, incoming, depth);
+        }
+        for (int depth = middle + 1; depth <= pathLength; depth++) {
+            addLayer(layers, links, linkCounts, depth, depth - 1, backward, outgoing, pathLength - depth);
+        }
+        return new ShortestPathDag(layers, links, linkCounts);
+    }
+
+    // fills layers[layer] with the neighbours of layers[known] that the
+    // frontier saw at the given depth, and records the links between them
+    private void addLayer(int[][] layers, int[][] links, int[] linkCounts, int layer, int known, Frontier frontier,
+            CsrGraph graph, int depth) {
+        Map<Integer, Integer> indexes = new HashMap<Integer, Integer>();
+        int[] nodes = new int[16];
+        int[] pairs = new int[32];
+        int linkCount = 0;
+        int[] knownNodes = layers[known];
+        for (int j = 0; j < knownNodes.length; j++) {
+            int node = knownNodes[j];
+            for (int edge = graph.getStart(node); edge < graph.getEnd(node); edge++) {
+                int neighbour = graph.getTarget(edge);
+                if (frontier.visited[neighbour] != base + depth) {
+                    continue;
+                }
+                Integer index = indexes.get(neighbour);
+                if (index == null) {
+                    index = indexes.size();
+                    indexes.put(neighbour, index);
+                    if (index == nodes.length) {
+                        nodes = Arrays.copyOf(nodes, 2 * index);
+                    }
+                    nodes[index] = neighbour;
+                }
+                if (2 * linkCount == pairs.length) {
+                    pairs = Arrays.copyOf(pairs, 4 * linkCount);
+                }
+                // links always go from the lower layer to the higher one
+                pairs[2 * linkCount] = layer < known ? index : j;
+                pairs[2 * linkCount + 1] = layer < known ? j : index;
+                linkCount++;
+                checkDeadline();
+            }
+        }
+        layers[layer] = Arrays.copyOf(nodes, indexes.size());
+        links[Math.min(layer, known)] = pairs;
+        linkCounts[Math.min(layer, known)] = linkCount;
+    }
+
+    // returns a node where the two searches met on a shortest path, or NONE
+    private int search(int start, int end, int maxDepth, QueryDeadline deadline) {
+        this.deadline = deadline;
+        deadline.check();
+        nextEpoch();
+        maxDepth = Math.min(maxDepth, MAX_DEPTH);
+        forward.reset(start);
+        backward.reset(end);
+        if (start == end) {
+            pathLength = 0;
+            return start;
+        }
+        limit = maxDepth;
+        if (landmarks != null) {
+            landmarks.getDistances(start, startFromLandmark, startToLandmark);
+            landmarks.getDistances(end, endFromLandmark, endToLandmark);
+            if (landmarks.lowerBoundTo(start, endFromLandmark, endToLandmark) > maxDepth) {
+                return NONE;
+            }
+            limit = Math.min(maxDepth, landmarks.upperBound(start, end));
+        }
+        while (forward.depth + backward.depth < limit) {
+            if (forward.size() == 0 || backward.size() == 0) {
+                return NONE;
+            }
+            int meeting = forward.size() <= backward.size() ? expand(forward, backward) : expand(backward, forward);
+            if (meeting != NONE) {
+                return meeting;
+            }
+        }
+        return NONE;
+    }
+
+    // expands one level of frontier and returns the node on the shortest
+    // path through it to other, if any
+    private int expand(Frontier frontier, Frontier other) {
+        int levelEnd = frontier.tail;
+        int seen = base + frontier.depth + 1;
+        int meeting = NONE;
+        int meetingDepth = Integer.MAX_VALUE;
+        for (int i = frontier.levelStart; i < levelEnd; i++) {
+            int node = frontier.queue[i];
+            checkDeadline();
+            if (landmarks != null && frontier.depth + remainingBound(frontier, node) > limit) {
+                continue;
+            }
+            for (int edge = frontier.graph.getStart(node); edge < frontier.graph.getEnd(node); edge++) {
+                int target = frontier.graph.getTarget(edge);
+                if (frontier.visited[target] < base) {
+                    frontier.visited[target] = seen;
+                    frontier.add(target);
+                    int otherDepth = other.depthOf(target);
+                    if (otherDepth != NONE && otherDepth < meetingDepth) {
+                        meeting = target;
+                        meetingDepth = otherDepth;
+                    }
+                }
+            }
+        }
+        frontier.levelStart = levelEnd;
+        frontier.depth++;
+        if (meeting != NONE) {
+            pathLength = frontier.depth + meetingDepth;
+        }
+        return meeting;
+    }
+
+    // a lower bound on the links between node and the other search's origin
+    private int remainingBound(Frontier frontier, int node) {
+        if (frontier.forwards) {
+            return landmarks.lowerBoundTo(node, endFromLandmark, endToLandmark);
+        }
+        return landmarks.lowerBoundFrom(startFromLandmark, startToLandmark, node);
+    }
+
+    private void checkDeadline() {
+        if ((++work & CHECK_MASK) == 0) {
+            deadline.check();
+        }
+    }
+
+    private void nextEpoch() {
+        if (++epoch > MAX_EPOCH) {
+            Arrays.fill(forward.visited, 0);
+            Arrays.fill(backward.visited, 0);
+            epoch = 1;
+        }
+        base = epoch << DEPTH_BITS;
+    }
+
+    private final class Frontier {
+
+        final CsrGraph graph;
+        final boolean forwards;
+        final int[] visited;
+        int[] queue;
+        int levelStart;
+        int tail;
+        int depth;
+
+        Frontier(CsrGraph graph, int nodeCount, boolean forwards) {
+            this.graph = graph;
+            this.forwards = forwards;
+            visited = new int[nodeCount];
+            queue = new int[Math.max(1, Math.min(nodeCount, INITIAL_QUEUE))];
+        }
+
+        void add(int node) {
+            if (tail == queue.length) {
+                queue = Arrays.copyOf(queue, (int) Math.min(2L * tail, visited.length));
+            }
+            queue[tail++] = node;
+        }
+
+        void reset(int node) {
+            visited[node] = base;
+            queue[0] = node;
+            levelStart = 0;
+            tail = 1;
+            depth = 0;
+        }
+
+        int size() {
+            return tail - levelStart;
+        }
+
+        int depthOf(int node) {
+            return visited[node] >= base ? visited[node] - base : NONE;
+        }
+
+        // a neighbour in the reverse graph one step closer to this search's origin
+        int predecessor(int node, CsrGraph reverse, int depth) {
+            for (int edge = reverse.getStart(node); edge < reverse.getEnd(node); edge++) {
+                int neighbour = reverse.getTarget(edge);
+                if (visited[neighbour] == base + depth) {
+                    return neighbour;
+                }
+            }
+            throw new IllegalStateException("no predecessor at depth " + depth + " for node " + node);
+        }
+
+    }
+
+}
@@ -0,0 +1,61 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.query;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Builds the LandmarkIndex of a snapshot, which must be run again whenever
+ * the snapshot is exported again.
+ */
+public class BuildLandmarks {
+
+    public static void main(String[] args) throws Exception {
+        int landmarks = LandmarkIndex.DEFAULT_LANDMARKS;
+        String snapshotDir = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("--landmarks".equals(args[i]) && i + 1 < args.length) {
+                landmarks = Integer.parseInt(args[++i]);
+            } else {
+                snapshotDir = args[i];
+            }
+        }
+        if (snapshotDir == null) {
+            System.out.println("USAGE: BuildLandmarks [--landmarks <k>] <snapshot-dir>");
+            System.exit(255);
+        }
+        GraphSnapshot snapshot = new GraphSnapshot(new File(snapshotDir));
+        long startTime = System.currentTimeMillis();
+        File file = new File(snapshotDir, LandmarkIndex.FILE);
+        LandmarkIndex.build(snapshot, landmarks, file);
+        long elapsedSeconds = (System.currentTimeMillis() - startTime) / 1000;
+        int[] landmarkIds = new LandmarkIndex(file).getLandmarks();
+        String[] titles = new String[landmarkIds.length];
+        for (int i = 0; i < landmarkIds.length; i++) {
+            titles[i] = snapshot.getTitles().getTitle(landmarkIds[i]);
+        }
+        System.out.printf("%d landmarks indexed in %d seconds: %s\n", landmarkIds.length, elapsedSeconds,
+                Arrays.toString(titles));
+    }
+
+}
@@ -0,0 +1,82 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.query;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Precomputes TargetIndexes for a snapshot. Given target titles, builds the
+ * indexes that are missing or were built from an older export; with no
+ * titles, rebuilds every stale index already in the snapshot, which is what
+ * to run after the graph has been imported and exported again.
+ */
+public class BuildTargetIndex {
+
+    public static void main(String[] args) throws Exception {
+        boolean force = false;
+        List<String> arguments = new ArrayList<String>();
+        for (String arg : args) {
+            if ("--force".equals(arg)) {
+                force = true;
+            } else {
+                arguments.add(arg);
+            }
+        }
+        if (arguments.isEmpty()) {
+            System.out.println("USAGE: BuildTargetIndex [--force] <snapshot-dir> [<target-title> ...]");
+            System.exit(255);
+        }
+        File snapshotDir = new File(arguments.get(0));
+        GraphSnapshot snapshot = new GraphSnapshot(snapshotDir);
+        List<String> titles = arguments.subList(1, arguments.size());
+        if (titles.isEmpty()) {
+            titles = existingTargets(snapshotDir);
+        }
+        for (String title : titles) {
+            File file = TargetIndex.fileFor(snapshotDir, title);
+            if (!force && file.isFile()
+                    && snapshot.getFingerprint().equals(new TargetIndex(file).getFingerprint())) {
+                System.out.println(title + ": up to date");
+                continue;
+            }
+            long startTime = System.currentTimeMillis();
+            TargetIndex.build(snapshot, title, file);
+            System.out.printf("%s: built in %d ms\n", title, System.currentTimeMillis() - startTime);
+        }
+    }
+
+    private static List<String> existingTargets(File snapshotDir) throws Exception {
+        List<String> titles = new ArrayList<String>();
+        File[] files = new File(snapshotDir, TargetIndex.DIRECTORY).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(TargetIndex.SUFFIX)) {
+                    titles.add(new TargetIndex(file).getTitle());
+                }
+            }
+        }
+        return titles;
+    }
+
+}
@@ -0,0 +1,92 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.query;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The edges of one link type in compressed sparse row form: the targets of
+ * node n are targets[offsets[n]] up to targets[offsets[n + 1]], sorted.
+ * Both arrays are memory-mapped from a file written by ExportSnapshot.
+ */
+public class CsrGraph {
+
+    private static final byte[] MAGIC = { 'G', 'P', 'C', 'S' };
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 12;
+
+    private final int nodeCount;
+    private final int edgeCount;
+    private final IntBuffer offsets;
+    private final IntBuffer targets;
+
+    public CsrGraph(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            for (byte magicByte : MAGIC) {
+                if (header.get() != magicByte) {
+                    throw new IOException(file + " is not a CSR file");
+                }
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported CSR file version " + version);
+            }
+            nodeCount = header.getInt();
+            edgeCount = header.getInt();
+            long offsetsLength = 4L * (nodeCount + 1);
+            offsets = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, offsetsLength).asIntBuffer();
+            targets = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + offsetsLength, 4L * edgeCount)
+                    .asIntBuffer();
+        } finally {
+            in.close();
+        }
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+    public int getStart(int node) {
+        return offsets.get(node);
+    }
+
+    public int getEnd(int node) {
+        return offsets.get(node + 1);
+    }
+
+    public int getTarget(int edge) {
+        return targets.get(edge);
+    }
+
+}
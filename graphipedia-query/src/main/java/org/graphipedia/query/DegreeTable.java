@@ -0,0 +1,106 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.query;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Reads the out- and in-degree of every node per relationship type, which
+ * ImportGraph writes into the store directory as "degrees", from
+ * memory-mapped int columns.
+ */
+public class DegreeTable {
+
+    public static final String FILE = "degrees";
+
+    private static final byte[] MAGIC = { 'G', 'P', 'D', 'G' };
+    private static final int VERSION = 1;
+
+    private final int nodeCount;
+    private final Map<WikiRelationshipType, IntBuffer> outDegrees =
+            new EnumMap<WikiRelationshipType, IntBuffer>(WikiRelationshipType.class);
+    private final Map<WikiRelationshipType, IntBuffer> inDegrees =
+            new EnumMap<WikiRelationshipType, IntBuffer>(WikiRelationshipType.class);
+
+    public DegreeTable(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            for (byte magicByte : MAGIC) {
+                if (in.readByte() != magicByte) {
+                    throw new IOException(file + " is not a degree table");
+                }
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported degree table version " + version);
+            }
+            nodeCount = in.readInt();
+            String[] types = new String[in.readInt()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = in.readUTF();
+            }
+            FileChannel channel = in.getChannel();
+            long position = in.getFilePointer();
+            long columnLength = 4L * nodeCount;
+            for (String type : types) {
+                outDegrees.put(WikiRelationshipType.valueOf(type), map(channel, position, columnLength));
+                position += columnLength;
+            }
+            for (String type : types) {
+                inDegrees.put(WikiRelationshipType.valueOf(type), map(channel, position, columnLength));
+                position += columnLength;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static IntBuffer map(FileChannel channel, long position, long length) throws IOException {
+        ByteBuffer column = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        return column.asIntBuffer();
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getOutDegree(long nodeId, WikiRelationshipType type) {
+        return get(outDegrees.get(type), nodeId);
+    }
+
+    public int getInDegree(long nodeId, WikiRelationshipType type) {
+        return get(inDegrees.get(type), nodeId);
+    }
+
+    // nodes created after the import, or of a type it did not know, have none
+    private int get(IntBuffer column, long nodeId) {
+        return column != null && nodeId >= 0 && nodeId < nodeCount ? column.get((int) nodeId) : 0;
+    }
+
+}
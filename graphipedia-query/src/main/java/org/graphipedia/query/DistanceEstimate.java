@@ -0,0 +1,63 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.query;
+
+/**
+ * Bounds on the number of links between two pages, from a LandmarkIndex.
+ * A lower bound of LandmarkIndex.FAR or more means the pages are at least
+ * that far apart or not connected at all.
+ */
+public class DistanceEstimate {
+
+    public static final int UNKNOWN = -1;
+
+    private final int lowerBound;
+    private final int upperBound;
+
+    public DistanceEstimate(int lowerBound, int upperBound) {
+        this.lowerBound = lowerBound;
+        this.upperBound = upperBound;
+    }
+
+    public int getLowerBound() {
+        return lowerBound;
+    }
+
+    /**
+     * Returns the upper bound, or UNKNOWN if no landmark lies on a path
+     * between the pages.
+     */
+    public int getUpperBound() {
+        return upperBound;
+    }
+
+    public boolean isExact() {
+        return lowerBound == upperBound;
+    }
+
+    @Override
+    public String toString() {
+        return isExact() ? Integer.toString(lowerBound)
+                : lowerBound + ".." + (upperBound == UNKNOWN ? "?" : Integer.toString(upperBound));
+    }
+
+}
@@ -0,0 +1,224 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.query;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A graph snapshot directory written by ExportSnapshot: the title table and,
+ * for each relationship type, the outgoing and incoming relationships in CSR
+ * form, node ids being title ids.
+ */
+public class GraphSnapshot {
+
+    private final TitleTable titles;
+    private final NormalizedTitleIndex normalizedTitles;
+    private final CsrGraph links;
+    private final CsrGraph incomingLinks;
+    private final Map<WikiRelationshipType, CsrGraph> graphs = new EnumMap<WikiRelationshipType, CsrGraph>(
+            WikiRelationshipType.class);
+    private final Map<WikiRelationshipType, CsrGraph> incomingGraphs = new EnumMap<WikiRelationshipType, CsrGraph>(
+            WikiRelationshipType.class);
+    private final String fingerprint;
+    private final long exportTime;
+    private final Map<String, TargetIndex> targetIndexes;
+    private final Map<Integer, TargetIndex> targetIndexesById;
+    private final LandmarkIndex landmarkIndex;
+
+    public GraphSnapshot(File snapshotDir) throws IOException {
+        titles = new TitleTable(new File(snapshotDir, "titles"));
+        File normalizedFile = new File(snapshotDir, "titles.norm");
+        normalizedTitles = normalizedFile.isFile() ? new NormalizedTitleIndex(titles, normalizedFile) : null;
+        links = new CsrGraph(new File(snapshotDir, "link.csr"));
+        if (links.getNodeCount() != titles.size()) {
+            throw new IOException("link.csr does not match the titles in " + snapshotDir);
+        }
+        File incomingFile = new File(snapshotDir, "link.in.csr");
+        incomingLinks = incomingFile.isFile() ? new CsrGraph(incomingFile) : null;
+        graphs.put(WikiRelationshipType.Link, links);
+        if (incomingLinks != null) {
+            incomingGraphs.put(WikiRelationshipType.Link, incomingLinks);
+        }
+        for (WikiRelationshipType type : WikiRelationshipType.values()) {
+            String name = type.name().toLowerCase(Locale.ENGLISH);
+            if (type != WikiRelationshipType.Link && new File(snapshotDir, name + ".csr").isFile()) {
+                graphs.put(type, new CsrGraph(new File(snapshotDir, name + ".csr")));
+                File file = new File(snapshotDir, name + ".in.csr");
+                if (file.isFile()) {
+                    incomingGraphs.put(type, new CsrGraph(file));
+                }
+            }
+        }
+        File linkFile = new File(snapshotDir, "link.csr");
+        fingerprint = snapshotDir.getCanonicalPath() + "@" + linkFile.lastModified() + ":" + linkFile.length();
+        exportTime = linkFile.lastModified();
+        targetIndexes = loadTargetIndexes(snapshotDir);
+        targetIndexesById = new HashMap<Integer, TargetIndex>();
+        for (TargetIndex index : targetIndexes.values()) {
+            targetIndexesById.put(index.getTargetId(), index);
+        }
+        landmarkIndex = loadLandmarkIndex(snapshotDir);
+    }
+
+    /**
+     * Identifies this export of the snapshot: its directory and when and how
+     * large its links were written.
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Returns when the snapshot's links were written.
+     */
+    public long getExportTime() {
+        return exportTime;
+    }
+
+    /**
+     * Returns the precomputed index of paths to the given page, or null if
+     * there is none for this export of the snapshot.
+     */
+    public TargetIndex getTargetIndex(int pageId) {
+        return targetIndexesById.get(pageId);
+    }
+
+    /**
+     * Returns the precomputed index of paths to the page with the given
+     * title, found like findTitle finds it, or null.
+     */
+    public TargetIndex getTargetIndex(String title) {
+        int pageId = findTitle(title);
+        return pageId != TitleTable.NOT_FOUND ? getTargetIndex(pageId) : null;
+    }
+
+    public Map<String, TargetIndex> getTargetIndexes() {
+        return targetIndexes;
+    }
+
+    /**
+     * Returns the landmark index built for this export of the snapshot, or null.
+     */
+    public LandmarkIndex getLandmarkIndex() {
+        return landmarkIndex;
+    }
+
+    private LandmarkIndex loadLandmarkIndex(File snapshotDir) throws IOException {
+        File file = new File(snapshotDir, LandmarkIndex.FILE);
+        if (!file.isFile()) {
+            return null;
+        }
+        LandmarkIndex index = new LandmarkIndex(file);
+        if (!fingerprint.equals(index.getFingerprint())) {
+            System.out.println("Ignoring stale landmark index " + file + ", run BuildLandmarks again");
+            return null;
+        }
+        return index;
+    }
+
+    private Map<String, TargetIndex> loadTargetIndexes(File snapshotDir) throws IOException {
+        Map<String, TargetIndex> indexes = new HashMap<String, TargetIndex>();
+        File[] files = new File(snapshotDir, TargetIndex.DIRECTORY).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().endsWith(TargetIndex.SUFFIX)) {
+                    continue;
+                }
+                TargetIndex index = new TargetIndex(file);
+                if (fingerprint.equals(index.getFingerprint())) {
+                    indexes.put(index.getTitle(), index);
+                } else {
+                    System.out.println("Ignoring stale target index " + file + ", run BuildTargetIndex again");
+                }
+            }
+        }
+        return Collections.unmodifiableMap(indexes);
+    }
+
+    public TitleTable getTitles() {
+        return titles;
+    }
+
+    /**
+     * Returns the index of normalised titles, or null for a snapshot written
+     * without one.
+     */
+    public NormalizedTitleIndex getNormalizedTitles() {
+        return normalizedTitles;
+    }
+
+    /**
+     * Returns the id of the page a title resolves to, ignoring first-letter
+     * case, underscores and anchors if the snapshot has normalised titles,
+     * or TitleTable.NOT_FOUND. A collapsed redirect resolves to its
+     * canonical page.
+     */
+    public int findTitle(String title) {
+        int id = normalizedTitles != null ? normalizedTitles.find(title) : titles.find(title);
+        return id != TitleTable.NOT_FOUND ? followRedirect(id) : id;
+    }
+
+    // a redirect page collapsed by ExportSnapshot --collapse-redirects has no
+    // links and a single redirect, to its canonical page, as in the store
+    private int followRedirect(int id) {
+        CsrGraph redirects = graphs.get(WikiRelationshipType.Redirect);
+        if (redirects == null || links.getStart(id) != links.getEnd(id)
+                || redirects.getEnd(id) - redirects.getStart(id) != 1) {
+            return id;
+        }
+        return redirects.getTarget(redirects.getStart(id));
+    }
+
+    public CsrGraph getLinks() {
+        return links;
+    }
+
+    /**
+     * Returns the links reversed, or null for a snapshot written without them.
+     */
+    public CsrGraph getIncomingLinks() {
+        return incomingLinks;
+    }
+
+    /**
+     * Returns the relationships of the given type, or null if the snapshot
+     * has none.
+     */
+    public CsrGraph getGraph(WikiRelationshipType type) {
+        return graphs.get(type);
+    }
+
+    /**
+     * Returns the relationships of the given type reversed, or null for a
+     * snapshot written without them.
+     */
+    public CsrGraph getIncomingGraph(WikiRelationshipType type) {
+        return incomingGraphs.get(type);
+    }
+
+}
@@ -21,8 +21,28 @@
 //
 package org.graphipedia.query;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.neo4j.graphalgo.GraphAlgoFactory;
 import org.neo4j.graphalgo.PathFinder;
@@ -31,57 +51,685 @@ import org.neo4j.graphdb.Expander;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.index.Index;
 import org.neo4j.kernel.EmbeddedGraphDatabase;
 import org.neo4j.kernel.Traversal;
 
+/**
+ * Finds paths between pages. All methods may be called from many threads at
+ * once: the bidirectional search borrows its scratch state from a small
+ * pool, so concurrent callers never share it and a steady stream of queries
+ * allocates no new state. Each state takes 8 to 16 bytes per node, so the
+ * pool is capped at 4 states (see setMaxFinders) whatever the number of
+ * cores or query threads; further bidirectional searches wait for a state.
+ */
 public class GraphipediaService {
 
     private static final Expander OUTGOING_LINKS = Traversal.expanderForTypes(WikiRelationshipType.Link, Direction.OUTGOING);
+    private static final int DEFAULT_QUEUE_DEPTH = 1000;
+    private static final int DEFAULT_MAX_FINDERS = 4;
+    // written by UpdateGraph into the store directory when it is done
+    static final String UPDATE_FILE = "update.time";
 
     private final GraphDatabaseService db;
     private final Index<Node> index;
+    private final TitleHash titleHash;
+    private final DegreeTable degrees;
+    private final GraphSnapshot snapshot;
+    private final PathEngine defaultEngine;
+    private final String storeIdentity;
+    private volatile QueryCache cache = new QueryCache();
+
+    private final BlockingQueue<BidirectionalPathFinder> idleFinders = new LinkedBlockingQueue<BidirectionalPathFinder>();
+    private final AtomicInteger finderCount = new AtomicInteger();
+    private volatile int maxFinders = DEFAULT_MAX_FINDERS;
+    private ThreadPoolExecutor executor;
+    private final ReentrantLock parallelBfsLock = new ReentrantLock();
+    private ParallelBfs parallelBfs;
+    private ExecutorService parallelBfsExecutor;
 
     public GraphipediaService(String storeDir) {
-        db = new EmbeddedGraphDatabase(storeDir);
-        registerShutdownHook(db);
-        index = db.index().forNodes("pages");
+        this(storeDir, (GraphSnapshot) null);
+    }
+
+    /**
+     * Opens both a Neo4j store and a snapshot of it written by
+     * ExportSnapshot, so that the engine can be chosen on each call. A
+     * snapshot exported before UpdateGraph last changed the store is
+     * ignored, and only Neo4j answers.
+     */
+    public GraphipediaService(String storeDir, String snapshotDir) throws IOException {
+        this(storeDir, new GraphSnapshot(new File(snapshotDir)));
+    }
+
+    private GraphipediaService(String storeDir, GraphSnapshot snapshot) {
+        if (storeDir != null) {
+            db = new EmbeddedGraphDatabase(storeDir);
+            registerShutdownHook(db);
+            titleHash = openTitleHash(new File(storeDir, TitleHash.FILE));
+            degrees = openDegreeTable(new File(storeDir, DegreeTable.FILE));
+            index = titleHash == null ? db.index().forNodes("pages") : null;
+            storeIdentity = storeIdentity(new File(storeDir));
+        } else {
+            db = null;
+            index = null;
+            titleHash = null;
+            degrees = null;
+            storeIdentity = null;
+        }
+        if (snapshot != null && storeDir != null && isUpdatedSince(new File(storeDir), snapshot)) {
+            System.out.println("Ignoring stale snapshot, " + storeDir
+                    + " was updated after it was exported: run ExportSnapshot again");
+            snapshot = null;
+        }
+        this.snapshot = snapshot;
+        if (snapshot != null && snapshot.getIncomingLinks() != null) {
+            defaultEngine = PathEngine.BIDIRECTIONAL;
+        } else {
+            defaultEngine = snapshot != null ? PathEngine.SNAPSHOT_BFS : PathEngine.NEO4J;
+        }
+    }
+
+    /**
+     * Opens a snapshot written by ExportSnapshot instead of a Neo4j store.
+     * Searches then run on the memory-mapped snapshot arrays.
+     */
+    public static GraphipediaService openSnapshot(String snapshotDir) throws IOException {
+        return new GraphipediaService(null, new GraphSnapshot(new File(snapshotDir)));
+    }
+
+    /**
+     * Returns the engine used when none is given: the bidirectional search if
+     * a snapshot with incoming links is open, otherwise the snapshot BFS,
+     * otherwise Neo4j.
+     */
+    public PathEngine getDefaultEngine() {
+        return defaultEngine;
+    }
+
+    /**
+     * Starts the executor behind the submit methods with the given number of
+     * query threads and at most queueDepth queries waiting for one; further
+     * submissions are rejected with a RejectedExecutionException. Without
+     * this call, the first submission starts one thread per core.
+     */
+    public synchronized void startExecutor(int threads, int queueDepth) {
+        if (executor != null) {
+            throw new IllegalStateException("executor already started");
+        }
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueDepth), new QueryThreadFactory("query"));
+    }
+
+    /**
+     * Sets how many bidirectional search states may exist at once. Each
+     * holds two int arrays with one entry per node, plus two queues that grow
+     * up to the same size, so 10M pages cost 80 to 160 MB per state.
+     */
+    public void setMaxFinders(int maxFinders) {
+        if (maxFinders < 1) {
+            throw new IllegalArgumentException("maxFinders must be at least 1");
+        }
+        this.maxFinders = maxFinders;
+    }
+
+    public QueryCache getQueryCache() {
+        return cache;
+    }
+
+    /**
+     * Replaces the cache of paths and title lookups, for example with a
+     * smaller one or one shared with other services; null disables caching.
+     * Path results are cached whatever engine found them.
+     */
+    public void setQueryCache(QueryCache cache) {
+        this.cache = cache;
+    }
+
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (parallelBfsExecutor != null) {
+            parallelBfsExecutor.shutdownNow();
+        }
     }
 
     public List<String> findPath(String startPage, String endPage, int maxDepth) {
-        Node startNode = findPage(startPage);
-        Node endNode = findPage(endPage);
-        PathFinder<Path> finder = GraphAlgoFactory.shortestPath(OUTGOING_LINKS, maxDepth);
-        Path path = finder.findSinglePath(startNode, endNode);
-        return extractTitles(path);
+        return findPath(startPage, endPage, maxDepth, defaultEngine);
+    }
+
+    public List<String> findPath(String startPage, String endPage, int maxDepth, PathEngine engine) {
+        return findPath(startPage, endPage, maxDepth, engine, QueryDeadline.NONE);
+    }
+
+    /**
+     * Finds a shortest path, giving up with a QueryTimeoutException at the
+     * deadline, or with a CancellationException if the calling thread is
+     * interrupted. The NEO4J engine only checks the deadline as it goes on
+     * stores imported with a degree table; on older stores it only checks it
+     * before it starts.
+     */
+    public List<String> findPath(String startPage, String endPage, int maxDepth, PathEngine engine,
+            QueryDeadline deadline) {
+        checkEngine(engine);
+        deadline.check();
+        QueryCache cache = this.cache;
+        // the store and the snapshot are cached apart, as either may be
+        // updated without the other
+        String graph = engine == PathEngine.NEO4J ? storeIdentity : snapshot.getFingerprint();
+        if (cache != null) {
+            List<String> cached = cache.getPath(graph, engine, startPage, endPage, maxDepth);
+            if (cached != null) {
+                return cached == QueryCache.NO_PATH ? null : new ArrayList<String>(cached);
+            }
+        }
+        List<String> path = searchPath(startPage, endPage, maxDepth, engine, deadline);
+        if (cache != null) {
+            cache.putPath(graph, engine, startPage, endPage, maxDepth,
+                    path != null ? new ArrayList<String>(path) : null);
+        }
+        return path;
+    }
+
+    private List<String> searchPath(String startPage, String endPage, int maxDepth, PathEngine engine,
+            QueryDeadline deadline) {
+        if (engine == PathEngine.NEO4J) {
+            Node startNode = findPage(startPage);
+            Node endNode = findPage(endPage);
+            if (degrees != null) {
+                Neo4jPathFinder finder = new Neo4jPathFinder(degrees, Neo4jPathFinder.ANY_DISTANCE);
+                return extractTitles(finder.findSinglePath(startNode, endNode, maxDepth, deadline));
+            }
+            PathFinder<Path> finder = GraphAlgoFactory.shortestPath(OUTGOING_LINKS, maxDepth);
+            Path path = finder.findSinglePath(startNode, endNode);
+            return extractTitles(path);
+        }
+        int startId = findPageId(startPage);
+        int endId = findPageId(endPage);
+        TargetIndex targetIndex = snapshot.getTargetIndex(endId);
+        int[] path;
+        if (targetIndex != null) {
+            path = targetIndex.getDistance(startId) <= maxDepth ? targetIndex.getPath(startId) : null;
+        } else if (engine == PathEngine.BIDIRECTIONAL) {
+            BidirectionalPathFinder finder = borrowFinder(deadline);
+            try {
+                path = finder.findSinglePath(startId, endId, maxDepth, deadline);
+            } finally {
+                idleFinders.add(finder);
+            }
+        } else if (engine == PathEngine.PARALLEL_BFS) {
+            path = findParallel(startId, endId, maxDepth, EnumSet.of(WikiRelationshipType.Link), deadline);
+        } else {
+            path = new SnapshotPathFinder(snapshot.getLinks()).findSinglePath(startId, endId, maxDepth, deadline);
+        }
+        return path != null ? extractTitles(path) : null;
+    }
+
+    /**
+     * Finds a shortest path in the Neo4j store that only follows links whose
+     * "dist" is at most maxDistance, where 0 keeps the links of each page's
+     * lead section. Results are not cached.
+     */
+    public List<String> findLeadPath(String startPage, String endPage, int maxDepth, int maxDistance,
+            QueryDeadline deadline) {
+        checkEngine(PathEngine.NEO4J);
+        deadline.check();
+        Neo4jPathFinder finder = new Neo4jPathFinder(degrees, maxDistance);
+        return extractTitles(finder.findSinglePath(findPage(startPage), findPage(endPage), maxDepth, deadline));
+    }
+
+    /**
+     * Returns the number of relationships of the given type from a page, as
+     * counted by ImportGraph.
+     */
+    public int getOutDegree(String page, WikiRelationshipType type) {
+        return requireDegrees().getOutDegree(findPage(page).getId(), type);
+    }
+
+    /**
+     * Returns the number of relationships of the given type to a page, as
+     * counted by ImportGraph.
+     */
+    public int getInDegree(String page, WikiRelationshipType type) {
+        return requireDegrees().getInDegree(findPage(page).getId(), type);
+    }
+
+    private DegreeTable requireDegrees() {
+        if (degrees == null) {
+            throw new IllegalStateException("no degree table, import the store again");
+        }
+        return degrees;
+    }
+
+    /**
+     * Finds a shortest path that may follow relationships of any of the given
+     * types, with the parallel breadth-first search. Results are not cached.
+     */
+    public List<String> findPath(String startPage, String endPage, int maxDepth, Set<WikiRelationshipType> types,
+            QueryDeadline deadline) {
+        checkEngine(PathEngine.PARALLEL_BFS);
+        deadline.check();
+        int[] path = findParallel(findPageId(startPage), findPageId(endPage), maxDepth, types, deadline);
+        return path != null ? extractTitles(path) : null;
+    }
+
+    // the parallel search already uses every core, so searches take turns
+    private int[] findParallel(int startId, int endId, int maxDepth, Set<WikiRelationshipType> types,
+            QueryDeadline deadline) {
+        try {
+            if (!parallelBfsLock.tryLock(deadline.remainingNanos(), TimeUnit.NANOSECONDS)) {
+                throw new QueryTimeoutException("query deadline exceeded waiting for the parallel search");
+            }
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("query cancelled");
+        }
+        try {
+            if (parallelBfs == null) {
+                int threads = Runtime.getRuntime().availableProcessors();
+                synchronized (this) {
+                    parallelBfsExecutor = Executors.newFixedThreadPool(threads, new QueryThreadFactory("bfs"));
+                }
+                parallelBfs = new ParallelBfs(snapshot, parallelBfsExecutor, threads);
+            }
+            return parallelBfs.findSinglePath(startId, endId, maxDepth, types, deadline);
+        } finally {
+            parallelBfsLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the titles of at most limit pages that start with the prefix,
+     * for autocompletion. Ignores first-letter case and underscores, and
+     * needs a snapshot exported with normalised titles.
+     */
+    public List<String> findTitlesByPrefix(String prefix, int limit) {
+        NormalizedTitleIndex normalizedTitles = snapshot != null ? snapshot.getNormalizedTitles() : null;
+        if (normalizedTitles == null) {
+            throw new IllegalStateException("no normalised title index, export the snapshot again");
+        }
+        List<String> titles = new ArrayList<String>();
+        for (int id : normalizedTitles.findByPrefix(prefix, limit)) {
+            titles.add(snapshot.getTitles().getTitle(id));
+        }
+        return titles;
+    }
+
+    /**
+     * Bounds the number of links between two pages with K reads from the
+     * snapshot's landmark index, without searching.
+     */
+    public DistanceEstimate estimateDistance(String startPage, String endPage) {
+        LandmarkIndex landmarks = snapshot != null ? snapshot.getLandmarkIndex() : null;
+        if (landmarks == null) {
+            throw new IllegalStateException("no landmark index, run BuildLandmarks");
+        }
+        int startId = findPageId(startPage);
+        int endId = findPageId(endPage);
+        if (startId == endId) {
+            return new DistanceEstimate(0, 0);
+        }
+        int upperBound = landmarks.upperBound(startId, endId);
+        return new DistanceEstimate(Math.max(1, landmarks.lowerBound(startId, endId)),
+                upperBound == LandmarkIndex.FAR ? DistanceEstimate.UNKNOWN : upperBound);
+    }
+
+    /**
+     * Returns the number of links on a shortest path from the page to the
+     * target, or -1 if there is none, from the target's precomputed index.
+     */
+    public int getDistanceToTarget(String startPage, String targetPage) {
+        return requireTargetIndex(targetPage).getDistance(findPageId(startPage));
+    }
+
+    /**
+     * Returns a shortest path from the page to the target, or null if there
+     * is none, by following the next hops of the target's precomputed index.
+     * findPath does the same for any end page that has an index, unless the
+     * NEO4J engine is asked for.
+     */
+    public List<String> findPathToTarget(String startPage, String targetPage) {
+        int[] path = requireTargetIndex(targetPage).getPath(findPageId(startPage));
+        return path != null ? extractTitles(path) : null;
+    }
+
+    /**
+     * Returns the titles of the pages with an up-to-date precomputed index.
+     */
+    public Set<String> getPrecomputedTargets() {
+        return snapshot != null ? snapshot.getTargetIndexes().keySet() : Collections.<String>emptySet();
+    }
+
+    private TargetIndex requireTargetIndex(String targetPage) {
+        TargetIndex targetIndex = snapshot != null ? snapshot.getTargetIndex(findPageId(targetPage)) : null;
+        if (targetIndex == null) {
+            throw new IllegalStateException("no precomputed index for " + targetPage + ", run BuildTargetIndex");
+        }
+        return targetIndex;
     }
 
     public List<List<String>> findShortestPaths(String startPage, String endPage, int maxDepth) {
-        Node startNode = findPage(startPage);
-        Node endNode = findPage(endPage);
-        PathFinder<Path> finder = GraphAlgoFactory.shortestPath(OUTGOING_LINKS, maxDepth);
-        Iterable<Path> paths = finder.findAllPaths(startNode, endNode);
+        return findShortestPaths(startPage, endPage, maxDepth, defaultEngine);
+    }
+
+    public List<List<String>> findShortestPaths(String startPage, String endPage, int maxDepth, PathEngine engine) {
+        return findShortestPaths(startPage, endPage, maxDepth, engine, QueryDeadline.NONE);
+    }
+
+    public List<List<String>> findShortestPaths(String startPage, String endPage, int maxDepth, PathEngine engine,
+            QueryDeadline deadline) {
+        checkEngine(engine);
+        deadline.check();
         List<List<String>> pagePaths = new ArrayList<List<String>>();
-        for (Path path : paths) {
+        if (engine == PathEngine.NEO4J) {
+            for (Path path : neo4jShortestPaths(startPage, endPage, maxDepth)) {
+                pagePaths.add(extractTitles(path));
+            }
+            return pagePaths;
+        }
+        int startId = findPageId(startPage);
+        int endId = findPageId(endPage);
+        List<int[]> paths;
+        if (engine == PathEngine.BIDIRECTIONAL || engine == PathEngine.PARALLEL_BFS) {
+            BidirectionalPathFinder finder = borrowFinder(deadline);
+            try {
+                paths = finder.findAllPaths(startId, endId, maxDepth, deadline);
+            } finally {
+                idleFinders.add(finder);
+            }
+        } else {
+            paths = new SnapshotPathFinder(snapshot.getLinks()).findAllPaths(startId, endId, maxDepth, deadline);
+        }
+        for (int[] path : paths) {
             pagePaths.add(extractTitles(path));
         }
         return pagePaths;
     }
 
+    /**
+     * Returns at most limit shortest paths, one at a time. Only the search
+     * runs before this returns, under the deadline: the snapshot engines
+     * keep just the DAG of shortest paths and build each path's titles when
+     * it is read, so memory does not grow with the number of paths and a
+     * caller that stops reading early saves the rest of the work.
+     */
+    public Iterator<List<String>> iterateShortestPaths(String startPage, String endPage, int maxDepth, long limit) {
+        return iterateShortestPaths(startPage, endPage, maxDepth, limit, defaultEngine, QueryDeadline.NONE);
+    }
+
+    public Iterator<List<String>> iterateShortestPaths(String startPage, String endPage, int maxDepth, long limit,
+            PathEngine engine, QueryDeadline deadline) {
+        checkEngine(engine);
+        deadline.check();
+        if (engine == PathEngine.NEO4J) {
+            return new PagePathIterator<Path>(neo4jShortestPaths(startPage, endPage, maxDepth).iterator(), limit) {
+                List<String> titles(Path path) {
+                    return extractTitles(path);
+                }
+            };
+        }
+        Iterator<int[]> paths;
+        if (snapshot.getIncomingLinks() != null) {
+            ShortestPathDag dag = findShortestPathDag(startPage, endPage, maxDepth, deadline);
+            paths = dag != null ? dag.iterator() : Collections.<int[]>emptyList().iterator();
+        } else {
+            paths = new SnapshotPathFinder(snapshot.getLinks()).findAllPaths(findPageId(startPage),
+                    findPageId(endPage), maxDepth, deadline).iterator();
+        }
+        return new PagePathIterator<int[]>(paths, limit) {
+            List<String> titles(int[] path) {
+                return extractTitles(path);
+            }
+        };
+    }
+
+    /**
+     * Returns the number of shortest paths without listing them, or
+     * Long.MAX_VALUE if there are at least that many. The snapshot engines
+     * count them on the DAG of shortest paths in time proportional to its
+     * size; Neo4j still has to enumerate them.
+     */
+    public long countShortestPaths(String startPage, String endPage, int maxDepth) {
+        return countShortestPaths(startPage, endPage, maxDepth, defaultEngine, QueryDeadline.NONE);
+    }
+
+    public long countShortestPaths(String startPage, String endPage, int maxDepth, PathEngine engine,
+            QueryDeadline deadline) {
+        checkEngine(engine);
+        deadline.check();
+        if (engine != PathEngine.NEO4J && snapshot.getIncomingLinks() != null) {
+            ShortestPathDag dag = findShortestPathDag(startPage, endPage, maxDepth, deadline);
+            return dag != null ? dag.countPaths() : 0;
+        }
+        long count = 0;
+        Iterator<List<String>> paths = iterateShortestPaths(startPage, endPage, maxDepth, Long.MAX_VALUE, engine,
+                deadline);
+        while (paths.hasNext()) {
+            paths.next();
+            count++;
+            deadline.check();
+        }
+        return count;
+    }
+
+    private ShortestPathDag findShortestPathDag(String startPage, String endPage, int maxDepth,
+            QueryDeadline deadline) {
+        int startId = findPageId(startPage);
+        int endId = findPageId(endPage);
+        BidirectionalPathFinder finder = borrowFinder(deadline);
+        try {
+            return finder.findShortestPathDag(startId, endId, maxDepth, deadline);
+        } finally {
+            idleFinders.add(finder);
+        }
+    }
+
+    private Iterable<Path> neo4jShortestPaths(String startPage, String endPage, int maxDepth) {
+        Node startNode = findPage(startPage);
+        Node endNode = findPage(endPage);
+        PathFinder<Path> finder = GraphAlgoFactory.shortestPath(OUTGOING_LINKS, maxDepth);
+        return finder.findAllPaths(startNode, endNode);
+    }
+
+    /**
+     * Runs findPath on the query executor. The timeout counts from now, so
+     * it includes the time spent waiting in the queue; cancelling the future
+     * stops a running search.
+     */
+    public Future<List<String>> submitFindPath(final String startPage, final String endPage, final int maxDepth,
+            final PathEngine engine, long timeout, TimeUnit unit) {
+        final QueryDeadline deadline = QueryDeadline.after(timeout, unit);
+        return executor().submit(new Callable<List<String>>() {
+            public List<String> call() {
+                return findPath(startPage, endPage, maxDepth, engine, deadline);
+            }
+        });
+    }
+
+    public Future<List<List<String>>> submitFindShortestPaths(final String startPage, final String endPage,
+            final int maxDepth, final PathEngine engine, long timeout, TimeUnit unit) {
+        final QueryDeadline deadline = QueryDeadline.after(timeout, unit);
+        return executor().submit(new Callable<List<List<String>>>() {
+            public List<List<String>> call() {
+                return findShortestPaths(startPage, endPage, maxDepth, engine, deadline);
+            }
+        });
+    }
+
+    private synchronized ThreadPoolExecutor executor() {
+        if (executor == null) {
+            startExecutor(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_DEPTH);
+        }
+        return executor;
+    }
+
+    // takes an idle search state, creates one while below maxFinders, or
+    // else waits for one until the deadline
+    private BidirectionalPathFinder borrowFinder(QueryDeadline deadline) {
+        BidirectionalPathFinder finder = idleFinders.poll();
+        if (finder != null) {
+            return finder;
+        }
+        if (finderCount.incrementAndGet() <= maxFinders) {
+            return new BidirectionalPathFinder(snapshot.getLinks(), snapshot.getIncomingLinks(),
+                    snapshot.getLandmarkIndex());
+        }
+        finderCount.decrementAndGet();
+        try {
+            finder = idleFinders.poll(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("query cancelled");
+        }
+        if (finder == null) {
+            throw new QueryTimeoutException("query deadline exceeded waiting for a search state");
+        }
+        return finder;
+    }
+
+    private void checkEngine(PathEngine engine) {
+        boolean available;
+        if (engine == PathEngine.NEO4J) {
+            available = db != null;
+        } else if (engine == PathEngine.BIDIRECTIONAL || engine == PathEngine.PARALLEL_BFS) {
+            available = snapshot != null && snapshot.getIncomingLinks() != null;
+        } else {
+            available = snapshot != null;
+        }
+        if (!available) {
+            throw new IllegalStateException(engine + " is not available for this service");
+        }
+    }
+
     private Node findPage(String title) {
-        Node node = index.get("title", title).getSingle();
-        if (node == null) {
-            throw new IllegalArgumentException("no such page: " + title);
+        QueryCache cache = this.cache;
+        Long nodeId = cache != null ? cache.getNodeId(storeIdentity, title) : null;
+        if (nodeId != null) {
+            return db.getNodeById(nodeId);
+        }
+        Node node;
+        if (titleHash != null) {
+            long id = titleHash.find(title);
+            if (id == TitleHash.NOT_FOUND) {
+                throw new IllegalArgumentException("no such page: " + title);
+            }
+            node = db.getNodeById(id);
+        } else {
+            node = index.get("title", canonicalTitle(title)).getSingle();
+            if (node == null) {
+                throw new IllegalArgumentException("no such page: " + title);
+            }
+        }
+        node = followRedirect(node);
+        if (cache != null) {
+            cache.putNodeId(storeIdentity, title, node.getId());
         }
         return node;
     }
 
+    // the title of the page a title resolves to in the snapshot, if any
+    private String canonicalTitle(String title) {
+        if (snapshot == null || snapshot.getNormalizedTitles() == null) {
+            return title;
+        }
+        int id = snapshot.getNormalizedTitles().find(title);
+        return id != TitleTable.NOT_FOUND ? snapshot.getTitles().getTitle(id) : title;
+    }
+
+    // a redirect page collapsed by ImportGraph --collapse-redirects has no
+    // links and a single Redirect relationship, to its canonical page
+    private Node followRedirect(Node node) {
+        if (node.getRelationships(Direction.OUTGOING, WikiRelationshipType.Link).iterator().hasNext()) {
+            return node;
+        }
+        Relationship redirect = null;
+        for (Relationship relationship : node.getRelationships(Direction.OUTGOING, WikiRelationshipType.Redirect)) {
+            if (redirect != null) {
+                return node;
+            }
+            redirect = relationship;
+        }
+        return redirect != null ? redirect.getEndNode() : node;
+    }
+
+    private int findPageId(String title) {
+        QueryCache cache = this.cache;
+        Long nodeId = cache != null ? cache.getNodeId(snapshot.getFingerprint(), title) : null;
+        if (nodeId != null) {
+            return nodeId.intValue();
+        }
+        int id = snapshot.findTitle(title);
+        if (id == TitleTable.NOT_FOUND) {
+            throw new IllegalArgumentException("no such page: " + title);
+        }
+        if (cache != null) {
+            cache.putNodeId(snapshot.getFingerprint(), title, id);
+        }
+        return id;
+    }
+
+    // the title hash written by ImportGraph, or null for stores imported
+    // before it, which are searched through the Lucene "pages" index
+    private static TitleHash openTitleHash(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return new TitleHash(file);
+        } catch (IOException ioException) {
+            throw new RuntimeException(ioException);
+        }
+    }
+
+    private static DegreeTable openDegreeTable(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return new DegreeTable(file);
+        } catch (IOException ioException) {
+            throw new RuntimeException(ioException);
+        }
+    }
+
+    // the snapshot, and the landmark and target indexes built on it, still
+    // hold the links from before the update
+    private static boolean isUpdatedSince(File storeDir, GraphSnapshot snapshot) {
+        return new File(storeDir, UPDATE_FILE).lastModified() > snapshot.getExportTime();
+    }
+
+    // the store directory and when its last import was written
+    private static String storeIdentity(File storeDir) {
+        try {
+            return storeDir.getCanonicalPath() + "@" + new File(storeDir, "neostore").lastModified();
+        } catch (IOException ioException) {
+            throw new RuntimeException(ioException);
+        }
+    }
+
+    private List<String> extractTitles(int[] path) {
+        List<String> pages = new ArrayList<String>();
+        for (int id : path) {
+            pages.add(snapshot.getTitles().getTitle(id));
+        }
+        return pages;
+    }
+
     private List<String> extractTitles(Path path) {
+        if (path == null) {
+            return null;
+        }
+        return extractTitles(path.nodes());
+    }
+
+    private List<String> extractTitles(Iterable<Node> path) {
         if (path == null) {
             return null;
         }
         List<String> pages = new ArrayList<String>();
-        for (Node node : path.nodes()) {
+        for (Node node : path) {
             pages.add((String) node.getProperty("title"));
         }
         return pages;
@@ -95,4 +743,52 @@ public class GraphipediaService {
         });
     }
 
+    // turns the paths of a search into lists of titles as they are read
+    private abstract static class PagePathIterator<T> implements Iterator<List<String>> {
+
+        private final Iterator<T> paths;
+        private long remaining;
+
+        PagePathIterator(Iterator<T> paths, long limit) {
+            this.paths = paths;
+            this.remaining = limit;
+        }
+
+        abstract List<String> titles(T path);
+
+        public boolean hasNext() {
+            return remaining > 0 && paths.hasNext();
+        }
+
+        public List<String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            remaining--;
+            return titles(paths.next());
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    private static class QueryThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        QueryThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
 }
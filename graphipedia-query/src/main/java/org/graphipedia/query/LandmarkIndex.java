@@ -0,0 +1,287 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.query;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Link distances from and to a few landmark pages, which bound the distance
+ * between any two pages by the triangle inequality (ALT):
+ * d(s, t) &gt;= d(L, t) - d(L, s) and d(s, t) &gt;= d(s, L) - d(t, L), while
+ * d(s, t) &lt;= d(s, L) + d(L, t).
+ * <p>
+ * Distances are bytes, 255 meaning "255 or more, or unreachable", stored
+ * node by node so that the distances of one node to all landmarks are
+ * adjacent. The file holds the fingerprint of the snapshot it was built from.
+ */
+public class LandmarkIndex {
+
+    public static final String FILE = "landmarks.idx";
+    public static final int DEFAULT_LANDMARKS = 16;
+    public static final int MAX_LANDMARKS = 64;
+    public static final int FAR = 0xff;
+
+    private static final byte[] MAGIC = { 'G', 'P', 'L', 'M' };
+    private static final int VERSION = 1;
+
+    private final String fingerprint;
+    private final int[] landmarks;
+    private final ByteBuffer fromLandmarks;
+    private final ByteBuffer toLandmarks;
+
+    public LandmarkIndex(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            for (byte magicByte : MAGIC) {
+                if (in.readByte() != magicByte) {
+                    throw new IOException(file + " is not a landmark index");
+                }
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported landmark index version " + version);
+            }
+            fingerprint = in.readUTF();
+            int nodeCount = in.readInt();
+            landmarks = new int[in.readInt()];
+            for (int i = 0; i < landmarks.length; i++) {
+                landmarks[i] = in.readInt();
+            }
+            long length = (long) nodeCount * landmarks.length;
+            long position = in.getFilePointer();
+            FileChannel channel = in.getChannel();
+            fromLandmarks = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            toLandmarks = channel.map(FileChannel.MapMode.READ_ONLY, position + length, length);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Picks the landmarkCount pages with the most links in and out, runs a
+     * forward and a backward breadth-first search from each and writes the
+     * index.
+     */
+    public static void build(GraphSnapshot snapshot, int landmarkCount, File file) throws IOException {
+        CsrGraph outgoing = snapshot.getLinks();
+        CsrGraph incoming = snapshot.getIncomingLinks();
+        if (incoming == null) {
+            throw new IllegalStateException("the snapshot has no incoming links, export it again");
+        }
+        int nodeCount = outgoing.getNodeCount();
+        landmarkCount = Math.min(Math.min(landmarkCount, MAX_LANDMARKS), nodeCount);
+        if ((long) nodeCount * landmarkCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many landmarks for " + nodeCount + " nodes");
+        }
+        int[] landmarks = pickLandmarks(outgoing, incoming, landmarkCount);
+        byte[] fromLandmarks = new byte[nodeCount * landmarkCount];
+        byte[] toLandmarks = new byte[nodeCount * landmarkCount];
+        byte[] distances = new byte[nodeCount];
+        int[] queue = new int[nodeCount];
+        for (int i = 0; i < landmarkCount; i++) {
+            breadthFirst(outgoing, landmarks[i], distances, queue);
+            for (int node = 0; node < nodeCount; node++) {
+                fromLandmarks[node * landmarkCount + i] = distances[node];
+            }
+            breadthFirst(incoming, landmarks[i], distances, queue);
+            for (int node = 0; node < nodeCount; node++) {
+                toLandmarks[node * landmarkCount + i] = distances[node];
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(snapshot.getFingerprint());
+            out.writeInt(nodeCount);
+            out.writeInt(landmarkCount);
+            for (int landmark : landmarks) {
+                out.writeInt(landmark);
+            }
+            out.write(fromLandmarks);
+            out.write(toLandmarks);
+        } finally {
+            out.close();
+        }
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public int[] getLandmarks() {
+        return landmarks.clone();
+    }
+
+    /**
+     * Reads the distances from every landmark to the node, and from the
+     * node to every landmark, into the given arrays.
+     */
+    public void getDistances(int node, int[] fromLandmark, int[] toLandmark) {
+        int base = node * landmarks.length;
+        for (int i = 0; i < landmarks.length; i++) {
+            fromLandmark[i] = fromLandmarks.get(base + i) & 0xff;
+            toLandmark[i] = toLandmarks.get(base + i) & 0xff;
+        }
+    }
+
+    /**
+     * Returns a lower bound on the distance from node to the page whose
+     * landmark distances are given.
+     */
+    public int lowerBoundTo(int node, int[] endFromLandmark, int[] endToLandmark) {
+        int base = node * landmarks.length;
+        int bound = 0;
+        for (int i = 0; i < landmarks.length; i++) {
+            bound = Math.max(bound, endFromLandmark[i] - (fromLandmarks.get(base + i) & 0xff));
+            bound = Math.max(bound, (toLandmarks.get(base + i) & 0xff) - endToLandmark[i]);
+        }
+        return bound;
+    }
+
+    /**
+     * Returns a lower bound on the distance to node from the page whose
+     * landmark distances are given.
+     */
+    public int lowerBoundFrom(int[] startFromLandmark, int[] startToLandmark, int node) {
+        int base = node * landmarks.length;
+        int bound = 0;
+        for (int i = 0; i < landmarks.length; i++) {
+            bound = Math.max(bound, (fromLandmarks.get(base + i) & 0xff) - startFromLandmark[i]);
+            bound = Math.max(bound, startToLandmark[i] - (toLandmarks.get(base + i) & 0xff));
+        }
+        return bound;
+    }
+
+    public int lowerBound(int start, int end) {
+        int[] endFromLandmark = new int[landmarks.length];
+        int[] endToLandmark = new int[landmarks.length];
+        getDistances(end, endFromLandmark, endToLandmark);
+        return lowerBoundTo(start, endFromLandmark, endToLandmark);
+    }
+
+    /**
+     * Returns an upper bound on the distance from start to end, or FAR if no
+     * landmark is on a path between them.
+     */
+    public int upperBound(int start, int end) {
+        int startBase = start * landmarks.length;
+        int endBase = end * landmarks.length;
+        int bound = FAR;
+        for (int i = 0; i < landmarks.length; i++) {
+            int toLandmark = toLandmarks.get(startBase + i) & 0xff;
+            int fromLandmark = fromLandmarks.get(endBase + i) & 0xff;
+            if (toLandmark != FAR && fromLandmark != FAR) {
+                bound = Math.min(bound, toLandmark + fromLandmark);
+            }
+        }
+        return bound;
+    }
+
+    private static int[] pickLandmarks(CsrGraph outgoing, CsrGraph incoming, int landmarkCount) {
+        // a small min-heap of the highest degrees seen so far
+        int[] heap = new int[landmarkCount];
+        long[] keys = new long[landmarkCount];
+        int size = 0;
+        for (int node = 0; node < outgoing.getNodeCount(); node++) {
+            long degree = (outgoing.getEnd(node) - outgoing.getStart(node)) + (incoming.getEnd(node) - incoming.getStart(node));
+            long key = (degree << 32) | (0xffffffffL - node);
+            if (size < landmarkCount) {
+                heap[size] = node;
+                keys[size] = key;
+                siftUp(heap, keys, size++);
+            } else if (key > keys[0]) {
+                heap[0] = node;
+                keys[0] = key;
+                siftDown(heap, keys, size);
+            }
+        }
+        int[] landmarks = Arrays.copyOf(heap, size);
+        Arrays.sort(landmarks);
+        return landmarks;
+    }
+
+    private static void siftUp(int[] heap, long[] keys, int i) {
+        while (i > 0 && keys[(i - 1) / 2] > keys[i]) {
+            swap(heap, keys, i, (i - 1) / 2);
+            i = (i - 1) / 2;
+        }
+    }
+
+    private static void siftDown(int[] heap, long[] keys, int size) {
+        int i = 0;
+        while (true) {
+            int smallest = i;
+            for (int child = 2 * i + 1; child <= 2 * i + 2 && child < size; child++) {
+                if (keys[child] < keys[smallest]) {
+                    smallest = child;
+                }
+            }
+            if (smallest == i) {
+                return;
+            }
+            swap(heap, keys, i, smallest);
+            i = smallest;
+        }
+    }
+
+    private static void swap(int[] heap, long[] keys, int i, int j) {
+        int node = heap[i];
+        heap[i] = heap[j];
+        heap[j] = node;
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+    }
+
+    private static void breadthFirst(CsrGraph graph, int origin, byte[] distances, int[] queue) {
+        Arrays.fill(distances, (byte) FAR);
+        distances[origin] = 0;
+        queue[0] = origin;
+        int head = 0;
+        int tail = 1;
+        while (head < tail) {
+            int node = queue[head++];
+            int distance = distances[node] & 0xff;
+            if (distance == FAR - 1) {
+                continue;
+            }
+            for (int edge = graph.getStart(node); edge < graph.getEnd(node); edge++) {
+                int target = graph.getTarget(edge);
+                if ((distances[target] & 0xff) == FAR) {
+                    distances[target] = (byte) (distance + 1);
+                    queue[tail++] = target;
+                }
+            }
+        }
+    }
+
+}
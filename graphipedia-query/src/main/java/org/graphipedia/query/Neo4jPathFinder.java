@@ -0,0 +1,164 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * Shortest path search over the Link relationships of a Neo4j store, that
+ * grows a frontier forwards from the start node and one backwards from the
+ * end node until they meet.
+ * <p>
+ * With a DegreeTable, it expands the frontier with fewer relationships to
+ * follow, read from the table rather than from the store; without one, the
+ * frontier with fewer nodes. It can also skip links whose "dist" is above
+ * a limit, that is links outside the first sections of their page.
+ */
+public class Neo4jPathFinder {
+
+    public static final int ANY_DISTANCE = Integer.MAX_VALUE;
+
+    // nodes expanded between two deadline checks
+    private static final int CHECK_MASK = (1 << 8) - 1;
+
+    private final DegreeTable degrees;
+    private final int maxDistance;
+
+    /**
+     * @param degrees the degrees of the nodes, or null
+     * @param maxDistance the largest "dist" of the links to follow, or
+     *        ANY_DISTANCE
+     */
+    public Neo4jPathFinder(DegreeTable degrees, int maxDistance) {
+        this.degrees = degrees;
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * Returns the nodes of a shortest path of at most maxDepth links, or
+     * null if there is none.
+     */
+    public List<Node> findSinglePath(Node start, Node end, int maxDepth, QueryDeadline deadline) {
+        if (start.getId() == end.getId()) {
+            return Collections.singletonList(start);
+        }
+        Frontier forward = new Frontier(start, Direction.OUTGOING);
+        Frontier backward = new Frontier(end, Direction.INCOMING);
+        int expanded = 0;
+        for (int depth = 0; depth < maxDepth; depth++) {
+            if (forward.level.isEmpty() || backward.level.isEmpty()) {
+                return null;
+            }
+            Frontier frontier = forward.cost <= backward.cost ? forward : backward;
+            Frontier other = frontier == forward ? backward : forward;
+            List<Node> next = new ArrayList<Node>();
+            for (Node node : frontier.level) {
+                if ((++expanded & CHECK_MASK) == 0) {
+                    deadline.check();
+                }
+                for (Relationship link : node.getRelationships(frontier.direction, WikiRelationshipType.Link)) {
+                    if (!accept(link)) {
+                        continue;
+                    }
+                    Node linked = link.getOtherNode(node);
+                    Long linkedId = linked.getId();
+                    if (frontier.parents.containsKey(linkedId)) {
+                        continue;
+                    }
+                    frontier.parents.put(linkedId, node);
+                    if (other.parents.containsKey(linkedId)) {
+                        return path(linked, forward, backward);
+                    }
+                    next.add(linked);
+                }
+            }
+            frontier.setLevel(next);
+        }
+        return null;
+    }
+
+    private boolean accept(Relationship link) {
+        return maxDistance == ANY_DISTANCE || distance(link) <= maxDistance;
+    }
+
+    // stores imported before dist was numeric hold it as a string
+    private static int distance(Relationship link) {
+        Object dist = link.getProperty("dist", null);
+        if (dist instanceof Number) {
+            return ((Number) dist).intValue();
+        }
+        if (dist instanceof String && ((String) dist).length() > 0) {
+            return Integer.parseInt((String) dist);
+        }
+        return ANY_DISTANCE;
+    }
+
+    private static List<Node> path(Node meeting, Frontier forward, Frontier backward) {
+        List<Node> path = new ArrayList<Node>();
+        for (Node node = meeting; node != null; node = forward.parents.get(node.getId())) {
+            path.add(node);
+        }
+        Collections.reverse(path);
+        for (Node node = backward.parents.get(meeting.getId()); node != null;
+                node = backward.parents.get(node.getId())) {
+            path.add(node);
+        }
+        return path;
+    }
+
+    private class Frontier {
+
+        private final Direction direction;
+        private final Map<Long, Node> parents = new HashMap<Long, Node>();
+        private List<Node> level;
+        private long cost;
+
+        Frontier(Node root, Direction direction) {
+            this.direction = direction;
+            parents.put(root.getId(), null);
+            setLevel(Collections.singletonList(root));
+        }
+
+        void setLevel(List<Node> nodes) {
+            level = nodes;
+            if (degrees == null) {
+                cost = nodes.size();
+                return;
+            }
+            cost = 0;
+            for (Node node : nodes) {
+                cost += direction == Direction.OUTGOING ? degrees.getOutDegree(node.getId(), WikiRelationshipType.Link)
+                        : degrees.getInDegree(node.getId(), WikiRelationshipType.Link);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,137 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.query;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the normalised title index that ExportSnapshot copies into a
+ * snapshot as "titles.norm": the title ids sorted by the titles' normalised
+ * form, for lookups that ignore first-letter case, underscores and anchors
+ * and for prefix searches.
+ */
+public class NormalizedTitleIndex {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] MAGIC = { 'G', 'P', 'N', 'T' };
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 12;
+    private static final int OWN_TITLE = -1;
+
+    private final TitleTable titles;
+    private final int size;
+    private final IntBuffer ids;
+    private final IntBuffer keyOffsets;
+    private final ByteBuffer keys;
+
+    public NormalizedTitleIndex(TitleTable titles, File file) throws IOException {
+        this.titles = titles;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            for (byte magicByte : MAGIC) {
+                if (header.get() != magicByte) {
+                    throw new IOException(file + " is not a normalised title index");
+                }
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported normalised title index version " + version);
+            }
+            size = header.getInt();
+            int keyBytes = header.getInt();
+            ids = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, 4L * size).asIntBuffer();
+            keyOffsets = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + 4L * size, 4L * size).asIntBuffer();
+            keys = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + 8L * size, keyBytes);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the id of the page the title resolves to, or
+     * TitleTable.NOT_FOUND.
+     */
+    public int find(String title) {
+        byte[] key = TitleNormalizer.normalize(title).getBytes(UTF8);
+        int entry = lowerBound(key, false);
+        return entry < size && compare(entry, key, false) == 0 ? ids.get(entry) : TitleTable.NOT_FOUND;
+    }
+
+    /**
+     * Returns the ids of at most limit pages whose normalised title starts
+     * with the normalised prefix, in normalised title order.
+     */
+    public List<Integer> findByPrefix(String prefix, int limit) {
+        byte[] key = TitleNormalizer.normalizePrefix(prefix).getBytes(UTF8);
+        List<Integer> found = new ArrayList<Integer>();
+        for (int entry = lowerBound(key, true); entry < size && found.size() < limit; entry++) {
+            if (compare(entry, key, true) != 0) {
+                break;
+            }
+            found.add(ids.get(entry));
+        }
+        return found;
+    }
+
+    // the first entry not below key
+    private int lowerBound(byte[] key, boolean prefix) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(middle, key, prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int compare(int entry, byte[] key, boolean prefix) {
+        int offset = keyOffsets.get(entry);
+        if (offset == OWN_TITLE) {
+            return titles.compare(ids.get(entry), key, prefix);
+        }
+        int length = keys.getShort(offset) & 0xffff;
+        offset += 2;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int difference = (keys.get(offset + i) & 0xff) - (key[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return prefix && length >= key.length ? 0 : length - key.length;
+    }
+
+}
@@ -0,0 +1,389 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Level-synchronous breadth-first search that expands each level of the
+ * frontier on several threads, for searches whose frontier grows to
+ * millions of nodes.
+ * <p>
+ * Each level is split into chunks run as tasks on an executor. Nodes are
+ * claimed with a compare-and-set on a visited bitmap, and each task copies
+ * the nodes it claimed into a range of the next frontier that it reserves
+ * with one atomic add, so there is no lock on the frontier. Once the
+ * frontier has more outgoing edges than the unvisited part of the graph
+ * (see ALPHA), a level is expanded bottom-up instead: every unvisited node
+ * scans its incoming edges for a node of the frontier, and stops at the
+ * first one. It goes back to top-down expansion when the frontier shrinks
+ * again (see BETA).
+ * <p>
+ * An instance must be used by one search at a time.
+ */
+public class ParallelBfs {
+
+    // switch to bottom-up when the frontier's edges exceed the unexplored edges / ALPHA
+    private static final int ALPHA = 14;
+    // switch back to top-down when the frontier holds fewer than nodes / BETA
+    private static final int BETA = 24;
+    private static final int TASKS_PER_THREAD = 4;
+    private static final int MIN_CHUNK = 1024;
+    private static final int NONE = -1;
+    // states of a level's tasks
+    private static final int PENDING = 0;
+    private static final int RUNNING = 1;
+    private static final int SKIPPED = 2;
+
+    private final CsrGraph[] outgoing;
+    private final CsrGraph[] incoming;
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final int nodeCount;
+    private final long[] edgeCount;
+
+    private final AtomicIntegerArray visited;
+    // a node's depth is only meaningful once its visited bit is set
+    private final int[] depths;
+    private int[] frontier;
+    private int[] nextFrontier;
+    private final AtomicInteger nextSize = new AtomicInteger();
+    private int bottomUpLevels;
+
+    /**
+     * Creates a search over the relationships of the given snapshot, which
+     * must have been exported with its incoming relationships.
+     */
+    public ParallelBfs(GraphSnapshot snapshot, ExecutorService executor, int parallelism) {
+        WikiRelationshipType[] types = WikiRelationshipType.values();
+        outgoing = new CsrGraph[types.length];
+        incoming = new CsrGraph[types.length];
+        edgeCount = new long[types.length];
+        for (WikiRelationshipType type : types) {
+            outgoing[type.ordinal()] = snapshot.getGraph(type);
+            incoming[type.ordinal()] = snapshot.getIncomingGraph(type);
+            if (outgoing[type.ordinal()] != null) {
+                edgeCount[type.ordinal()] = outgoing[type.ordinal()].getEdgeCount();
+            }
+        }
+        this.executor = executor;
+        this.parallelism = parallelism;
+        nodeCount = snapshot.getLinks().getNodeCount();
+        visited = new AtomicIntegerArray((nodeCount + 31) >>> 5);
+        depths = new int[nodeCount];
+        frontier = new int[nodeCount];
+        nextFrontier = new int[nodeCount];
+    }
+
+    /**
+     * Returns the nodes of a shortest path of at most maxDepth relationships
+     * of the given types, or null if there is none.
+     */
+    public int[] findSinglePath(int start, int end, int maxDepth, Set<WikiRelationshipType> types,
+            QueryDeadline deadline) {
+        CsrGraph[] forwardGraphs = select(outgoing, types, "");
+        CsrGraph[] backwardGraphs = select(incoming, types, "incoming ");
+        deadline.check();
+        for (int i = 0; i < visited.length(); i++) {
+            visited.set(i, 0);
+        }
+        bottomUpLevels = 0;
+        claim(start);
+        depths[start] = 0;
+        frontier[0] = start;
+        int frontierSize = 1;
+        long unexploredEdges = totalEdges(types);
+        boolean bottomUp = false;
+        int depth = 0;
+        while (!isVisited(end) && frontierSize > 0 && depth < maxDepth) {
+            deadline.check();
+            long frontierEdges = 0;
+            for (int i = 0; i < frontierSize; i++) {
+                frontierEdges += degree(forwardGraphs, frontier[i]);
+            }
+            unexploredEdges -= frontierEdges;
+            if (!bottomUp && frontierEdges > unexploredEdges / ALPHA) {
+                bottomUp = true;
+            } else if (bottomUp && frontierSize < nodeCount / BETA) {
+                bottomUp = false;
+            }
+            nextSize.set(0);
+            if (bottomUp) {
+                bottomUpLevels++;
+                runLevel(nodeCount, new BottomUpStep(backwardGraphs, depth));
+            } else {
+                runLevel(frontierSize, new TopDownStep(forwardGraphs, depth));
+            }
+            int[] swap = frontier;
+            frontier = nextFrontier;
+            nextFrontier = swap;
+            frontierSize = nextSize.get();
+            depth++;
+        }
+        if (!isVisited(end)) {
+            return null;
+        }
+        int[] path = new int[depths[end] + 1];
+        path[path.length - 1] = end;
+        for (int i = path.length - 1; i > 0; i--) {
+            path[i - 1] = predecessor(backwardGraphs, path[i], i - 1);
+        }
+        return path;
+    }
+
+    /**
+     * Returns the number of levels of the last search expanded bottom-up.
+     */
+    public int getBottomUpLevels() {
+        return bottomUpLevels;
+    }
+
+    // runs step over [0, size) in chunks on the executor and waits for all of
+    // them; if one fails or the caller is interrupted, the rest are stopped
+    // and waited for, so that no task still writes to the search state when
+    // the next search resets it
+    private void runLevel(int size, final Step step) {
+        int chunk = Math.max(MIN_CHUNK, (size + parallelism * TASKS_PER_THREAD - 1) / (parallelism * TASKS_PER_THREAD));
+        // the last chunk runs on the calling thread
+        int taskCount = Math.max(0, (size + chunk - 1) / chunk - 1);
+        final AtomicIntegerArray states = new AtomicIntegerArray(taskCount);
+        final CountDownLatch finished = new CountDownLatch(taskCount);
+        List<Future<Void>> tasks = new ArrayList<Future<Void>>(taskCount);
+        boolean completed = false;
+        try {
+            for (int task = 0; task < taskCount; task++) {
+                final int taskIndex = task;
+                final int chunkFrom = task * chunk;
+                final int chunkTo = chunkFrom + chunk;
+                tasks.add(executor.submit(new Callable<Void>() {
+                    public Void call() {
+                        if (!states.compareAndSet(taskIndex, PENDING, RUNNING)) {
+                            return null;
+                        }
+                        try {
+                            step.run(chunkFrom, chunkTo);
+                        } finally {
+                            finished.countDown();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            step.run(taskCount * chunk, size);
+            for (Future<Void> task : tasks) {
+                task.get();
+            }
+            completed = true;
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("query cancelled");
+        } catch (ExecutionException failure) {
+            throw new IllegalStateException("parallel search failed", failure.getCause());
+        } finally {
+            if (!completed) {
+                stop(step, states, finished);
+            }
+        }
+    }
+
+    // skips the tasks that have not started and waits for the running ones,
+    // which return early once step is stopped
+    private static void stop(Step step, AtomicIntegerArray states, CountDownLatch finished) {
+        step.stopped = true;
+        for (int task = 0; task < states.length(); task++) {
+            if (states.compareAndSet(task, PENDING, SKIPPED)) {
+                finished.countDown();
+            }
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                finished.await();
+                break;
+            } catch (InterruptedException interruptedAgain) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private abstract class Step {
+
+        final CsrGraph[] graphs;
+        final int depth;
+        volatile boolean stopped;
+
+        Step(CsrGraph[] graphs, int depth) {
+            this.graphs = graphs;
+            this.depth = depth;
+        }
+
+        abstract void run(int from, int to);
+
+        // appends the nodes a task claimed to the next frontier
+        void publish(int[] claimed, int count) {
+            if (count > 0) {
+                System.arraycopy(claimed, 0, nextFrontier, nextSize.getAndAdd(count), count);
+            }
+        }
+
+    }
+
+    private class TopDownStep extends Step {
+
+        TopDownStep(CsrGraph[] graphs, int depth) {
+            super(graphs, depth);
+        }
+
+        void run(int from, int to) {
+            int[] claimed = new int[256];
+            int count = 0;
+            for (int i = from; i < to; i++) {
+                if (stopped) {
+                    return;
+                }
+                int node = frontier[i];
+                for (CsrGraph graph : graphs) {
+                    for (int edge = graph.getStart(node); edge < graph.getEnd(node); edge++) {
+                        int target = graph.getTarget(edge);
+                        if (!isVisited(target) && claim(target)) {
+                            depths[target] = depth + 1;
+                            if (count == claimed.length) {
+                                claimed = Arrays.copyOf(claimed, 2 * count);
+                            }
+                            claimed[count++] = target;
+                        }
+                    }
+                }
+            }
+            publish(claimed, count);
+        }
+
+    }
+
+    private class BottomUpStep extends Step {
+
+        BottomUpStep(CsrGraph[] graphs, int depth) {
+            super(graphs, depth);
+        }
+
+        void run(int from, int to) {
+            int[] claimed = new int[256];
+            int count = 0;
+            for (int node = from; node < to; node++) {
+                if (stopped) {
+                    return;
+                }
+                if (isVisited(node) || !hasParentAt(graphs, node, depth)) {
+                    continue;
+                }
+                // the depth must be written before the bit that makes it
+                // meaningful to the other tasks of this level
+                depths[node] = depth + 1;
+                claim(node);
+                if (count == claimed.length) {
+                    claimed = Arrays.copyOf(claimed, 2 * count);
+                }
+                claimed[count++] = node;
+            }
+            publish(claimed, count);
+        }
+
+    }
+
+    private boolean hasParentAt(CsrGraph[] graphs, int node, int depth) {
+        return predecessor(graphs, node, depth) != NONE;
+    }
+
+    private int predecessor(CsrGraph[] graphs, int node, int depth) {
+        for (CsrGraph graph : graphs) {
+            for (int edge = graph.getStart(node); edge < graph.getEnd(node); edge++) {
+                int parent = graph.getTarget(edge);
+                if (isVisited(parent) && depths[parent] == depth) {
+                    return parent;
+                }
+            }
+        }
+        return NONE;
+    }
+
+    private boolean isVisited(int node) {
+        return (visited.get(node >>> 5) & (1 << node)) != 0;
+    }
+
+    // sets the node's visited bit, returning false if another task set it first
+    private boolean claim(int node) {
+        int word = node >>> 5;
+        int bit = 1 << node;
+        while (true) {
+            int bits = visited.get(word);
+            if ((bits & bit) != 0) {
+                return false;
+            }
+            if (visited.compareAndSet(word, bits, bits | bit)) {
+                return true;
+            }
+        }
+    }
+
+    private long totalEdges(Set<WikiRelationshipType> types) {
+        long total = 0;
+        for (WikiRelationshipType type : types) {
+            total += edgeCount[type.ordinal()];
+        }
+        return total;
+    }
+
+    private static long degree(CsrGraph[] graphs, int node) {
+        long degree = 0;
+        for (CsrGraph graph : graphs) {
+            degree += graph.getEnd(node) - graph.getStart(node);
+        }
+        return degree;
+    }
+
+    private static CsrGraph[] select(CsrGraph[] graphs, Set<WikiRelationshipType> types, String description) {
+        CsrGraph[] selected = new CsrGraph[types.size()];
+        int count = 0;
+        for (WikiRelationshipType type : types) {
+            if (graphs[type.ordinal()] == null) {
+                throw new IllegalStateException("the snapshot has no " + description + type + " relationships");
+            }
+            selected[count++] = graphs[type.ordinal()];
+        }
+        return selected;
+    }
+
+}
@@ -0,0 +1,158 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.query;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Caches the paths found by GraphipediaService and its title to node
+ * lookups, in TinyLfuCaches. Every entry is keyed by the identity of the
+ * store or snapshot it was computed on, so a cache shared by several
+ * services, or kept across a re-import, never serves results from another
+ * graph. Paths are also keyed by the engine that found them, since the
+ * store and a snapshot of it can disagree.
+ */
+public class QueryCache {
+
+    public static final int DEFAULT_MAX_PATHS = 100000;
+    public static final int DEFAULT_MAX_TITLES = 1000000;
+
+    /** Cached for a findPath call that found no path. */
+    public static final List<String> NO_PATH = Collections.emptyList();
+
+    private final TinyLfuCache<PathKey, List<String>> paths;
+    private final TinyLfuCache<TitleKey, Long> titles;
+
+    public QueryCache() {
+        this(DEFAULT_MAX_PATHS, DEFAULT_MAX_TITLES);
+    }
+
+    public QueryCache(int maxPaths, int maxTitles) {
+        paths = new TinyLfuCache<PathKey, List<String>>(maxPaths);
+        titles = new TinyLfuCache<TitleKey, Long>(maxTitles);
+    }
+
+    public TinyLfuCache<?, ?> getPathCache() {
+        return paths;
+    }
+
+    public TinyLfuCache<?, ?> getTitleCache() {
+        return titles;
+    }
+
+    /**
+     * Returns the cached path, NO_PATH if it is known that there is none,
+     * or null if nothing is cached.
+     */
+    public List<String> getPath(String store, PathEngine engine, String startPage, String endPage, int maxDepth) {
+        return paths.get(new PathKey(store, engine, startPage, endPage, maxDepth));
+    }
+
+    public void putPath(String store, PathEngine engine, String startPage, String endPage, int maxDepth,
+            List<String> path) {
+        List<String> value = path != null ? Collections.unmodifiableList(path) : NO_PATH;
+        paths.put(new PathKey(store, engine, startPage, endPage, maxDepth), value);
+    }
+
+    /**
+     * Returns the cached node id of the title, or null.
+     */
+    public Long getNodeId(String store, String title) {
+        return titles.get(new TitleKey(store, title));
+    }
+
+    public void putNodeId(String store, String title, long nodeId) {
+        titles.put(new TitleKey(store, title), nodeId);
+    }
+
+    public void clear() {
+        paths.clear();
+        titles.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "paths: " + paths + "; titles: " + titles;
+    }
+
+    private static final class PathKey {
+
+        private final String store;
+        private final PathEngine engine;
+        private final String startPage;
+        private final String endPage;
+        private final int maxDepth;
+
+        PathKey(String store, PathEngine engine, String startPage, String endPage, int maxDepth) {
+            this.store = store;
+            this.engine = engine;
+            this.startPage = startPage;
+            this.endPage = endPage;
+            this.maxDepth = maxDepth;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof PathKey)) {
+                return false;
+            }
+            PathKey other = (PathKey) object;
+            return maxDepth == other.maxDepth && engine == other.engine && startPage.equals(other.startPage)
+                    && endPage.equals(other.endPage) && store.equals(other.store);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = (store.hashCode() * 31 + engine.hashCode()) * 31 + startPage.hashCode();
+            return (hash * 31 + endPage.hashCode()) * 31 + maxDepth;
+        }
+
+    }
+
+    private static final class TitleKey {
+
+        private final String store;
+        private final String title;
+
+        TitleKey(String store, String title) {
+            this.store = store;
+            this.title = title;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof TitleKey)) {
+                return false;
+            }
+            TitleKey other = (TitleKey) object;
+            return title.equals(other.title) && store.equals(other.store);
+        }
+
+        @Override
+        public int hashCode() {
+            return store.hashCode() * 31 + title.hashCode();
+        }
+
+    }
+
+}
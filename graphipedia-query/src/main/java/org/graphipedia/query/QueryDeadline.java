@@ -0,0 +1,61 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.query;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The point in time by which a query must finish. Searches call check()
+ * as they go, which also stops them when their thread is interrupted, for
+ * example by Future.cancel(true).
+ */
+public final class QueryDeadline {
+
+    public static final QueryDeadline NONE = new QueryDeadline(0, false);
+
+    private final long deadlineNanos;
+    private final boolean limited;
+
+    private QueryDeadline(long deadlineNanos, boolean limited) {
+        this.deadlineNanos = deadlineNanos;
+        this.limited = limited;
+    }
+
+    public static QueryDeadline after(long timeout, TimeUnit unit) {
+        return new QueryDeadline(System.nanoTime() + unit.toNanos(timeout), true);
+    }
+
+    public long remainingNanos() {
+        return limited ? deadlineNanos - System.nanoTime() : Long.MAX_VALUE;
+    }
+
+    public void check() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("query cancelled");
+        }
+        if (limited && System.nanoTime() - deadlineNanos > 0) {
+            throw new QueryTimeoutException("query deadline exceeded");
+        }
+    }
+
+}
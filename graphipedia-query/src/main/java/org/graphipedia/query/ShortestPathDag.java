@@ -0,0 +1,193 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.query;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Every shortest path between two pages, as a layered graph: layer i holds
+ * the nodes i links away from the start page on some shortest path, and
+ * each of them keeps the indexes of its successors in layer i + 1.
+ * <p>
+ * The DAG takes space in proportion to the nodes and links on shortest
+ * paths, while the number of paths through it can grow exponentially with
+ * their length. countPaths counts them without listing them, and iterator
+ * lists them one at a time, so a consumer that stops reading early never
+ * pays for the rest.
+ */
+public class ShortestPathDag implements Iterable<int[]> {
+
+    private final int[][] layers;
+    private final int[][] offsets;
+    private final int[][] successors;
+
+    /**
+     * Takes the nodes of each layer and, for each layer but the last, the
+     * links to the next layer as (index in layer, index in next layer)
+     * pairs.
+     */
+    ShortestPathDag(int[][] layers, int[][] links, int[] linkCounts) {
+        this.layers = layers;
+        offsets = new int[layers.length - 1][];
+        successors = new int[layers.length - 1][];
+        for (int i = 0; i < layers.length - 1; i++) {
+            int[] layerOffsets = new int[layers[i].length + 1];
+            for (int link = 0; link < linkCounts[i]; link++) {
+                layerOffsets[links[i][2 * link] + 1]++;
+            }
+            for (int j = 0; j < layers[i].length; j++) {
+                layerOffsets[j + 1] += layerOffsets[j];
+            }
+            int[] next = layerOffsets.clone();
+            int[] layerSuccessors = new int[linkCounts[i]];
+            for (int link = 0; link < linkCounts[i]; link++) {
+                layerSuccessors[next[links[i][2 * link]]++] = links[i][2 * link + 1];
+            }
+            offsets[i] = layerOffsets;
+            successors[i] = layerSuccessors;
+        }
+    }
+
+    /**
+     * Returns the number of links on each path.
+     */
+    public int getLength() {
+        return layers.length - 1;
+    }
+
+    /**
+     * Returns the number of distinct nodes on shortest paths.
+     */
+    public int getNodeCount() {
+        int count = 0;
+        for (int[] layer : layers) {
+            count += layer.length;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of shortest paths, or Long.MAX_VALUE if there are
+     * at least that many.
+     */
+    public long countPaths() {
+        int last = layers.length - 1;
+        long[] counts = new long[layers[last].length];
+        Arrays.fill(counts, 1);
+        for (int i = last - 1; i >= 0; i--) {
+            long[] layerCounts = new long[layers[i].length];
+            for (int j = 0; j < layerCounts.length; j++) {
+                long count = 0;
+                for (int k = offsets[i][j]; k < offsets[i][j + 1]; k++) {
+                    count += counts[successors[i][k]];
+                    if (count < 0) {
+                        count = Long.MAX_VALUE;
+                        break;
+                    }
+                }
+                layerCounts[j] = count;
+            }
+            counts = layerCounts;
+        }
+        return counts[0];
+    }
+
+    /**
+     * Lists the paths one at a time, start page first, in a depth-first
+     * order over the DAG.
+     */
+    public Iterator<int[]> iterator() {
+        return iterator(Long.MAX_VALUE);
+    }
+
+    /**
+     * Lists at most limit paths.
+     */
+    public Iterator<int[]> iterator(long limit) {
+        return new PathIterator(limit);
+    }
+
+    private class PathIterator implements Iterator<int[]> {
+
+        private final int length = layers.length - 1;
+        // the index of the current node in each layer, and the next
+        // successor of that node to try
+        private final int[] index = new int[length + 1];
+        private final int[] cursor = new int[length + 1];
+        private long remaining;
+        private int level = 0;
+        private int[] next;
+
+        PathIterator(long limit) {
+            remaining = limit;
+            if (length > 0) {
+                cursor[0] = offsets[0][0];
+            }
+            next = remaining > 0 ? advance() : null;
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public int[] next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            int[] path = next;
+            next = --remaining > 0 ? advance() : null;
+            return path;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private int[] advance() {
+            while (level >= 0) {
+                if (level == length) {
+                    int[] path = new int[length + 1];
+                    for (int i = 0; i <= length; i++) {
+                        path[i] = layers[i][index[i]];
+                    }
+                    level--;
+                    return path;
+                }
+                if (cursor[level] < offsets[level][index[level] + 1]) {
+                    int successor = successors[level][cursor[level]++];
+                    level++;
+                    index[level] = successor;
+                    if (level < length) {
+                        cursor[level] = offsets[level][successor];
+                    }
+                } else {
+                    level--;
+                }
+            }
+            return null;
+        }
+
+    }
+
+}
@@ -0,0 +1,179 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Breadth-first shortest path search over a CsrGraph.
+ */
+public class SnapshotPathFinder {
+
+    private static final int UNSEEN = -1;
+    // nodes expanded or paths emitted between two deadline checks
+    private static final int CHECK_MASK = (1 << 10) - 1;
+
+    private final CsrGraph graph;
+
+    public SnapshotPathFinder(CsrGraph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Returns the nodes of a shortest path of at most maxDepth edges, or
+     * null if there is none.
+     */
+    public int[] findSinglePath(int start, int end, int maxDepth) {
+        return findSinglePath(start, end, maxDepth, QueryDeadline.NONE);
+    }
+
+    public int[] findSinglePath(int start, int end, int maxDepth, QueryDeadline deadline) {
+        deadline.check();
+        int[] parent = new int[graph.getNodeCount()];
+        Arrays.fill(parent, UNSEEN);
+        int[] queue = new int[graph.getNodeCount()];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = start;
+        parent[start] = start;
+        int depth = 0;
+        while (parent[end] == UNSEEN && head < tail && depth < maxDepth) {
+            int levelEnd = tail;
+            while (head < levelEnd && parent[end] == UNSEEN) {
+                int node = queue[head++];
+                if ((head & CHECK_MASK) == 0) {
+                    deadline.check();
+                }
+                for (int edge = graph.getStart(node); edge < graph.getEnd(node); edge++) {
+                    int target = graph.getTarget(edge);
+                    if (parent[target] == UNSEEN) {
+                        parent[target] = node;
+                        queue[tail++] = target;
+                    }
+                }
+            }
+            depth++;
+        }
+        if (parent[end] == UNSEEN) {
+            return null;
+        }
+        int length = 1;
+        for (int node = end; node != start; node = parent[node]) {
+            length++;
+        }
+        int[] path = new int[length];
+        for (int node = end; length > 0; node = parent[node]) {
+            path[--length] = node;
+        }
+        return path;
+    }
+
+    /**
+     * Returns every shortest path of at most maxDepth edges.
+     */
+    public List<int[]> findAllPaths(int start, int end, int maxDepth) {
+        return findAllPaths(start, end, maxDepth, QueryDeadline.NONE);
+    }
+
+    public List<int[]> findAllPaths(int start, int end, int maxDepth, QueryDeadline deadline) {
+        deadline.check();
+        List<int[]> paths = new ArrayList<int[]>();
+        int[] depths = new int[graph.getNodeCount()];
+        Arrays.fill(depths, UNSEEN);
+        int[] queue = new int[graph.getNodeCount()];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = start;
+        depths[start] = 0;
+        while (depths[end] == UNSEEN && head < tail && depths[queue[head]] < maxDepth) {
+            int node = queue[head++];
+            if ((head & CHECK_MASK) == 0) {
+                deadline.check();
+            }
+            for (int edge = graph.getStart(node); edge < graph.getEnd(node); edge++) {
+                int target = graph.getTarget(edge);
+                if (depths[target] == UNSEEN) {
+                    depths[target] = depths[node] + 1;
+                    queue[tail++] = target;
+                }
+            }
+        }
+        if (depths[end] == UNSEEN) {
+            return paths;
+        }
+        int pathDepth = depths[end];
+
+        // walking the queue backwards, keep the nodes one step closer to end
+        // than some node already kept, starting from end
+        boolean[] onPath = new boolean[graph.getNodeCount()];
+        onPath[end] = true;
+        for (int i = tail - 1; i >= 0; i--) {
+            int node = queue[i];
+            if (depths[node] >= pathDepth) {
+                continue;
+            }
+            for (int edge = graph.getStart(node); edge < graph.getEnd(node); edge++) {
+                int target = graph.getTarget(edge);
+                if (onPath[target] && depths[target] == depths[node] + 1) {
+                    onPath[node] = true;
+                    break;
+                }
+            }
+        }
+
+        // depth-first enumeration of the kept nodes
+        int[] path = new int[pathDepth + 1];
+        int[] nextEdge = new int[pathDepth + 1];
+        path[0] = start;
+        nextEdge[0] = graph.getStart(start);
+        int level = 0;
+        while (level >= 0) {
+            if (level == pathDepth) {
+                paths.add(path.clone());
+                if ((paths.size() & CHECK_MASK) == 0) {
+                    deadline.check();
+                }
+                level--;
+                continue;
+            }
+            int node = path[level];
+            int target = UNSEEN;
+            while (nextEdge[level] < graph.getEnd(node)) {
+                int candidate = graph.getTarget(nextEdge[level]++);
+                if (onPath[candidate] && depths[candidate] == level + 1) {
+                    target = candidate;
+                    break;
+                }
+            }
+            if (target == UNSEEN) {
+                level--;
+            } else {
+                path[++level] = target;
+                nextEdge[level] = graph.getStart(target);
+            }
+        }
+        return paths;
+    }
+
+}
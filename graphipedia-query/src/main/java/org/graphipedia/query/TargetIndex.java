@@ -0,0 +1,195 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.query;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The distance of every page to one target page along Link edges, and the
+ * next page on a shortest path there, computed by a single breadth-first
+ * search backwards from the target over the incoming links.
+ * <p>
+ * The file holds the target title, the fingerprint of the snapshot it was
+ * built from, then a byte distance and an int next hop per node.
+ */
+public class TargetIndex {
+
+    public static final String DIRECTORY = "targets";
+    public static final String SUFFIX = ".idx";
+    public static final int UNREACHABLE = -1;
+
+    private static final byte[] MAGIC = { 'G', 'P', 'T', 'I' };
+    private static final int VERSION = 1;
+    private static final int MAX_DISTANCE = 254;
+    private static final int NO_DISTANCE = 0xff;
+
+    private final String title;
+    private final String fingerprint;
+    private final int targetId;
+    private final ByteBuffer distances;
+    private final IntBuffer nextHops;
+
+    public TargetIndex(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            for (byte magicByte : MAGIC) {
+                if (in.readByte() != magicByte) {
+                    throw new IOException(file + " is not a target index");
+                }
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported target index version " + version);
+            }
+            title = in.readUTF();
+            fingerprint = in.readUTF();
+            targetId = in.readInt();
+            int nodeCount = in.readInt();
+            long headerLength = in.getFilePointer();
+            FileChannel channel = in.getChannel();
+            distances = channel.map(FileChannel.MapMode.READ_ONLY, headerLength, nodeCount);
+            nextHops = channel.map(FileChannel.MapMode.READ_ONLY, headerLength + nodeCount, 4L * nodeCount)
+                    .asIntBuffer();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the file the index of the given target is kept in.
+     */
+    public static File fileFor(File snapshotDir, String title) {
+        String name = title.replaceAll("[^A-Za-z0-9_-]", "_");
+        if (name.length() > 64) {
+            name = name.substring(0, 64);
+        }
+        return new File(new File(snapshotDir, DIRECTORY), name + "-" + Integer.toHexString(title.hashCode()) + SUFFIX);
+    }
+
+    /**
+     * Runs the backward search from the target page and writes its index.
+     */
+    public static void build(GraphSnapshot snapshot, String title, File file) throws IOException {
+        CsrGraph incoming = snapshot.getIncomingLinks();
+        if (incoming == null) {
+            throw new IllegalStateException("the snapshot has no incoming links, export it again");
+        }
+        int targetId = snapshot.getTitles().find(title);
+        if (targetId == TitleTable.NOT_FOUND) {
+            throw new IllegalArgumentException("no such page: " + title);
+        }
+        int nodeCount = incoming.getNodeCount();
+        byte[] distances = new byte[nodeCount];
+        Arrays.fill(distances, (byte) NO_DISTANCE);
+        int[] nextHops = new int[nodeCount];
+        Arrays.fill(nextHops, UNREACHABLE);
+        int[] queue = new int[nodeCount];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = targetId;
+        distances[targetId] = 0;
+        nextHops[targetId] = targetId;
+        while (head < tail) {
+            int node = queue[head++];
+            int distance = distances[node] & 0xff;
+            if (distance == MAX_DISTANCE) {
+                continue;
+            }
+            for (int edge = incoming.getStart(node); edge < incoming.getEnd(node); edge++) {
+                int source = incoming.getTarget(edge);
+                if (nextHops[source] == UNREACHABLE) {
+                    distances[source] = (byte) (distance + 1);
+                    nextHops[source] = node;
+                    queue[tail++] = source;
+                }
+            }
+        }
+
+        file.getParentFile().mkdirs();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(title);
+            out.writeUTF(snapshot.getFingerprint());
+            out.writeInt(targetId);
+            out.writeInt(nodeCount);
+            out.write(distances);
+            for (int nextHop : nextHops) {
+                out.writeInt(nextHop);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Identifies the snapshot the index was built from; an index whose
+     * fingerprint differs from its snapshot's is stale.
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public int getTargetId() {
+        return targetId;
+    }
+
+    /**
+     * Returns the number of links from the node to the target, or UNREACHABLE.
+     */
+    public int getDistance(int node) {
+        int distance = distances.get(node) & 0xff;
+        return distance == NO_DISTANCE ? UNREACHABLE : distance;
+    }
+
+    /**
+     * Returns the nodes of a shortest path from the node to the target, or
+     * null if the target cannot be reached.
+     */
+    public int[] getPath(int node) {
+        int distance = getDistance(node);
+        if (distance == UNREACHABLE) {
+            return null;
+        }
+        int[] path = new int[distance + 1];
+        path[0] = node;
+        for (int i = 1; i <= distance; i++) {
+            path[i] = nextHops.get(path[i - 1]);
+        }
+        return path;
+    }
+
+}
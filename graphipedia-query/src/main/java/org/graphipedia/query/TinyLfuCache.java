@@ -0,0 +1,232 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.query;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache that admits a new entry only when it has been asked for
+ * more often than the entry it would evict (TinyLFU). Recency is kept per
+ * segment in access order, and frequency in a count-min sketch of small
+ * counters that are halved periodically, so old popularity fades.
+ * <p>
+ * The cache is split into independently locked segments and may be used
+ * from many threads.
+ */
+public class TinyLfuCache<K, V> {
+
+    private static final int SEGMENTS = 16;
+
+    private final List<Segment> segments = new ArrayList<Segment>(SEGMENTS);
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong rejectionCount = new AtomicLong();
+
+    public TinyLfuCache(int maximumSize) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments.add(new Segment(Math.max(1, (maximumSize + SEGMENTS - 1) / SEGMENTS)));
+        }
+    }
+
+    public V get(K key) {
+        int hash = spread(key.hashCode());
+        V value = segmentFor(hash).get(key, hash);
+        if (value != null) {
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        int hash = spread(key.hashCode());
+        segmentFor(hash).put(key, hash, value);
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of entries removed to make room for more frequent ones.
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Returns the number of new entries not admitted because they were asked
+     * for less often than the entry they would have replaced.
+     */
+    public long getRejectionCount() {
+        return rejectionCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d entries, %d hits, %d misses, %d evictions, %d rejections",
+                size(), getHitCount(), getMissCount(), getEvictionCount(), getRejectionCount());
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments.get(hash >>> 28);
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private final class Segment {
+
+        private final int capacity;
+        private final LinkedHashMap<K, V> entries;
+        private final FrequencySketch sketch;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.entries = new LinkedHashMap<K, V>(16, 0.75f, true);
+            this.sketch = new FrequencySketch(capacity);
+        }
+
+        synchronized V get(K key, int hash) {
+            sketch.increment(hash);
+            return entries.get(key);
+        }
+
+        synchronized void put(K key, int hash, V value) {
+            if (entries.size() < capacity || entries.containsKey(key)) {
+                entries.put(key, value);
+                return;
+            }
+            // the least recently used entry is the eviction candidate
+            Iterator<K> keys = entries.keySet().iterator();
+            K victim = keys.next();
+            if (sketch.frequency(hash) > sketch.frequency(spread(victim.hashCode()))) {
+                keys.remove();
+                entries.put(key, value);
+                evictionCount.incrementAndGet();
+            } else {
+                rejectionCount.incrementAndGet();
+            }
+        }
+
+        synchronized void clear() {
+            entries.clear();
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+    }
+
+    /**
+     * A count-min sketch of four rows of 4-bit counters.
+     */
+    private static final class FrequencySketch {
+
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = { 0x97cb3127, 0x8cb36c8b, 0xa4c2f8e5, 0xc3a5c85d };
+
+        private final byte[][] rows = new byte[SEEDS.length][];
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int capacity) {
+            int width = 16;
+            while (width < 2 * capacity) {
+                width <<= 1;
+            }
+            for (int row = 0; row < rows.length; row++) {
+                rows[row] = new byte[width];
+            }
+            mask = width - 1;
+            sampleSize = 10 * Math.max(capacity, 16);
+        }
+
+        void increment(int hash) {
+            for (int row = 0; row < rows.length; row++) {
+                int index = index(hash, row);
+                if (rows[row][index] < MAX_COUNT) {
+                    rows[row][index]++;
+                }
+            }
+            if (++additions >= sampleSize) {
+                age();
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < rows.length; row++) {
+                frequency = Math.min(frequency, rows[row][index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int row) {
+            int index = hash * SEEDS[row];
+            return (index ^ (index >>> 17)) & mask;
+        }
+
+        private void age() {
+            for (byte[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+
+    }
+
+}
@@ -0,0 +1,130 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.query;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the minimal perfect hash from normalised titles to node ids that
+ * ImportGraph writes into the store directory as "titles.mph". A lookup
+ * hashes the title once and reads one displacement, one fingerprint and
+ * one node id. The hash functions must stay identical to those of
+ * TitleHashWriter in the import module.
+ */
+public class TitleHash {
+
+    public static final String FILE = "titles.mph";
+    public static final long NOT_FOUND = -1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] MAGIC = { 'G', 'P', 'M', 'H' };
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 12;
+
+    private final int size;
+    private final int bucketCount;
+    private final IntBuffer displacements;
+    private final IntBuffer fingerprints;
+    private final LongBuffer ids;
+
+    public TitleHash(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            for (byte magicByte : MAGIC) {
+                if (header.get() != magicByte) {
+                    throw new IOException(file + " is not a title hash");
+                }
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported title hash version " + version);
+            }
+            size = header.getInt();
+            bucketCount = header.getInt();
+            long position = HEADER_SIZE;
+            displacements = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * bucketCount).asIntBuffer();
+            position += 4L * bucketCount;
+            fingerprints = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * size).asIntBuffer();
+            position += 4L * size;
+            ids = channel.map(FileChannel.MapMode.READ_ONLY, position, 8L * size).asLongBuffer();
+        } finally {
+            in.close();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the node id of the page the title resolves to, or NOT_FOUND.
+     * A title that is not in the set is found by mistake with a
+     * probability of 2^-32.
+     */
+    public long find(String title) {
+        if (size == 0) {
+            return NOT_FOUND;
+        }
+        byte[] key = TitleNormalizer.normalize(title).getBytes(UTF8);
+        long hash = hash(key, 0, key.length);
+        int displacement = displacements.get((int) ((hash >>> 1) % bucketCount));
+        int slot = displacement < 0 ? -1 - displacement : position(hash, displacement, size);
+        return fingerprints.get(slot) == fingerprint(hash) ? ids.get(slot) : NOT_FOUND;
+    }
+
+    private static int position(long hash, int displacement, int size) {
+        return (int) ((mix(hash + displacement * 0x9e3779b97f4a7c15L) >>> 1) % size);
+    }
+
+    private static int fingerprint(long hash) {
+        return (int) mix(hash ^ 0xc2b2ae3d27d4eb4fL);
+    }
+
+    // FNV-1a followed by the murmur3 finalizer
+    private static long hash(byte[] bytes, int offset, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= bytes[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+}
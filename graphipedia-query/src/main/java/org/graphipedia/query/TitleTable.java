@@ -0,0 +1,122 @@
+//
+// Copyright (c) 2012 Mirko Nasato
+//
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included
+// in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+// OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+// ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+// OTHER DEALINGS IN THE SOFTWARE.
+//
+package org.graphipedia.query;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * The page titles of a graph snapshot, sorted by their UTF-8 bytes, where a
+ * title's id is its position in the table and also its node id. Same file
+ * format as the dataimport TitleTable.
+ */
+public class TitleTable {
+
+    public static final int NOT_FOUND = -1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] MAGIC = { 'G', 'P', 'T', 'T' };
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 8;
+
+    private final int size;
+    private final IntBuffer offsets;
+    private final ByteBuffer data;
+
+    public TitleTable(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            for (byte magicByte : MAGIC) {
+                if (header.get() != magicByte) {
+                    throw new IOException(file + " is not a title table");
+                }
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported title table version " + version);
+            }
+            size = header.getInt();
+            long offsetsLength = 4L * (size + 1);
+            offsets = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, offsetsLength).asIntBuffer();
+            data = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + offsetsLength, offsets.get(size));
+        } finally {
+            in.close();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getTitle(int id) {
+        int offset = offsets.get(id);
+        byte[] bytes = new byte[offsets.get(id + 1) - offset];
+        ByteBuffer title = data.duplicate();
+        title.position(offset);
+        title.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    public int find(String title) {
+        byte[] bytes = title.getBytes(UTF8);
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compare(middle, bytes);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    private int compare(int id, byte[] title) {
+        return compare(id, title, false);
+    }
+
+    // with prefix set, a title that starts with the given bytes compares equal
+    int compare(int id, byte[] title, boolean prefix) {
+        int offset = offsets.get(id);
+        int length = offsets.get(id + 1) - offset;
+        int common = Math.min(length, title.length);
+        for (int i = 0; i < common; i++) {
+            int difference = (data.get(offset + i) & 0xff) - (title[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return prefix && length >= title.length ? 0 : length - title.length;
+    }
+
+}